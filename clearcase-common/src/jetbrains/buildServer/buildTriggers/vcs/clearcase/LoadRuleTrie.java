@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import com.intellij.openapi.util.SystemInfo;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Path segment trie of config spec load rules.
+ * A path is under the load rules if it is an ancestor of some load rule path or lies below some load rule path,
+ * so both questions are answered by a single walk over the path segments.
+ * Used on the server to filter the elements of the view.
+ */
+public class LoadRuleTrie {
+  @NotNull private static final String ROOT_SEGMENT = "/";
+
+  @NotNull private final Node myRoot = new Node();
+  private boolean myIsEmpty = true;
+
+  public LoadRuleTrie(@NotNull final Collection<String> loadRulePaths) {
+    for (final String loadRulePath : loadRulePaths) {
+      Node node = myRoot;
+      for (final String segment : splitIntoSegments(loadRulePath)) {
+        node = node.getOrCreateChild(segment);
+      }
+      node.myIsLoadRule = true;
+      myIsEmpty = false;
+    }
+  }
+
+  public boolean isEmpty() {
+    return myIsEmpty;
+  }
+
+  /**
+   * @return true if the path is equal to, an ancestor of or a descendant of some load rule path
+   */
+  public boolean isUnderLoadRules(@NotNull final String path) {
+    final List<String> segments = splitIntoSegments(path);
+    if (myIsEmpty || segments.isEmpty()) return false;
+    Node node = myRoot;
+    for (final String segment : segments) {
+      if (node.myIsLoadRule) return true;
+      node = node.getChild(segment);
+      if (node == null) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Splits the path by both kinds of separators, resolving "." and ".." the same way as canonical paths do.
+   * The leading separator of an absolute path is kept as a separate segment, so relative and absolute paths never match.
+   */
+  @NotNull
+  private static List<String> splitIntoSegments(@NotNull final String path) {
+    final List<String> segments = new ArrayList<String>();
+    if (path.startsWith("/") || path.startsWith("\\")) {
+      segments.add(ROOT_SEGMENT);
+    }
+    final int length = path.length();
+    int start = 0;
+    while (start <= length) {
+      int end = start;
+      while (end < length && path.charAt(end) != '/' && path.charAt(end) != '\\') end++;
+      final String segment = path.substring(start, end);
+      if ("..".equals(segment)) {
+        if (!segments.isEmpty() && !ROOT_SEGMENT.equals(segments.get(segments.size() - 1))) {
+          segments.remove(segments.size() - 1);
+        }
+      }
+      else if (segment.length() > 0 && !".".equals(segment)) {
+        segments.add(SystemInfo.isFileSystemCaseSensitive ? segment : segment.toLowerCase());
+      }
+      start = end + 1;
+    }
+    return segments;
+  }
+
+  private static class Node {
+    @Nullable private Map<String, Node> myChildren;
+    private boolean myIsLoadRule;
+
+    @Nullable
+    Node getChild(@NotNull final String segment) {
+      return myChildren == null ? null : myChildren.get(segment);
+    }
+
+    @NotNull
+    Node getOrCreateChild(@NotNull final String segment) {
+      if (myChildren == null) {
+        myChildren = new HashMap<String, Node>();
+      }
+      Node child = myChildren.get(segment);
+      if (child == null) {
+        child = new Node();
+        myChildren.put(segment, child);
+      }
+      return child;
+    }
+  }
+}
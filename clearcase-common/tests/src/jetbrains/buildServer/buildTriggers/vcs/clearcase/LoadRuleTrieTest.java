@@ -0,0 +1,67 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class LoadRuleTrieTest {
+  public void matchesLoadRulesTheirAncestorsAndDescendants() {
+    final LoadRuleTrie trie = new LoadRuleTrie(Arrays.asList("vob/proj/src", "vob/lib"));
+
+    assertTrue(trie.isUnderLoadRules("vob"));
+    assertTrue(trie.isUnderLoadRules("vob/proj"));
+    assertTrue(trie.isUnderLoadRules("vob/proj/src"));
+    assertTrue(trie.isUnderLoadRules("vob/proj/src/main/A.java"));
+    assertTrue(trie.isUnderLoadRules("vob/lib/a.jar"));
+
+    assertFalse(trie.isUnderLoadRules("vob/proj/docs"));
+    assertFalse(trie.isUnderLoadRules("vob/proj/srcs"));
+    assertFalse(trie.isUnderLoadRules("other"));
+  }
+
+  public void acceptsBothSeparatorsAndRedundantSegments() {
+    final LoadRuleTrie trie = new LoadRuleTrie(Collections.singletonList("vob\\proj\\"));
+
+    assertTrue(trie.isUnderLoadRules("vob/proj/src"));
+    assertTrue(trie.isUnderLoadRules("vob//./proj\\src"));
+    assertTrue(trie.isUnderLoadRules("vob/docs/../proj/src"));
+    assertFalse(trie.isUnderLoadRules("vob/proj/../docs"));
+  }
+
+  public void doesNotMixAbsoluteAndRelativePaths() {
+    final LoadRuleTrie trie = new LoadRuleTrie(Collections.singletonList("/vobs/proj"));
+
+    assertTrue(trie.isUnderLoadRules("/vobs/proj/src"));
+    assertTrue(trie.isUnderLoadRules("\\vobs"));
+    assertTrue(trie.isUnderLoadRules("/../vobs/proj"));
+    assertFalse(trie.isUnderLoadRules("vobs/proj/src"));
+  }
+
+  public void emptyTrieMatchesNothing() {
+    final LoadRuleTrie trie = new LoadRuleTrie(Collections.<String>emptyList());
+
+    assertTrue(trie.isEmpty());
+    assertFalse(trie.isUnderLoadRules("vob"));
+    assertFalse(new LoadRuleTrie(Collections.singletonList("vob")).isUnderLoadRules(""));
+  }
+}
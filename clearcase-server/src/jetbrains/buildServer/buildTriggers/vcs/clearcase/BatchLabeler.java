@@ -0,0 +1,216 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Puts a label on the processed versions. The elements of the same version are labeled by one multi-pname
+ * {@code mklabel} command of at most {@code clearcase.mklabel.batch.size} elements, the commands are run by
+ * {@code clearcase.mklabel.threads} cleartool sessions. Like for a single element, the elements already having the label
+ * do not fail the command. A command which fails otherwise is repeated for every element separately.
+ */
+class BatchLabeler implements VersionProcessor {
+  private static final Logger LOG = Logger.getLogger(BatchLabeler.class);
+
+  private static final int BATCH_SIZE = Math.max(1, TeamCityProperties.getInteger("clearcase.mklabel.batch.size", 50));
+  private static final int THREADS = Math.max(1, TeamCityProperties.getInteger("clearcase.mklabel.threads", 4));
+  private static final long PROGRESS_INTERVAL = 30 * 1000L;
+
+  @NotNull private final Commands myCommands;
+  @NotNull private final String myLabel;
+  @NotNull private final WorkerSessions myWorkers;
+  private final int myBatchSize;
+  @NotNull private final Map<String, List<Element>> myPending = new HashMap<String, List<Element>>();
+  @NotNull private final LinkedList<Future<Integer>> myRunning = new LinkedList<Future<Integer>>();
+  @NotNull private final AtomicInteger myLabeled = new AtomicInteger();
+  @NotNull private final AtomicInteger myProgress;
+  private int mySubmitted;
+  private final long myStartTime = System.currentTimeMillis();
+  private long myLastProgress = myStartTime;
+
+  /**
+   * @param progress counter of the labeled elements shared by the labelers of a labeling job
+   */
+  BatchLabeler(@NotNull final ClearCaseConnection connection, @NotNull final String label, @NotNull final AtomicInteger progress) {
+    this(new Commands() {
+      public void mklabel(@NotNull final String version, @NotNull final List<String> pnames, @NotNull final String label) throws IOException {
+        connection.mklabel(version, pnames, label);
+      }
+
+      public void mklabel(@NotNull final String version, @NotNull final String pname, @NotNull final String label, final boolean isDirPath)
+        throws VcsException, IOException {
+        connection.mklabel(version, pname, label, isDirPath);
+      }
+    }, label, progress, new WorkerSessions(connection, THREADS, "ClearCase labeling"), BATCH_SIZE);
+  }
+
+  BatchLabeler(@NotNull final Commands commands,
+               @NotNull final String label,
+               @NotNull final AtomicInteger progress,
+               @NotNull final WorkerSessions workers,
+               final int batchSize) {
+    myCommands = commands;
+    myLabel = label;
+    myProgress = progress;
+    myWorkers = workers;
+    myBatchSize = batchSize;
+  }
+
+  public void processFile(final String fileFullPath,
+                          final String relPath,
+                          final String pname,
+                          final String version,
+                          final ClearCaseConnection clearCaseConnection,
+                          final boolean text,
+                          final boolean executable) throws VcsException {
+    add(version, fileFullPath, false);
+  }
+
+  public void processDirectory(final String fileFullPath,
+                               final String relPath,
+                               final String pname,
+                               final String version,
+                               final ClearCaseConnection clearCaseConnection) throws VcsException {
+    add(version, fileFullPath, true);
+  }
+
+  public void finishProcessingDirectory() {
+  }
+
+  /**
+   * Labels the elements left and waits for all the commands
+   */
+  void finish() throws VcsException {
+    for (final Map.Entry<String, List<Element>> entry : myPending.entrySet()) {
+      submit(entry.getKey(), entry.getValue());
+    }
+    myPending.clear();
+    while (!myRunning.isEmpty()) {
+      waitForFirst();
+    }
+    LOG.info("ClearCase: label \"" + myLabel + "\" is put on " + myLabeled.get() + " elements in " +
+             (System.currentTimeMillis() - myStartTime) / 1000 + " s");
+  }
+
+  /**
+   * Stops the workers, the commands not run yet are dropped
+   */
+  void close() {
+    myWorkers.shutdown();
+  }
+
+  private void add(@NotNull final String version, @NotNull final String path, final boolean isDirPath) throws VcsException {
+    List<Element> elements = myPending.get(version);
+    if (elements == null) {
+      elements = new ArrayList<Element>();
+      myPending.put(version, elements);
+    }
+    elements.add(new Element(path, isDirPath));
+    if (elements.size() >= myBatchSize) {
+      myPending.remove(version);
+      submit(version, elements);
+    }
+  }
+
+  private void submit(@NotNull final String version, @NotNull final List<Element> elements) throws VcsException {
+    myRunning.add(myWorkers.submit(new Callable<Integer>() {
+      public Integer call() throws Exception {
+        label(version, elements);
+        return elements.size();
+      }
+    }));
+    mySubmitted += elements.size();
+    while (myRunning.size() > THREADS * 2 || !myRunning.isEmpty() && myRunning.getFirst().isDone()) {
+      waitForFirst();
+    }
+    reportProgress();
+  }
+
+  private void label(@NotNull final String version, @NotNull final List<Element> elements) throws IOException, VcsException {
+    if (elements.size() > 1) {
+      final List<String> pnames = new ArrayList<String>(elements.size());
+      for (final Element element : elements) {
+        pnames.add(ClearCaseConnection.insertDots(element.myPath, element.myIsDirPath));
+      }
+      try {
+        myCommands.mklabel(version, pnames, myLabel);
+        myLabeled.addAndGet(elements.size());
+        myProgress.addAndGet(elements.size());
+        return;
+      }
+      catch (final IOException e) {
+        LOG.debug("ClearCase: failed to label " + elements.size() + " elements of version " + version + " at once, labeling them separately", e);
+      }
+    }
+    for (final Element element : elements) {
+      myCommands.mklabel(version, element.myPath, myLabel, element.myIsDirPath);
+      myLabeled.incrementAndGet();
+      myProgress.incrementAndGet();
+    }
+  }
+
+  private void waitForFirst() throws VcsException {
+    try {
+      myRunning.getFirst().get();
+      myRunning.removeFirst();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while labeling", e);
+    }
+    catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof VcsException) throw (VcsException)cause;
+      throw new VcsException(cause);
+    }
+  }
+
+  private void reportProgress() {
+    final long now = System.currentTimeMillis();
+    if (now - myLastProgress < PROGRESS_INTERVAL) return;
+    myLastProgress = now;
+    LOG.info("ClearCase: labeling \"" + myLabel + "\", " + myLabeled.get() + " of " + mySubmitted + " found elements are labeled");
+  }
+
+  /**
+   * The mklabel commands of {@link ClearCaseConnection}, both treat the elements already having the label as labeled
+   */
+  interface Commands {
+    void mklabel(@NotNull String version, @NotNull List<String> pnames, @NotNull String label) throws IOException;
+
+    void mklabel(@NotNull String version, @NotNull String pname, @NotNull String label, boolean isDirPath) throws VcsException, IOException;
+  }
+
+  private static class Element {
+    @NotNull private final String myPath;
+    private final boolean myIsDirPath;
+
+    private Element(@NotNull final String path, final boolean isDirPath) {
+      myPath = path;
+      myIsDirPath = isDirPath;
+    }
+  }
+}
@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,15 +41,22 @@ public class CCParseUtil {
   @NonNls private static final String DIRECTORY_ELEMENT = "directory element";
   @NonNls private static final String FILE_ELEMENT = "file element";
   @NonNls private static final String NOT_LOADED = "[not loaded]";
+  @NonNls private static final String VERSION_OBJECT = "version ";
+  @NonNls private static final String DIRECTORY_VERSION_OBJECT = "directory version ";
+  @NonNls private static final String RULE = "Rule:";
+  @NonNls private static final String CHECKEDOUT = "CHECKEDOUT";
 
   private CCParseUtil() {}
 
   @NotNull
   public static List<DirectoryChildElement> readDirectoryVersionContent(@NotNull final ClearCaseConnection connection, @NotNull final String dirPathWithVersion) throws VcsException {
     final List<SimpleDirectoryChildElement> simpleChildren = connection.getChildren(dirPathWithVersion);
+    final Map<String, String> selectedVersions = simpleChildren.isEmpty()
+                                                 ? Collections.<String, String>emptyMap()
+                                                 : connection.getSelectedChildVersions(dirPathWithVersion);
     final List<DirectoryChildElement> children = new ArrayList<DirectoryChildElement>(simpleChildren.size());
     for (SimpleDirectoryChildElement simpleChild : simpleChildren) {
-      final DirectoryChildElement child = simpleChild.createFullElement(connection);
+      final DirectoryChildElement child = simpleChild.createFullElement(connection, selectedVersions.get(simpleChild.getName()));
       if (child != null) {
         children.add(child);
       }
@@ -82,6 +90,10 @@ public class CCParseUtil {
         if (version.beforeOrEquals(fromVersion)) continue;
         LOG.debug("Processing event: " + element.getLogRepresentation());
         if (CCPathElement.isInsideView(element.getObjectName(), connection.getViewWholePath())) {
+          ElementAttributeCache.invalidate(element.getObjectName());
+          if (!"checkin".equals(element.getOperation())) {
+            FileContentCache.invalidateElement(element.getObjectName());
+          }
           if (toVersion == null || version.beforeOrEquals(toVersion)) {
             if (actualChangesProcessor != null) {
               LOG.debug("Actual change");
@@ -268,4 +280,36 @@ public class CCParseUtil {
 
     return null;
   }
+
+  /**
+   * Reads the version selected by the view from a line of "ls -long" output of a view directory. Checked out, hijacked,
+   * not loaded and other objects which are not plain selected versions are skipped.
+   */
+  static void readSelectedVersionFromLSFormat(@NotNull final String line, @NotNull final Map<String, String> versions) {
+    String currentPath;
+    if (line.startsWith(DIRECTORY_VERSION_OBJECT)) {
+      currentPath = line.substring(DIRECTORY_VERSION_OBJECT.length());
+    }
+    else if (line.startsWith(VERSION_OBJECT)) {
+      currentPath = line.substring(VERSION_OBJECT.length());
+    }
+    else {
+      return;
+    }
+
+    final int rulePos = currentPath.lastIndexOf(RULE);
+    if (rulePos == -1) return;
+    currentPath = currentPath.substring(0, rulePos).trim();
+
+    if (currentPath.startsWith("\"") && currentPath.endsWith("\"")) {
+      currentPath = currentPath.substring(1, currentPath.length() - 1);
+    }
+
+    final int versionSep = currentPath.lastIndexOf(CC_VERSION_SEPARATOR);
+    if (versionSep == -1) return;
+    final String version = currentPath.substring(versionSep + CC_VERSION_SEPARATOR.length());
+    if (version.length() == 0 || version.indexOf(' ') != -1 || version.indexOf('\t') != -1 || version.endsWith(CHECKEDOUT)) return;
+
+    versions.put(new File(currentPath.substring(0, versionSep)).getName(), version);
+  }
 }
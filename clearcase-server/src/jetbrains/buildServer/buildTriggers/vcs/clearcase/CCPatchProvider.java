@@ -20,50 +20,74 @@ import com.intellij.execution.ExecutionException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.PatchCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
-import jetbrains.buildServer.vcs.VcsSupportUtil;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class CCPatchProvider {
 
 	private static final Logger LOG = Logger.getLogger(CCPatchProvider.class);	
 	
-  private File myTempFile;
   private final ClearCaseConnection myConnection;
   public static final String CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME = "clearcase.optimize.initial.checkout";
   private static final boolean CC_OPTIMIZE_CHECKOUT = TeamCityProperties.getBoolean(CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME);
   private static final String EXECUTABLE_ATTR = "ugo+x";
+  private static final int VIEW_EXPORT_THREADS = Math.max(1, TeamCityProperties.getInteger("clearcase.view.export.threads", 4));
+  private static final boolean USE_PATCH_REDUCTION = !TeamCityProperties.getBoolean("clearcase.disable.patch.reduction");
+  private static final PatchFetchPipeline.Operation NO_OPERATION = new PatchFetchPipeline.Operation() {
+    void apply() {
+    }
+  };
   private final boolean myUseCCCache;
+  private PatchFetchPipeline myPipeline;
+  @Nullable private PatchChangeReducer myReducer;
+  @Nullable private PatchCache.Recorder myRecorder;
 
   public CCPatchProvider(ClearCaseConnection connection, final boolean useCcCache) {
     myConnection = connection;
     myUseCCCache = useCcCache;
   }
 
+  /**
+   * @param recorder recorder of the operations written to the patch builder
+   */
+  public void setRecorder(@Nullable final PatchCache.Recorder recorder) {
+    myRecorder = recorder;
+  }
+
   public void buildPatch(final PatchBuilder builder, final Revision fromVersion, final Revision lastVersion)
     throws IOException, VcsException, ExecutionException {
+    myPipeline = new PatchFetchPipeline(myConnection);
     try {
       if (fromVersion == null) {
         if (CC_OPTIMIZE_CHECKOUT) {
-          LOG.warn("Exporting files from disk and ignoring the revision to checkout. Can result in inconsistent checkout on wrong revision. " +
-                   "Remove internal property '" + CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME + "' to disable this optimization.");
-          VcsSupportUtil.exportFilesFromDisk(builder, new File(myConnection.getViewWholePath()));
+          exportFromView(builder, lastVersion);
         }
         else {
           myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
         }
       }
-      else if (!myConnection.isConfigSpecWasChanged()) {
+      else if (!myConnection.isConfigSpecWasChanged() || myConnection.getChangedSubtreeRelativePaths() != null) {
+        // every change of a file loads its last version, so it is looked up once per file
+        final Map<String, String> lastVersions = new HashMap<String, String>();
+        myReducer = USE_PATCH_REDUCTION ? new PatchChangeReducer() : null;
         CCParseUtil.processChangedFiles(myConnection, fromVersion, lastVersion, new ChangedFilesProcessor() {
             public void processChangedFile(@NotNull final HistoryElement element) throws VcsException {
                 final String path = element.getObjectName();
-                final Version version = myConnection.getLastVersion(path, true);
-                final String elementLastVersion = version == null ? null : version.getWholeName();
+                if (!lastVersions.containsKey(path)) {
+                  final Version version = myConnection.getLastVersion(path, true);
+                  lastVersions.put(path, version == null ? null : version.getWholeName());
+                }
+                final String elementLastVersion = lastVersions.get(path);
                 if (elementLastVersion != null) {
                     loadFile(path + CCParseUtil.CC_VERSION_SEPARATOR + elementLastVersion, builder, getRelativePath(path));
                 }
@@ -74,22 +98,22 @@ public class CCPatchProvider {
               public void fileAdded(@NotNull final SimpleDirectoryChildElement simpleChild) throws VcsException {
                 final DirectoryChildElement child = simpleChild.createFullElement(myConnection);
                 if (child != null) {
-                  loadFile(child.getFullPath(), builder, getRelativePath(child.getPath()));
+                  loadFile(child.getFullPath(), builder, getRelativePath(child.getPath()), null, true);
                 }
               }
 
-              public void fileDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException {
-                builder.deleteFile(new File(getRelativePath(simpleChild)), false);
+              public void fileDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException, VcsException {
+                deleteFile(builder, getRelativePath(simpleChild));
               }
 
-              public void directoryDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException {
-                builder.deleteDirectory(new File(getRelativePath(simpleChild)), false);
+              public void directoryDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException, VcsException {
+                deleteDirectory(builder, getRelativePath(simpleChild));
               }
 
               public void directoryAdded(@NotNull final SimpleDirectoryChildElement simpleChild) throws VcsException, IOException {
                 final DirectoryChildElement child = simpleChild.createFullElement(myConnection);
                 if (child != null) {
-                  builder.createDirectory(new File(getRelativePath(child.getPath())));
+                  createDirectory(builder, getRelativePath(child.getPath()));
                   myConnection.processAllVersions(child.getFullPath(), getRelativePath(child.getPath()),createFileProcessor(builder));
                 }
               }
@@ -100,15 +124,173 @@ public class CCPatchProvider {
             processChangedFile(element);
           }
         });
+        final List<String> changedSubtrees = myConnection.getChangedSubtreeRelativePaths();
+        if (changedSubtrees != null) {
+          for (String changedSubtree : changedSubtrees) {
+            reloadDirectory(changedSubtree, builder);
+          }
+        }
+        final PatchChangeReducer reducer = myReducer;
+        if (reducer != null) {
+          myReducer = null;
+          reducer.replay();
+        }
       }
       else {
         myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
       }
+      myPipeline.flush();
     } finally {
-      if (myTempFile != null) {
-        FileUtil.delete(myTempFile);
+      myReducer = null;
+      myPipeline.close();
+    }
+  }
+
+  /**
+   * Replaces the directory with its current content, used for the directories affected by the config spec change.
+   * The nearest directory existing in the view is reloaded if the directory itself does not exist.
+   */
+  private void reloadDirectory(@NotNull final String relativePath, @NotNull final PatchBuilder builder) throws IOException, VcsException {
+    final File viewFile = new File(myConnection.getViewWholePath());
+    File dir = new File(relativePath);
+    while (dir != null && !new File(viewFile, dir.getPath()).isDirectory()) {
+      dir = dir.getParentFile();
+    }
+    if (dir == null) {
+      LOG.debug("ClearCase: no existing directory found for the changed subtree \"" + relativePath + "\"");
+      return;
+    }
+
+    deleteDirectory(builder, dir.getPath());
+    final String path = new File(viewFile, dir.getPath()).getPath();
+    final Version version = myConnection.getLastVersion(path, false);
+    if (version != null) {
+      createDirectory(builder, dir.getPath());
+      myConnection.processAllVersions(path + CCParseUtil.CC_VERSION_SEPARATOR + version.getWholeName(), dir.getPath(), createFileProcessor(builder));
+    }
+  }
+
+  /**
+   * Exports the files of the revision from the view. The versions of the revision are compared with the versions the
+   * view selects, a single listing per directory, and the files the view selects another version of, as well as the
+   * hijacked and checked out ones, are fetched by their versions. So the view does not have to be up to date.
+   * A file changed in the view after it was listed is fetched by its version too. A dynamic view which allows direct
+   * reads is not listed, the files are read through their version-extended paths, which never change.
+   */
+  private void exportFromView(@NotNull final PatchBuilder builder, @NotNull final Revision lastVersion) throws IOException, VcsException {
+    final List<ExportEntry> entries = new ArrayList<ExportEntry>();
+    final Set<String> dirs = new LinkedHashSet<String>();
+    final File viewDir = new File(myConnection.getViewWholePath());
+    final boolean versionReads = DynamicViewReader.isEnabled(myConnection);
+    myConnection.processAllVersions(lastVersion, new VersionProcessor() {
+      public void processFile(final String fileFullPath,
+                              final String relPath,
+                              final String pname,
+                              final String version,
+                              final ClearCaseConnection clearCaseConnection,
+                              final boolean text,
+                              final boolean executable) {
+        final ViewFileState state = versionReads ? null : new ViewFileState(new File(viewDir, relPath));
+        final ExportEntry entry = new ExportEntry(fileFullPath, relPath, new ClearCaseFileAttr(executable, text), state);
+        entries.add(entry);
+        dirs.add(entry.myParentPath);
+      }
+
+      public void processDirectory(final String fileFullPath,
+                                   final String relPath,
+                                   final String pname,
+                                   final String version,
+                                   final ClearCaseConnection clearCaseConnection) {
+        entries.add(new ExportEntry(fileFullPath, relPath, null, null));
+      }
+
+      public void finishProcessingDirectory() {
       }
+    }, false, myUseCCCache);
+
+    final Map<String, Map<String, String>> viewVersions = versionReads ? Collections.<String, Map<String, String>>emptyMap() : readViewVersions(dirs);
+    int fetched = 0;
+    for (final ExportEntry entry : entries) {
+      if (entry.myAttr == null) {
+        createDirectory(builder, entry.myRelativePath);
+        continue;
+      }
+      if (versionReads) {
+        submitFile(entry.myFullPath, builder, entry.myRelativePath, entry.myAttr);
+      }
+      else if (ViewFileState.isSelected(viewVersions.get(entry.myParentPath), entry.myName, entry.getVersion())) {
+        submitViewFile(builder, entry, new File(viewDir, entry.myRelativePath));
+      }
+      else {
+        fetched++;
+        submitFile(entry.myFullPath, builder, entry.myRelativePath, entry.myAttr);
+      }
+    }
+    LOG.debug("ClearCase: exported " + (entries.size() - fetched) + " entries of " + myConnection.getViewWholePath() +
+              " from the view, " + fetched + " files are fetched as the view selects other versions");
+  }
+
+  /**
+   * @return versions the view selects by the directory and the child name, the directories are listed in parallel
+   */
+  @NotNull
+  private Map<String, Map<String, String>> readViewVersions(@NotNull final Collection<String> dirs) throws VcsException {
+    final Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+    final Map<String, Future<Map<String, String>>> futures = new LinkedHashMap<String, Future<Map<String, String>>>();
+    final WorkerSessions workers = new WorkerSessions(myConnection, VIEW_EXPORT_THREADS, "ClearCase view export");
+    try {
+      for (final String dir : dirs) {
+        futures.put(dir, workers.submit(new Callable<Map<String, String>>() {
+          public Map<String, String> call() throws Exception {
+            return myConnection.getViewSelectedVersions(new File(myConnection.getViewWholePath(), dir).getPath());
+          }
+        }));
+      }
+      for (final Map.Entry<String, Future<Map<String, String>>> future : futures.entrySet()) {
+        try {
+          result.put(future.getKey(), future.getValue().get());
+        }
+        catch (final java.util.concurrent.ExecutionException e) {
+          // the files of the directory are fetched by their versions
+          LOG.debug("ClearCase: failed to list \"" + future.getKey() + "\" in the view", e.getCause());
+        }
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while listing the view", e);
     }
+    finally {
+      workers.shutdown();
+    }
+    return result;
+  }
+
+  /**
+   * Queues the file exported from the view. The content is copied ahead by the pipeline and is used only if the file
+   * was not changed since the view was listed, otherwise the version is fetched by its name.
+   */
+  private void submitViewFile(final PatchBuilder builder, final ExportEntry entry, final File viewFile) throws IOException, VcsException {
+    final ClearCaseFileAttr attr = entry.myAttr;
+    final ViewFileState state = entry.myViewState;
+    myPipeline.submit(new Callable<PatchFetchPipeline.Operation>() {
+      public PatchFetchPipeline.Operation call() throws Exception {
+        final File tempFile = myPipeline.createTempFile();
+        try {
+          FileUtil.copy(viewFile, tempFile);
+          //noinspection ConstantConditions
+          if (state.isUnchanged(viewFile)) {
+            return new FetchedFile(builder, myRecorder, entry.myRelativePath, attr, tempFile, null, null, tempFile);
+          }
+          LOG.debug("ClearCase: \"" + viewFile + "\" was changed in the view while it was exported, its version is fetched");
+        }
+        catch (final IOException e) {
+          LOG.debug("ClearCase: failed to copy \"" + viewFile + "\" from the view, its version is fetched", e);
+        }
+        FileUtil.delete(tempFile);
+        return fetchFile(entry.myFullPath, builder, entry.myRelativePath, attr);
+      }
+    });
   }
 
   @NotNull
@@ -126,7 +308,7 @@ public class CCPatchProvider {
                               final boolean text,
                               final boolean executable)
         throws VcsException {
-        loadFile(fileFullPath, builder, relPath);
+        loadFile(fileFullPath, builder, relPath, new ClearCaseFileAttr(executable, text), false);
       }
 
       public void processDirectory(final String fileFullPath,
@@ -135,7 +317,7 @@ public class CCPatchProvider {
                                    final String version, final ClearCaseConnection clearCaseConnection)
         throws VcsException {
         try {
-          builder.createDirectory(new File(relPath));
+          createDirectory(builder, relPath);
         } catch (IOException e) {
           throw new VcsException(e);
         }            
@@ -152,69 +334,265 @@ public class CCPatchProvider {
   }
 
   private void loadFile(final String line, final PatchBuilder builder, String relativePath) throws VcsException {
+    loadFile(line, builder, relativePath, null, false);
+  }
+
+  /**
+   * Queues the file, its content is fetched ahead by the pipeline and is written to the patch in order
+   *
+   * @param knownAttr attributes of the file if they are already known, otherwise they are loaded
+   * @param added true if the file is added to its directory by the change
+   */
+  private void loadFile(final String line, final PatchBuilder builder, final String relativePath, @Nullable final ClearCaseFileAttr knownAttr, final boolean added) throws VcsException {
+    if (myReducer != null) {
+      myReducer.writeFile(relativePath, added, new PatchChangeReducer.Action() {
+        public void run() throws VcsException {
+          submitFile(line, builder, relativePath, knownAttr);
+        }
+      });
+    }
+    else {
+      submitFile(line, builder, relativePath, knownAttr);
+    }
+  }
+
+  private void submitFile(final String line, final PatchBuilder builder, final String relativePath, @Nullable final ClearCaseFileAttr knownAttr) throws VcsException {
     try {
-      final File tempFile = getTempFile();
-      FileUtil.delete(tempFile);
-
-      myConnection.loadFileContent(tempFile, line);
-      if (tempFile.isFile()) {
-        final String pathWithoutVersion =
-          CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
-        ClearCaseFileAttr fileAttr = myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
-
-        final String fileMode = fileAttr.isIsExecutable() ? EXECUTABLE_ATTR : null;
-        if (fileAttr.isIsText()) {
-          final FileInputStream input = new FileInputStream(tempFile);
-          try {
-            builder.changeOrCreateTextFile(new File(relativePath), fileMode, input, tempFile.length(), null);
-          } finally {
-            input.close();
-          }
+      myPipeline.submit(new Callable<PatchFetchPipeline.Operation>() {
+        public PatchFetchPipeline.Operation call() throws Exception {
+          return fetchFile(line, builder, relativePath, knownAttr);
         }
-        else {
-          final FileInputStream input = new FileInputStream(tempFile);
-          try {
-            builder.changeOrCreateBinaryFile(new File(relativePath), fileMode, input, tempFile.length());
-          } finally {
-            input.close();
+      });
+    } catch (IOException e) {
+      throw new VcsException(e);
+    }
+  }
+
+  @NotNull
+  private PatchFetchPipeline.Operation fetchFile(final String line, final PatchBuilder builder, final String relativePath, @Nullable final ClearCaseFileAttr knownAttr) throws VcsException {
+    final File versionFile = DynamicViewReader.isEnabled(myConnection) ? DynamicViewReader.getVersionFile(line) : null;
+    if (versionFile != null) {
+      // the version is streamed to the patch right from the view
+      return new FetchedFile(builder, myRecorder, relativePath, getFileAttr(line, knownAttr), versionFile, null, null, null);
+    }
+
+    final String contentKey = FileContentCache.getKey(line);
+    File cachedFile = contentKey == null ? null : FileContentCache.acquire(contentKey);
+    File tempFile = null;
+    try {
+      File contentFile = cachedFile;
+      if (contentFile == null) {
+        tempFile = myPipeline.createTempFile();
+        FileUtil.delete(tempFile);
+
+        myConnection.loadFileContent(tempFile, line);
+        if (!tempFile.isFile()) return NO_OPERATION;
+        contentFile = tempFile;
+        if (contentKey != null) {
+          cachedFile = FileContentCache.putAndAcquire(contentKey, tempFile);
+          if (cachedFile != null) {
+            contentFile = cachedFile;
           }
         }
-
       }
+
+      final FetchedFile fetched = new FetchedFile(builder, myRecorder, relativePath, getFileAttr(line, knownAttr), contentFile, contentKey, cachedFile, tempFile);
+      cachedFile = null;
+      tempFile = null;
+      return fetched;
     } catch (ExecutionException e) {
       throw new VcsException(e);
     } catch (InterruptedException e) {
       throw new VcsException(e);
-    } catch (IOException primary) {
+    } catch (final IOException primary) {
       //TODO: apply ILineFilter for such errors?
       //TW-10811 hotfix: threat files that cannot get own context as "rmelem'ed"
       if (primary.getMessage().contains("Operation \"get cleartext\" failed: not a ClearCase object.")) {
-        try {
-          LOG.warn(
-            String.format("Could not get content of \"%s\", perhaps element was \"rmelem\"'ed. 'll produce deletion. Original message: %s",
-                          line,
-                          primary.getMessage()));
-          builder.deleteFile(new File(relativePath), false);
-        } catch (IOException secondary) {
-          throw new VcsException(secondary.initCause(primary));//keep source exception as cause
-        }
-        return;
+        return new PatchFetchPipeline.Operation() {
+          void apply() throws IOException {
+            LOG.warn(
+              String.format("Could not get content of \"%s\", perhaps element was \"rmelem\"'ed. 'll produce deletion. Original message: %s",
+                            line,
+                            primary.getMessage()));
+            try {
+              builder.deleteFile(new File(relativePath), false);
+            } catch (IOException secondary) {
+              throw (IOException)secondary.initCause(primary);//keep source exception as cause
+            }
+            if (myRecorder != null) {
+              myRecorder.deleteFile(relativePath);
+            }
+          }
+        };
       }
       throw new VcsException(primary);
+    } finally {
+      if (cachedFile != null) {
+        //noinspection ConstantConditions
+        FileContentCache.release(contentKey, cachedFile);
+      }
+      if (tempFile != null) {
+        FileUtil.delete(tempFile);
+      }
     }
   }
 
-  public void dispose() {
-    if (myTempFile != null) {
-      FileUtil.delete(myTempFile);
-      myTempFile = null;
+  @NotNull
+  private ClearCaseFileAttr getFileAttr(final String line, @Nullable final ClearCaseFileAttr knownAttr) throws VcsException {
+    if (knownAttr != null) return knownAttr;
+    final String pathWithoutVersion = CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
+    return myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+  }
+
+  private void createDirectory(final PatchBuilder builder, final String relativePath) throws IOException, VcsException {
+    addOperation(null, new PatchFetchPipeline.Operation() {
+      void apply() throws IOException {
+        builder.createDirectory(new File(relativePath));
+        if (myRecorder != null) {
+          myRecorder.createDirectory(relativePath);
+        }
+      }
+    });
+  }
+
+  private void deleteFile(final PatchBuilder builder, final String relativePath) throws IOException, VcsException {
+    addOperation(relativePath, new PatchFetchPipeline.Operation() {
+      void apply() throws IOException {
+        builder.deleteFile(new File(relativePath), false);
+        if (myRecorder != null) {
+          myRecorder.deleteFile(relativePath);
+        }
+      }
+    });
+  }
+
+  private void deleteDirectory(final PatchBuilder builder, final String relativePath) throws IOException, VcsException {
+    addOperation(null, new PatchFetchPipeline.Operation() {
+      void apply() throws IOException {
+        builder.deleteDirectory(new File(relativePath), false);
+        if (myRecorder != null) {
+          myRecorder.deleteDirectory(relativePath);
+        }
+      }
+    });
+  }
+
+  /**
+   * @param deletedFile relative path of the file the operation deletes, null for the directory operations
+   */
+  private void addOperation(@Nullable final String deletedFile, @NotNull final PatchFetchPipeline.Operation operation) throws IOException, VcsException {
+    if (myReducer == null) {
+      myPipeline.add(operation);
+      return;
+    }
+    final PatchChangeReducer.Action action = new PatchChangeReducer.Action() {
+      public void run() throws IOException, VcsException {
+        myPipeline.add(operation);
+      }
+    };
+    if (deletedFile != null) {
+      myReducer.deleteFile(deletedFile, action);
+    }
+    else {
+      myReducer.add(action);
+    }
+  }
+
+  /**
+   * File or directory of the revision to export from the view
+   */
+  private static class ExportEntry {
+    private final String myFullPath;
+    private final String myRelativePath;
+    private final String myParentPath;
+    private final String myName;
+    @Nullable private final ClearCaseFileAttr myAttr;
+    @Nullable private final ViewFileState myViewState;
+
+    /**
+     * @param attr attributes of the file, null for a directory
+     * @param viewState state of the view file before the view is listed, null if the view is not listed
+     */
+    private ExportEntry(final String fullPath, final String relativePath, @Nullable final ClearCaseFileAttr attr, @Nullable final ViewFileState viewState) {
+      myFullPath = fullPath;
+      myRelativePath = relativePath;
+      final File file = new File(relativePath);
+      myParentPath = file.getParent() == null ? "" : file.getParent();
+      myName = file.getName();
+      myAttr = attr;
+      myViewState = viewState;
+    }
+
+    @NotNull
+    private String getVersion() {
+      return CCPathElement.normalizeSeparators(myFullPath.substring(myFullPath.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR) + CCParseUtil.CC_VERSION_SEPARATOR.length()));
     }
   }
 
-  private synchronized File getTempFile() throws IOException {
-    if (myTempFile == null) {
-      myTempFile = FileUtil.createTempFile("cc", "temp");
+  /**
+   * Writes the fetched content of a file to the patch
+   */
+  private static class FetchedFile extends PatchFetchPipeline.Operation {
+    private final PatchBuilder myBuilder;
+    @Nullable private final PatchCache.Recorder myRecorder;
+    private final String myRelativePath;
+    private final ClearCaseFileAttr myAttr;
+    private final File myContentFile;
+    private final String myContentKey;
+    private final File myCachedFile;
+    private final File myTempFile;
+
+    private FetchedFile(final PatchBuilder builder,
+                        @Nullable final PatchCache.Recorder recorder,
+                        final String relativePath,
+                        final ClearCaseFileAttr attr,
+                        final File contentFile,
+                        @Nullable final String contentKey,
+                        @Nullable final File cachedFile,
+                        @Nullable final File tempFile) {
+      myBuilder = builder;
+      myRecorder = recorder;
+      myRelativePath = relativePath;
+      myAttr = attr;
+      myContentFile = contentFile;
+      myContentKey = contentKey;
+      myCachedFile = cachedFile;
+      myTempFile = tempFile;
+    }
+
+    @Override
+    void apply() throws IOException {
+      final String fileMode = myAttr.isIsExecutable() ? EXECUTABLE_ATTR : null;
+      final FileInputStream input = new FileInputStream(myContentFile);
+      try {
+        if (myAttr.isIsText()) {
+          myBuilder.changeOrCreateTextFile(new File(myRelativePath), fileMode, input, myContentFile.length(), null);
+        }
+        else {
+          myBuilder.changeOrCreateBinaryFile(new File(myRelativePath), fileMode, input, myContentFile.length());
+        }
+      } finally {
+        input.close();
+      }
+      if (myRecorder != null) {
+        myRecorder.writeFile(myRelativePath, fileMode, myAttr.isIsText(), myContentFile);
+      }
+    }
+
+    @Override
+    long getSize() {
+      return myCachedFile == null ? myContentFile.length() : 0;
+    }
+
+    @Override
+    void dispose() {
+      if (myCachedFile != null) {
+        //noinspection ConstantConditions
+        FileContentCache.release(myContentKey, myCachedFile);
+      }
+      if (myTempFile != null) {
+        FileUtil.delete(myTempFile);
+      }
     }
-    return myTempFile;
   }
 }
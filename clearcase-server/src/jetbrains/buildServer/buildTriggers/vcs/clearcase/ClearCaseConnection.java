@@ -25,6 +25,7 @@ import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecEvaluationCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
@@ -85,21 +86,56 @@ public class ClearCaseConnection {
 
   private static final String UPDATE_LOG = "teamcity.clearcase.update.result.log";
 
+  private static final boolean USE_BRANCH_SCOPED_VERSION_TREE = !TeamCityProperties.getBoolean("clearcase.disable.branch.scoped.version.tree");
+  private static final int DESCRIBE_BATCH_SIZE = Math.max(1, TeamCityProperties.getInteger("clearcase.describe.batch.size", 100));
+  private static final boolean USE_BULK_VERSION_RESOLUTION = !TeamCityProperties.getBoolean("clearcase.disable.bulk.version.resolution");
+
   private final ClearCaseStructureCache myCache;
   private final VcsRoot myRoot;
   private final boolean myConfigSpecWasChanged;
+  @Nullable private final Collection<String> myChangedSubtrees;
 
   @NotNull private final ClearCaseInteractiveProcess myProcess;
 
   @NotNull
-  private final Map<String, List<SimpleDirectoryChildElement>> myDirectoryContentCache = new HashMap<String, List<SimpleDirectoryChildElement>>();
+  private final Map<String, List<SimpleDirectoryChildElement>> myDirectoryContentCache =
+    Collections.synchronizedMap(new HashMap<String, List<SimpleDirectoryChildElement>>());
+  @NotNull
+  private final Map<String, Version> myDirectoryVersionCache = Collections.synchronizedMap(new HashMap<String, Version>());
+  /**
+   * Directory versions which are known to be selected by the view, the view content can be used for them
+   */
   @NotNull
-  private final Map<String, Version> myDirectoryVersionCache = new HashMap<String, Version>();
+  private final Set<String> myViewSelectedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Session used instead of the connection's own one by the threads of a {@link ParallelTraversal}
+   */
+  @NotNull private final ThreadLocal<ClearCaseInteractiveProcess> myWorkerProcess = new ThreadLocal<ClearCaseInteractiveProcess>();
 
   boolean isConfigSpecWasChanged() {
     return myConfigSpecWasChanged;
   }
 
+  /**
+   * @return paths relative to the view path of the directories which content can differ after the config spec change,
+   * null if the config spec was not changed or the whole view can differ
+   */
+  @Nullable
+  List<String> getChangedSubtreeRelativePaths() {
+    if (!myConfigSpecWasChanged || myChangedSubtrees == null) return null;
+    final File viewFile = myViewPath.getWholePathFile();
+    final List<String> result = new ArrayList<String>();
+    for (final String subtree : myChangedSubtrees) {
+      final File subtreeFile = new File(subtree);
+      if (FileUtil.isAncestor(subtreeFile, viewFile, false)) return null;
+      if (FileUtil.isAncestor(viewFile, subtreeFile, true)) {
+        result.add(subtreeFile.getPath().substring(viewFile.getPath().length() + 1));
+      }
+    }
+    return result;
+  }
+
   public ClearCaseConnection(final ViewPath viewPath, /*boolean ucmSupported, */
                              @NotNull final ClearCaseInteractiveProcess process,
                              final ClearCaseStructureCache cache,
@@ -123,21 +159,30 @@ public class ClearCaseConnection {
 
     final File configSpecFile = cacheDir != null ? new File(cacheDir, "cs") : null;
 
-    ConfigSpec oldConfigSpec = null;
-    if (checkCSChange && configSpecFile != null && configSpecFile.isFile()) {
-      oldConfigSpec = ConfigSpecParseUtil.getConfigSpecFromStream(myViewPath.getClearCaseViewPathFile(), new FileInputStream(configSpecFile), configSpecFile);
-    }
+    final ConfigSpec oldConfigSpec = checkCSChange && configSpecFile != null
+                                     ? ConfigSpecParseUtil.getSavedConfigSpec(myViewPath.getClearCaseViewPathFile(), configSpecFile)
+                                     : null;
+    final String oldConfigSpecHash = oldConfigSpec == null ? null : oldConfigSpec.getTextHash();
 
     myConfigSpec = checkCSChange && configSpecFile != null
-                   ? ConfigSpecParseUtil.getAndSaveConfigSpec(myViewPath, configSpecFile, myProcess)
+                   ? ConfigSpecParseUtil.getAndSaveConfigSpec(myViewPath, configSpecFile, oldConfigSpecHash, myProcess)
                    : ConfigSpecParseUtil.getConfigSpec(myViewPath, myProcess);
 
     myConfigSpec.setViewIsDynamic(isViewIsDynamic());
 
-    myConfigSpecWasChanged = checkCSChange && configSpecFile != null && !myConfigSpec.equals(oldConfigSpec);
+    myConfigSpecWasChanged = checkCSChange && configSpecFile != null && (oldConfigSpecHash == null || !oldConfigSpecHash.equals(myConfigSpec.getTextHash()));
+
+    myChangedSubtrees = myConfigSpecWasChanged && oldConfigSpec != null ? myConfigSpec.getChangedSubtrees(oldConfigSpec) : null;
 
     if (myConfigSpecWasChanged) {
-      myCache.clearCaches(root);
+      ConfigSpecEvaluationCache.invalidate(getClearCaseViewPath());
+      if (myChangedSubtrees == null) {
+        myCache.clearCaches(root);
+      }
+      else {
+        LOG.debug("ClearCase: config spec of view \"" + getClearCaseViewPath() + "\" was changed for " + myChangedSubtrees);
+        myCache.invalidateSubtrees(root, myChangedSubtrees);
+      }
     }
 
     if (!myConfigSpec.isUnderLoadRules(getClearCaseViewPath(), myViewPath.getWholePath())) {
@@ -176,6 +221,90 @@ public class ClearCaseConnection {
     }
   }
 
+  @Nullable
+  DirectoryChildElement getLastVersionElement(final String pathWithoutVersion, final DirectoryChildElement.Type type, @Nullable final String selectedVersion) throws VcsException {
+    if (selectedVersion == null || hasIgnoredChanges(extractElementPath(pathWithoutVersion))) {
+      return getLastVersionElement(pathWithoutVersion, type);
+    }
+    final int versionNumber;
+    try {
+      versionNumber = Integer.parseInt(selectedVersion.substring(selectedVersion.lastIndexOf(File.separatorChar) + 1));
+    }
+    catch (final NumberFormatException e) {
+      return getLastVersionElement(pathWithoutVersion, type);
+    }
+    final String fullPath = pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR + selectedVersion;
+    if (type == DirectoryChildElement.Type.DIRECTORY) {
+      myViewSelectedDirectories.add(CCPathElement.removeUnneededDots(fullPath));
+    }
+    return new DirectoryChildElement(type, extractElementPath(pathWithoutVersion), versionNumber, fullPath, selectedVersion, pathWithoutVersion);
+  }
+
+  /**
+   * Reads the versions the view selects for the children of the directory with a single "ls -long" of the directory in the view.
+   * The view selection is the same as the config spec evaluation of the version trees only if the directory version is
+   * the one selected by the view and no changes of the directory are ignored, otherwise no versions are returned.
+   *
+   * @return child name to version
+   */
+  @NotNull
+  Map<String, String> getSelectedChildVersions(@NotNull final String dirPathWithVersion) throws VcsException {
+    if (!USE_BULK_VERSION_RESOLUTION) return Collections.emptyMap();
+
+    final String dirPath = extractElementPath(dirPathWithVersion);
+    for (File parent = new File(dirPath); parent != null; parent = parent.getParentFile()) {
+      if (hasIgnoredChanges(parent.getPath())) return Collections.emptyMap();
+    }
+
+    try {
+      final String normalizedPath = CCPathElement.removeUnneededDots(dirPathWithVersion);
+      if (!myViewSelectedDirectories.contains(normalizedPath)) {
+        final Map<String, String> dirVersion = readSelectedVersions(new String[] { "ls", "-long", "-directory", insertDots(dirPath, true) });
+        final String selectedVersion = dirVersion.get(new File(dirPath).getName());
+        final int versionSep = normalizedPath.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR);
+        if (selectedVersion == null || versionSep == -1 ||
+            !selectedVersion.equals(normalizedPath.substring(versionSep + CCParseUtil.CC_VERSION_SEPARATOR.length()))) {
+          LOG.debug("ClearCase: view does not select " + dirPathWithVersion + ", child versions are evaluated by version trees");
+          return Collections.emptyMap();
+        }
+        myViewSelectedDirectories.add(normalizedPath);
+      }
+      return readSelectedVersions(new String[] { "ls", "-long", insertDots(dirPath, true) });
+    }
+    catch (final IOException e) {
+      LOG.debug("ClearCase: failed to list " + dirPath + " in the view, child versions are evaluated by version trees", e);
+      return Collections.emptyMap();
+    }
+  }
+
+  /**
+   * @return versions the view selects for the children of the directory by their names, the checked out and hijacked children are left out
+   */
+  @NotNull
+  Map<String, String> getViewSelectedVersions(@NotNull final String dirPath) throws IOException, VcsException {
+    return readSelectedVersions(new String[] { "ls", "-long", insertDots(dirPath, true) });
+  }
+
+  @NotNull
+  private Map<String, String> readSelectedVersions(@NotNull final String[] params) throws IOException {
+    final Map<String, String> versions = new HashMap<String, String>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(executeAndReturnProcessInput(params)));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        CCParseUtil.readSelectedVersionFromLSFormat(line, versions);
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return versions;
+  }
+
+  private boolean hasIgnoredChanges(@NotNull final String elementPath) {
+    return myChangesToIgnore.containsKey(elementPath) || !myDeletedVersions.get(elementPath).isEmpty();
+  }
+
   @Nullable
   public Version getLastVersion(@NotNull final String path, final boolean isFile) throws VcsException {
     if (isFile) {
@@ -192,7 +321,13 @@ public class ClearCaseConnection {
     try {
       final VersionTree versionTree = new VersionTree();
 
-      readVersionTree(path, versionTree, !isFile);
+      final Collection<String> branches = getLatestVersionBranches(path);
+      if (branches == null) {
+        readVersionTree(path, versionTree, !isFile);
+      }
+      else {
+        readBranchesVersionTree(path, versionTree, !isFile, branches);
+      }
 
       return getLastVersion(path, versionTree, isFile);
     } catch (IOException e) {
@@ -246,6 +381,55 @@ public class ClearCaseConnection {
     return versionTree;
   }
 
+  @Nullable
+  private Collection<String> getLatestVersionBranches(@NotNull final String path) throws VcsException {
+    if (!USE_BRANCH_SCOPED_VERSION_TREE) return null;
+    // ignored changes and deleted versions are applied to the whole version tree
+    if (myChangesToIgnore.containsKey(extractElementPath(path)) || !myDeletedVersions.get(getPathWithoutVersions(path)).isEmpty()) return null;
+    return myConfigSpec.getLatestVersionBranches();
+  }
+
+  /**
+   * Reads only the branches which are needed to find the LATEST version according to the config spec.
+   * "lsvtree" without "-all" lists branches, branch points and the LATEST versions only, so the output
+   * does not depend on the number of versions on the branches.
+   */
+  private void readBranchesVersionTree(final String path, final VersionTree versionTree, final boolean isDirPath, @NotNull final Collection<String> branches) throws IOException, VcsException {
+    final InputStream inputStream = executeAndReturnProcessInput(new String[] { "lsvtree", "-obs", insertDots(path, isDirPath) });
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().length() > 0) {
+          final String elementVersion = readVersion(line);
+          if (isOnBranchPath(elementVersion, branches)) {
+            versionTree.addVersion(elementVersion);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static boolean isOnBranchPath(@NotNull final String version, @NotNull final Collection<String> branches) {
+    String branch = version;
+    final int commentPos = branch.indexOf(" (");
+    if (commentPos != -1) {
+      branch = branch.substring(0, commentPos);
+    }
+    final int lastSepPos = branch.lastIndexOf(File.separatorChar);
+    if (Util.isDigit(branch.substring(lastSepPos + 1))) {
+      branch = lastSepPos == -1 ? "" : branch.substring(0, lastSepPos);
+    }
+    for (final String requiredBranch : branches) {
+      if (requiredBranch.equals(branch) || requiredBranch.startsWith(branch + File.separator)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static String readVersion(final String line) {
     final int versSeparatorIndex = line.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR);
     String result = line.substring(versSeparatorIndex + CCParseUtil.CC_VERSION_SEPARATOR.length());
@@ -450,9 +634,14 @@ public class ClearCaseConnection {
   }
 
   void loadFileContent(final File tempFile, final String line) throws ExecutionException, InterruptedException, IOException, VcsException {
+    final File versionFile = DynamicViewReader.isEnabled(this) ? DynamicViewReader.getVersionFile(line) : null;
+    if (versionFile != null) {
+      DynamicViewReader.copy(versionFile, tempFile);
+      return;
+    }
     final String destFileFqn = insertDots(tempFile.getAbsolutePath(), false);
     final String versionFqn = insertDots(line, false);
-    myProcess.copyFileContentTo(versionFqn, destFileFqn);
+    getProcess().copyFileContentTo(versionFqn, destFileFqn);
   }
 
   public void collectChangesToIgnore(final Revision lastVersion) throws VcsException {
@@ -486,10 +675,16 @@ public class ClearCaseConnection {
 
   @Nullable
   public Version findVersion(final String objectPath, final String objectVersion, final boolean isDirPath) throws IOException, VcsException {
-    final VersionTree versionTree = new VersionTree();
+    return findVersion(readVersionTree(objectPath, isDirPath), objectPath, objectVersion);
+  }
 
-    readVersionTree(objectPath, versionTree, isDirPath);
+  @NotNull
+  public VersionTree readVersionTree(final String objectPath, final boolean isDirPath) throws IOException, VcsException {
+    return readVersionTree(objectPath, new VersionTree(), isDirPath);
+  }
 
+  @Nullable
+  public static Version findVersion(@NotNull final VersionTree versionTree, final String objectPath, final String objectVersion) {
     final String normalizedVersion = objectVersion.startsWith(CCParseUtil.CC_VERSION_SEPARATOR) ? objectVersion.substring(CCParseUtil.CC_VERSION_SEPARATOR.length()) : objectVersion;
 
     final Version versionByPath = versionTree.findVersionByPath(normalizedVersion);
@@ -532,12 +727,30 @@ public class ClearCaseConnection {
 
   private InputStream executeAndReturnProcessInput(final String[] params) throws IOException {
     if (params != null && params.length > 0) {
-      return myProcess.executeAndReturnProcessInput(params);
+      return getProcess().executeAndReturnProcessInput(params);
     }
     //noinspection SSBasedInspection
     return new ByteArrayInputStream("".getBytes());
   }
 
+  @NotNull
+  private ClearCaseInteractiveProcess getProcess() {
+    final ClearCaseInteractiveProcess workerProcess = myWorkerProcess.get();
+    return workerProcess != null ? workerProcess : myProcess;
+  }
+
+  /**
+   * Makes the commands of the current thread run in the given session, null restores the connection's own session
+   */
+  void setWorkerProcess(@Nullable final ClearCaseInteractiveProcess process) {
+    if (process == null) {
+      myWorkerProcess.remove();
+    }
+    else {
+      myWorkerProcess.set(process);
+    }
+  }
+
   String getVersionDescription(final String fullPath, final boolean isDirPath) {
     try {
       String[] params = { "describe", "-fmt", "%c", "-pname", insertDots(fullPath, isDirPath) };
@@ -623,7 +836,7 @@ public class ClearCaseConnection {
   }
 
   protected boolean isViewIsDynamic() throws IOException {
-    final InputStream inputStream = myProcess.executeAndReturnProcessInput(new String[] { "lsview", "-cview", "-long" });
+    final InputStream inputStream = getProcess().executeAndReturnProcessInput(new String[] { "lsview", "-cview", "-long" });
     final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
     try {
       String line = reader.readLine();
@@ -730,7 +943,7 @@ public class ClearCaseConnection {
       }
 
       try {
-        processAllVersionsInternal(dirPath, versionProcessor, "./");
+        traverse(dirPath, versionProcessor, "./");
       } finally {
         if (processRoot) {
           versionProcessor.finishProcessingDirectory();
@@ -741,19 +954,29 @@ public class ClearCaseConnection {
   }
 
   public void processAllVersions(final String fullPath, String relPath, final VersionProcessor versionProcessor) throws VcsException {
-    processAllVersionsInternal(fullPath, versionProcessor, relPath);
+    traverse(fullPath, versionProcessor, relPath);
 
   }
 
-  private void processAllVersionsInternal(final String dirPath, final VersionProcessor versionProcessor, String relativePath) throws VcsException {
+  private void traverse(final String dirPath, final VersionProcessor versionProcessor, String relativePath) throws VcsException {
+    if (ParallelTraversal.isEnabled() && myWorkerProcess.get() == null) {
+      new ParallelTraversal(this).traverse(dirPath, relativePath, versionProcessor);
+    }
+    else {
+      processAllVersionsInternal(dirPath, versionProcessor, relativePath);
+    }
+  }
+
+  void processAllVersionsInternal(final String dirPath, final VersionProcessor versionProcessor, String relativePath) throws VcsException {
     final List<DirectoryChildElement> subfiles = CCParseUtil.readDirectoryVersionContent(this, dirPath);
+    final Map<String, ClearCaseFileAttr> fileAttrs = loadFileAttrs(subfiles);
 
     for (DirectoryChildElement subfile : subfiles) {
       final String fileFullPath = CCPathElement.removeUnneededDots(subfile.getFullPath());
-      String newRelPath = "./".equals(relativePath) ? CCParseUtil.getFileName(subfile.getPath()) : relativePath + File.separator + CCParseUtil.getFileName(subfile.getPath());
+      String newRelPath = getChildRelativePath(relativePath, subfile);
       String elemPath = getViewWholePath() + File.separator + newRelPath;
       if (subfile.getType() == DirectoryChildElement.Type.FILE) {
-        final ClearCaseFileAttr fileAttr = loadFileAttr(subfile.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
+        final ClearCaseFileAttr fileAttr = fileAttrs.get(subfile.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
         versionProcessor.processFile(fileFullPath, newRelPath, elemPath, subfile.getStringVersion(), this, fileAttr.isIsText(), fileAttr.isIsExecutable());
       } else {
         versionProcessor.processDirectory(fileFullPath, newRelPath, elemPath, subfile.getStringVersion(), this);
@@ -766,6 +989,25 @@ public class ClearCaseConnection {
     }
   }
 
+  /**
+   * @return attributes of the file children by their paths with the version separator
+   */
+  @NotNull
+  Map<String, ClearCaseFileAttr> loadFileAttrs(@NotNull final List<DirectoryChildElement> children) throws VcsException {
+    final List<String> filePaths = new ArrayList<String>(children.size());
+    for (final DirectoryChildElement child : children) {
+      if (child.getType() == DirectoryChildElement.Type.FILE) {
+        filePaths.add(child.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
+      }
+    }
+    return loadFileAttrs(filePaths);
+  }
+
+  @NotNull
+  static String getChildRelativePath(@NotNull final String relativePath, @NotNull final DirectoryChildElement child) {
+    return "./".equals(relativePath) ? CCParseUtil.getFileName(child.getPath()) : relativePath + File.separator + CCParseUtil.getFileName(child.getPath());
+  }
+
   private Version prepare(final DateRevision lastVersion) throws VcsException {
     collectChangesToIgnore(lastVersion);
     try {
@@ -806,16 +1048,53 @@ public class ClearCaseConnection {
         //ignore
       }
     } catch (IOException e) {
-      if (!e.getLocalizedMessage().contains("already on element"))
+      if (!isAlreadyLabeledError(e.getLocalizedMessage()))
+        throw e;
+    }
+  }
+
+  /**
+   * Puts the label on the version of several elements by one command
+   *
+   * @param pnames paths of the elements prepared by {@link #insertDots}
+   */
+  void mklabel(@NotNull final String version, @NotNull final List<String> pnames, @NotNull final String label) throws IOException {
+    final List<String> parameters = new ArrayList<String>();
+    parameters.add("mklabel");
+    parameters.add("-replace");
+    parameters.add("-version");
+    parameters.add(version);
+    parameters.add(label);
+    parameters.addAll(pnames);
+    try {
+      executeAndReturnProcessInput(ClearCaseSupport.makeArray(parameters)).close();
+    } catch (IOException e) {
+      if (!isAlreadyLabeledError(e.getLocalizedMessage()))
         throw e;
     }
   }
 
+  /**
+   * @return true if the only errors reported by mklabel are about the elements already having the label
+   */
+  static boolean isAlreadyLabeledError(@Nullable final String message) {
+    if (message == null || !message.contains("already on element")) return false;
+    for (final String line : message.split("\n")) {
+      if (line.contains("Error") && !line.contains("already on element")) return false;
+    }
+    return true;
+  }
+
   public ClearCaseFileAttr loadFileAttr(final String path) throws VcsException {
+    final String elementPath = extractElementPath(path);
+    final ClearCaseFileAttr cachedAttr = ElementAttributeCache.get(elementPath);
+    if (cachedAttr != null) return cachedAttr;
     try {
       final InputStream input = executeAndReturnProcessInput(new String[] { "describe", insertDots(cutOffVersion(path), false) });
       try {
-        return ClearCaseFileAttr.readFrom(input);
+        final ClearCaseFileAttr attr = ClearCaseFileAttr.readFrom(input);
+        ElementAttributeCache.put(elementPath, attr);
+        return attr;
       } finally {
         try {
           input.close();
@@ -828,6 +1107,71 @@ public class ClearCaseConnection {
     }
   }
 
+  /**
+   * Loads the attributes of several files of the same directory, the ones which are not cached are described by
+   * a single "describe" for up to {@link #DESCRIBE_BATCH_SIZE} files
+   *
+   * @return path to the file attributes
+   */
+  @NotNull
+  public Map<String, ClearCaseFileAttr> loadFileAttrs(@NotNull final Collection<String> paths) throws VcsException {
+    final Map<String, ClearCaseFileAttr> result = new HashMap<String, ClearCaseFileAttr>();
+    final List<String> notCached = new ArrayList<String>();
+    for (final String path : paths) {
+      final ClearCaseFileAttr cachedAttr = ElementAttributeCache.get(extractElementPath(path));
+      if (cachedAttr != null) {
+        result.put(path, cachedAttr);
+      }
+      else {
+        notCached.add(path);
+      }
+    }
+
+    for (int from = 0; from < notCached.size(); from += DESCRIBE_BATCH_SIZE) {
+      final List<String> batch = notCached.subList(from, Math.min(notCached.size(), from + DESCRIBE_BATCH_SIZE));
+      if (batch.size() == 1) {
+        result.put(batch.get(0), loadFileAttr(batch.get(0)));
+        continue;
+      }
+
+      final String[] params = new String[batch.size() + 1];
+      params[0] = "describe";
+      for (int i = 0; i < batch.size(); i++) {
+        params[i + 1] = insertDots(cutOffVersion(batch.get(i)), false);
+      }
+
+      Map<String, ClearCaseFileAttr> attrs;
+      try {
+        final InputStream input = executeAndReturnProcessInput(params);
+        try {
+          attrs = ClearCaseFileAttr.readAllFrom(input);
+        } finally {
+          try {
+            input.close();
+          } catch (IOException e1) {
+            //ignore
+          }
+        }
+      } catch (IOException e) {
+        LOG.debug("ClearCase: failed to describe " + batch.size() + " elements at once, describing them one by one", e);
+        attrs = Collections.emptyMap();
+      }
+
+      for (final String path : batch) {
+        final String elementPath = extractElementPath(path);
+        final ClearCaseFileAttr attr = attrs.get(new File(elementPath).getName());
+        if (attr != null) {
+          ElementAttributeCache.put(elementPath, attr);
+          result.put(path, attr);
+        }
+        else {
+          result.put(path, loadFileAttr(path));
+        }
+      }
+    }
+    return result;
+  }
+
   private String cutOffVersion(final String path) {
     final int versionSep = path.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR);
     if (versionSep != -1) {
@@ -972,6 +1316,11 @@ public class ClearCaseConnection {
 
   @NotNull
   private List<SimpleDirectoryChildElement> doGetChildren(@NotNull final String dirPathWithVersion) throws VcsException {
+    if (DynamicViewReader.isEnabled(this)) {
+      final List<SimpleDirectoryChildElement> children = DynamicViewReader.listChildren(dirPathWithVersion);
+      if (children != null) return children;
+    }
+
     final List<SimpleDirectoryChildElement> subfiles = new ArrayList<SimpleDirectoryChildElement>();
 
     try {
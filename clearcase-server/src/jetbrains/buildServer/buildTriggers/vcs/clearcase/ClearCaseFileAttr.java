@@ -17,9 +17,12 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ClearCaseFileAttr {
   private final boolean myIsExecutable;
@@ -44,20 +47,72 @@ public class ClearCaseFileAttr {
 
   public static ClearCaseFileAttr readFrom(final InputStream input) throws IOException {
     final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    final AttrReader attrReader = new AttrReader();
     String line;
-    String fileType = null;
-    boolean executable = false;
     while ((line  = reader.readLine() ) != null) {
+      attrReader.processLine(line);
+    }
+
+
+    return attrReader.createAttr();
+  }
+
+  /**
+   * Reads the output of "describe" of several elements
+   *
+   * @return element name to its attributes
+   */
+  public static Map<String, ClearCaseFileAttr> readAllFrom(final InputStream input) throws IOException {
+    final Map<String, ClearCaseFileAttr> result = new HashMap<String, ClearCaseFileAttr>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    String elementName = null;
+    AttrReader attrReader = null;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.length() > 0 && !Character.isWhitespace(line.charAt(0))) {
+        if (elementName != null) {
+          result.put(elementName, attrReader.createAttr());
+        }
+        elementName = readElementName(line);
+        attrReader = new AttrReader();
+      }
+      else if (attrReader != null) {
+        attrReader.processLine(line);
+      }
+    }
+    if (elementName != null) {
+      result.put(elementName, attrReader.createAttr());
+    }
+    return result;
+  }
+
+  private static String readElementName(final String headerLine) {
+    final int start = headerLine.indexOf('"');
+    final int end = headerLine.lastIndexOf('"');
+    if (start == -1 || end <= start) return null;
+    String path = headerLine.substring(start + 1, end);
+    if (path.endsWith(CCParseUtil.CC_VERSION_SEPARATOR)) {
+      path = path.substring(0, path.length() - CCParseUtil.CC_VERSION_SEPARATOR.length());
+    }
+    return new File(path).getName();
+  }
+
+  private static class AttrReader {
+    private String myFileType;
+    private boolean myExecutable;
+
+    private void processLine(final String line) {
       if (line.startsWith(ELEMENT_TYPE)) {
-        fileType = line.substring(ELEMENT_TYPE.length());
+        myFileType = line.substring(ELEMENT_TYPE.length());
       }
       else if (line.startsWith(USER) || line.startsWith(GROUP) || line.startsWith(OTHER)) {
         String mode = line.substring(line.lastIndexOf(":"));
-        executable = executable || mode.contains("x");
+        myExecutable = myExecutable || mode.contains("x");
       }
     }
 
-
-    return new ClearCaseFileAttr(executable, "text_file".equals(fileType));
+    private ClearCaseFileAttr createAttr() {
+      return new ClearCaseFileAttr(myExecutable, "text_file".equals(myFileType));
+    }
   }
 }
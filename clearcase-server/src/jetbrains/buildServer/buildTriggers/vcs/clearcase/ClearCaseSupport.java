@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import jetbrains.buildServer.Used;
@@ -36,6 +37,7 @@ import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecPa
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.ClearCaseStructureCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.PatchCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.util.*;
@@ -66,6 +68,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   private static final Pattern COLON_OR_SEMICOLON_PATTERN = Pattern.compile("[;:]");
 
   private @Nullable ClearCaseStructureCache myCache;
+  private @NotNull LabelingQueue myLabelingQueue = createLabelingQueue(null);
 
   private static ClearCaseSupport ourDefault;
 
@@ -86,7 +89,10 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   @Autowired
-  public ClearCaseSupport(final @NotNull SBuildServer server, final @NotNull ServerPaths serverPaths, final @NotNull EventDispatcher<BuildServerListener> dispatcher) {
+  public ClearCaseSupport(final @NotNull SBuildServer server,
+                          final @NotNull ServerPaths serverPaths,
+                          final @NotNull EventDispatcher<BuildServerListener> dispatcher,
+                          final @NotNull VcsRootInstancesManager rootInstancesManager) {
     this();
     File cachesRootDir = new File(new File(serverPaths.getCachesDir()), "clearCase");
     if (!cachesRootDir.exists() && !cachesRootDir.mkdirs()) {
@@ -94,10 +100,29 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
       return;
     }
     myCache = new ClearCaseStructureCache(cachesRootDir, this);
+    FileContentCache.init(new File(new File(serverPaths.getCachesDir()), "clearCaseContents"));
     if (USE_CC_CACHE) {
       myCache.register(server, dispatcher);
     }
 
+    myLabelingQueue = createLabelingQueue(new File(new File(serverPaths.getCachesDir()), "clearCaseLabeling"));
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        myLabelingQueue.resume(new LabelingQueue.RootResolver() {
+          @Nullable
+          public VcsRoot findRoot(final long id, final boolean instance) {
+            return instance ? rootInstancesManager.findRootInstanceById(id) : server.getVcsManager().findRootById(id);
+          }
+        });
+      }
+
+      @Override
+      public void serverShutdown() {
+        myLabelingQueue.shutdown();
+      }
+    });
+
     server.registerExtension(BuildStartContextProcessor.class, this.getClass().getName(), this);
   }
 
@@ -315,15 +340,43 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   public void buildPatch(final VcsRoot root, final Revision fromVersion, final Revision toVersion, final PatchBuilder builder, final IncludeRule includeRule) throws IOException, VcsException {
     withConnection(root, includeRule, true, null, new ConnectionProcessor() {
       public void process(@NotNull final ClearCaseConnection connection) throws VcsException, IOException {
-        buildPatchForConnection(builder, fromVersion, toVersion, connection);
+        buildPatchForConnection(builder, fromVersion, toVersion, connection, root, includeRule);
       }
     });
   }
 
-  private void buildPatchForConnection(PatchBuilder builder, Revision fromVersion, Revision toVersion, ClearCaseConnection connection) throws IOException, VcsException {
+  private void buildPatchForConnection(PatchBuilder builder, Revision fromVersion, Revision toVersion, ClearCaseConnection connection,
+                                       VcsRoot root, IncludeRule includeRule) throws IOException, VcsException {
     try {
       final boolean useCache = USE_CC_CACHE && !connection.getConfigSpec().hasLabelBasedVersionSelector();
-      new CCPatchProvider(connection, useCache).buildPatch(builder, fromVersion, toVersion);
+      final CCPatchProvider provider = new CCPatchProvider(connection, useCache);
+      if (!useCache || fromVersion != null || myCache == null || !PatchCache.isEnabled()) {
+        provider.buildPatch(builder, fromVersion, toVersion);
+        return;
+      }
+
+      // the connection has already cleared the caches of the root if its config spec was changed
+      final PatchCache patchCache = myCache.getPatchCache();
+      final String ruleKey = includeRule.getFrom() + "=>" + includeRule.getTo();
+      if (patchCache.replay(root, ruleKey, toVersion, builder)) {
+        LOG.debug("Full patch of \"" + root.getName() + "\" at " + toVersion.asString() + " is taken from the cache");
+        return;
+      }
+      final PatchCache.Recorder recorder = patchCache.startRecording(root, ruleKey, toVersion);
+      boolean built = false;
+      try {
+        provider.setRecorder(recorder);
+        provider.buildPatch(builder, fromVersion, toVersion);
+        built = true;
+      }
+      finally {
+        if (built) {
+          recorder.commit();
+        }
+        else {
+          recorder.abort();
+        }
+      }
     }
     catch (final ExecutionException e) {
       throw new VcsException(e);
@@ -332,12 +385,29 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   
   private static byte[] getFileContent(final ClearCaseConnection connection, final String filePath) throws VcsException {
     try {
+      final String contentKey = FileContentCache.getKey(filePath);
+      final File cachedFile = contentKey == null ? null : FileContentCache.acquire(contentKey);
+      if (cachedFile != null) {
+        try {
+          return FileUtil.loadFileBytes(cachedFile);
+        } finally {
+          FileContentCache.release(contentKey, cachedFile);
+        }
+      }
+
       final File tempFile = FileUtil.createTempFile("cc", "tmp");
       FileUtil.delete(tempFile);
       try {
         connection.loadFileContent(tempFile, filePath);
         if (tempFile.isFile()) {
-          return FileUtil.loadFileBytes(tempFile);
+          final byte[] content = FileUtil.loadFileBytes(tempFile);
+          if (contentKey != null) {
+            final File putFile = FileContentCache.putAndAcquire(contentKey, tempFile);
+            if (putFile != null) {
+              FileContentCache.release(contentKey, putFile);
+            }
+          }
+          return content;
         } else {
           throw new VcsException("Cannot get content of " + filePath);
         }
@@ -453,7 +523,11 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     try {
       withConnection(root, IncludeRule.createDefaultInstance(), null, new ConnectionProcessor() {
         public void process(@NotNull final ClearCaseConnection connection) throws VcsException, IOException {
-          result.set(connection.getCurrentRevision().asString());
+          final Revision revision = connection.getCurrentRevision();
+          result.set(revision.asString());
+          if (USE_CC_CACHE && myCache != null) {
+            myCache.schedulePrebuild(root, revision);
+          }
         }
       });
     }
@@ -463,6 +537,29 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     return result.get();
   }
 
+  /**
+   * Builds the structure cache of the revision for the default checkout rules, used to prepare it in background
+   */
+  public void prepareStructureCache(@NotNull final VcsRoot root, @NotNull final Revision revision) throws VcsException, IOException {
+    withConnection(root, IncludeRule.createDefaultInstance(), true, null, new ConnectionProcessor() {
+      public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
+        if (connection.getConfigSpec().hasLabelBasedVersionSelector()) return;
+        connection.processAllVersions(revision, new VersionProcessor() {
+          public void processFile(final String fileFullPath, final String relPath, final String pname, final String version,
+                                  final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) {
+          }
+
+          public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version,
+                                       final ClearCaseConnection clearCaseConnection) {
+          }
+
+          public void finishProcessingDirectory() {
+          }
+        }, true, true);
+      }
+    });
+  }
+
   @Override
   public boolean isCurrentVersionExpensive() {
     return false;
@@ -735,19 +832,66 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   @NotNull
   public String label(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules) throws VcsException {
+    final LabelingQueue.Job job = myLabelingQueue.submit(root, label, version, checkoutRules, getVobName(root));
+    if (!LabelingQueue.isAsync()) {
+      myLabelingQueue.await(job);
+    }
+    return label;
+  }
+
+  @NotNull
+  private LabelingQueue createLabelingQueue(@Nullable final File dir) {
+    return new LabelingQueue(dir, new LabelingQueue.JobRunner() {
+      public void run(@NotNull final LabelingQueue.Job job) throws VcsException {
+        doLabel(job);
+      }
+    });
+  }
+
+  @NotNull
+  private static String getVobName(@NotNull final VcsRoot root) throws VcsException {
     try {
-      final Revision revision = Revision.fromNotNullString(version);
+      return getVobName(getViewPath(root).getRelativePathWithinTheView());
+    }
+    catch (IOException e) {
+      throw new VcsException(e);
+    }
+  }
+
+  /**
+   * @return name of the VOB tag the path within the view starts with, without the "vobs" directory of the UNIX views,
+   * so that the roots of the same VOB get the same name in the views of all platforms
+   */
+  @NotNull
+  static String getVobName(@NotNull final String relativePathWithinTheView) {
+    final List<String> segments = new ArrayList<String>();
+    for (final String segment : relativePathWithinTheView.replace('\\', '/').split("/")) {
+      if (segment.length() > 0) {
+        segments.add(segment);
+      }
+    }
+    if (segments.isEmpty()) return "";
+    if (segments.size() > 1 && segments.get(0).equals(Constants.VOBS_NAME_ONLY)) return segments.get(1);
+    return segments.get(0);
+  }
+
+  private void doLabel(@NotNull final LabelingQueue.Job job) throws VcsException {
+    final String label = job.getLabel();
+    final VcsRoot root = job.getRoot();
+    try {
+      final Revision revision = Revision.fromNotNullString(job.getRevision());
 
       createLabel(label, root);
 
-      final VersionProcessor labeler = getClearCaseLabeler(label);
-      final ConnectionProcessor childrenProcessor = getChildrenProcessor(revision, labeler);
+      final ConnectionProcessor childrenProcessor = getChildrenProcessor(revision, label, job.getLabeledCounter());
 
-      for (IncludeRule includeRule : checkoutRules.getRootIncludeRules()) {
+      final List<IncludeRule> includeRules = job.getCheckoutRules().getRootIncludeRules();
+      for (int i = job.getLabeledRules(); i < includeRules.size(); i++) {
+        final IncludeRule includeRule = includeRules.get(i);
         withConnection(root, includeRule, null, childrenProcessor);
-        withRootConnection(root, getParentsProcessor(revision, labeler, createPath(root, includeRule)));
+        withRootConnection(root, getParentsProcessor(revision, label, createPath(root, includeRule)));
+        myLabelingQueue.setLabeledRules(job, i + 1);
       }
-      return label;
     }
     catch (ParseException e) {
       throw new VcsException(e);
@@ -768,18 +912,25 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     }
   }
 
-  private ConnectionProcessor getParentsProcessor(final Revision version, final VersionProcessor labeler, final String path) {
+  private ConnectionProcessor getParentsProcessor(final Revision version, final String label, final String path) {
     return new ConnectionProcessor() {
       public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
-        connection.processAllParents(version, labeler, path);
+        connection.processAllParents(version, getClearCaseLabeler(label), path);
       }
     };
   }
 
-  private ConnectionProcessor getChildrenProcessor(final Revision version, final VersionProcessor labeler) {
+  private ConnectionProcessor getChildrenProcessor(final Revision version, final String label, final AtomicInteger progress) {
     return new ConnectionProcessor() {
       public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
-        connection.processAllVersions(version, labeler, true, true);
+        final BatchLabeler labeler = new BatchLabeler(connection, label, progress);
+        try {
+          connection.processAllVersions(version, labeler, true, true);
+          labeler.finish();
+        }
+        finally {
+          labeler.close();
+        }
       }
     };
   }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads the versions through the version-extended paths of a dynamic view: {@code file@@\main\7} is a readable
+ * file and {@code dir@@\main\3} is a listable directory there, so no cleartool command is needed. The elements
+ * under a directory version are shown as their version trees, the type of an element is taken from the initial
+ * version of one of its branches.
+ */
+class DynamicViewReader {
+  private static final Logger LOG = Logger.getLogger(DynamicViewReader.class);
+
+  static final String DISABLE_PROPERTY = "clearcase.disable.dynamic.view.direct.reads";
+  private static final String INITIAL_VERSION = "0";
+
+  private DynamicViewReader() {}
+
+  static boolean isEnabled(@NotNull final ClearCaseConnection connection) {
+    return isEnabled(connection.getConfigSpec().isViewDynamic());
+  }
+
+  /**
+   * @return true if the versions of the view are read directly, otherwise cleartool is used
+   */
+  static boolean isEnabled(final boolean dynamicView) {
+    return dynamicView && !TeamCityProperties.getBoolean(DISABLE_PROPERTY);
+  }
+
+  /**
+   * @return version-extended file of the version or null if it cannot be read directly
+   */
+  @Nullable
+  static File getVersionFile(@NotNull final String versionPath) {
+    final File file = new File(CCPathElement.normalizeSeparators(versionPath));
+    return file.isFile() ? file : null;
+  }
+
+  static void copy(@NotNull final File from, @NotNull final File to) throws IOException {
+    final FileChannel input = new FileInputStream(from).getChannel();
+    try {
+      final FileChannel output = new FileOutputStream(to).getChannel();
+      try {
+        final long size = input.size();
+        long position = 0;
+        while (position < size) {
+          position += input.transferTo(position, size - position, output);
+        }
+      }
+      finally {
+        output.close();
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * @return elements of the directory version or null if the directory cannot be listed directly
+   */
+  @Nullable
+  static List<SimpleDirectoryChildElement> listChildren(@NotNull final String dirPathWithVersion) {
+    final File dir = new File(CCPathElement.normalizeSeparators(dirPathWithVersion));
+    final File[] children = dir.listFiles();
+    if (children == null) return null;
+
+    final List<SimpleDirectoryChildElement> result = new ArrayList<SimpleDirectoryChildElement>(children.length);
+    for (final File child : children) {
+      final DirectoryChildElement.Type type = getElementType(child);
+      if (type == null) {
+        LOG.debug("ClearCase: cannot determine the element type of " + child + ", " + dirPathWithVersion + " is listed by cleartool");
+        return null;
+      }
+      result.add(new SimpleDirectoryChildElement(child.getPath(), type));
+    }
+    return result;
+  }
+
+  @Nullable
+  private static DirectoryChildElement.Type getElementType(@NotNull final File versionTree) {
+    final File[] branches = versionTree.listFiles();
+    if (branches == null) return null;
+    for (final File branch : branches) {
+      final File initialVersion = new File(branch, INITIAL_VERSION);
+      if (initialVersion.isDirectory()) return DirectoryChildElement.Type.DIRECTORY;
+      if (initialVersion.isFile()) return DirectoryChildElement.Type.FILE;
+    }
+    return null;
+  }
+}
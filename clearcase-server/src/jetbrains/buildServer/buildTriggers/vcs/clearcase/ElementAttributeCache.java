@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers the element type and protection of the elements between the connections. They are element properties
+ * which almost never change, so an element is described again only after an event of the element is seen in the history.
+ */
+class ElementAttributeCache {
+  private static final boolean ENABLED = !TeamCityProperties.getBoolean("clearcase.disable.element.attribute.cache");
+  private static final int MAX_ELEMENTS = TeamCityProperties.getInteger("clearcase.element.attribute.cache.size", 100000);
+
+  @NotNull private static final Map<String, ClearCaseFileAttr> ourAttributes = new LinkedHashMap<String, ClearCaseFileAttr>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, ClearCaseFileAttr> eldest) {
+      return size() > MAX_ELEMENTS;
+    }
+  };
+
+  private ElementAttributeCache() {}
+
+  /**
+   * @param elementPath path of the element without versions
+   */
+  @Nullable
+  static ClearCaseFileAttr get(@NotNull final String elementPath) {
+    if (!ENABLED) return null;
+    synchronized (ourAttributes) {
+      return ourAttributes.get(elementPath);
+    }
+  }
+
+  static void put(@NotNull final String elementPath, @NotNull final ClearCaseFileAttr attr) {
+    if (!ENABLED) return;
+    synchronized (ourAttributes) {
+      ourAttributes.put(elementPath, attr);
+    }
+  }
+
+  static void invalidate(@NotNull final String elementPath) {
+    if (!ENABLED) return;
+    synchronized (ourAttributes) {
+      ourAttributes.remove(elementPath);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the contents of the fetched file versions on disk, so that the patches and the content requests do not run
+ * "get" for the same version again. The contents of a version never change, the versions of an element are dropped
+ * only when an element event other than checkin is seen, as the name can denote another element after it. The least
+ * recently used contents are removed when the total size exceeds the limit.
+ */
+class FileContentCache {
+  private static final Logger LOG = Logger.getLogger(FileContentCache.class);
+
+  private static final boolean ENABLED = !TeamCityProperties.getBoolean("clearcase.disable.file.content.cache");
+  private static final long MAX_SIZE = TeamCityProperties.getInteger("clearcase.file.content.cache.max.size.mb", 512) * 1024L * 1024L;
+
+  @NotNull private static final Map<String, Entry> ourEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  @Nullable private static volatile File ourDir;
+  private static long ourSize;
+
+  @NotNull private static final AtomicLong ourHits = new AtomicLong();
+  @NotNull private static final AtomicLong ourMisses = new AtomicLong();
+
+  private FileContentCache() {}
+
+  /**
+   * Starts the cache in the directory, the contents left by the previous server run are removed
+   */
+  static void init(@NotNull final File dir) {
+    if (!ENABLED || MAX_SIZE <= 0) return;
+    FileUtil.delete(dir);
+    if (!dir.mkdirs()) {
+      LOG.warn("Cannot create ClearCase file content cache directory " + dir);
+      return;
+    }
+    synchronized (ourEntries) {
+      ourDir = dir;
+      ourEntries.clear();
+      ourSize = 0;
+    }
+  }
+
+  /**
+   * @return cache key of the version or null if the path does not denote a particular version or the cache is off
+   */
+  @Nullable
+  static String getKey(@NotNull final String versionPath) {
+    if (ourDir == null) return null;
+    final String key = normalizePath(versionPath);
+    final int versionSep = key.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR);
+    if (versionSep == -1) return null;
+    final String versionNumber = key.substring(key.lastIndexOf(File.separatorChar) + 1);
+    if (versionNumber.length() == 0 || key.lastIndexOf(File.separatorChar) < versionSep) return null;
+    for (int i = 0; i < versionNumber.length(); i++) {
+      if (!Character.isDigit(versionNumber.charAt(i))) return null;
+    }
+    return key;
+  }
+
+  /**
+   * @return file with the content of the version, it is kept until {@link #release} is called, or null if the version is not cached
+   */
+  @Nullable
+  static File acquire(@NotNull final String key) {
+    synchronized (ourEntries) {
+      final Entry entry = ourEntries.get(key);
+      if (entry == null) {
+        ourMisses.incrementAndGet();
+        return null;
+      }
+      ourHits.incrementAndGet();
+      entry.myReaders++;
+      return entry.myFile;
+    }
+  }
+
+  static void release(@NotNull final String key, @NotNull final File file) {
+    synchronized (ourEntries) {
+      final Entry entry = ourEntries.get(key);
+      if (entry != null && entry.myFile.equals(file)) {
+        entry.myReaders--;
+        return;
+      }
+    }
+    // the entry was removed while it was read
+    FileUtil.delete(file);
+  }
+
+  /**
+   * Moves the fetched content of the version to the cache
+   *
+   * @return acquired cached file or null if the content was not cached, the fetched file is left in place then
+   */
+  @Nullable
+  static File putAndAcquire(@NotNull final String key, @NotNull final File content) {
+    final File dir = ourDir;
+    if (dir == null || content.length() > MAX_SIZE) return null;
+
+    final File cacheFile = new File(dir, Integer.toHexString(key.hashCode()) + "_" + System.nanoTime());
+    if (!moveFile(content, cacheFile)) return null;
+
+    synchronized (ourEntries) {
+      final Entry existing = ourEntries.get(key);
+      if (existing != null) {
+        FileUtil.delete(cacheFile);
+        existing.myReaders++;
+        return existing.myFile;
+      }
+      final Entry entry = new Entry(cacheFile, getElementPath(key));
+      entry.myReaders++;
+      ourEntries.put(key, entry);
+      ourSize += entry.myLength;
+      evict();
+      return cacheFile;
+    }
+  }
+
+  /**
+   * Drops the cached versions of the element, its name can denote another element after the event
+   * @param elementPath path of the element as reported by the history, with or without the version separator
+   */
+  static void invalidateElement(@NotNull final String elementPath) {
+    if (ourDir == null) return;
+    final String normalizedPath = getElementPath(normalizePath(elementPath));
+    synchronized (ourEntries) {
+      final Iterator<Entry> it = ourEntries.values().iterator();
+      while (it.hasNext()) {
+        final Entry entry = it.next();
+        if (entry.myElementPath.equals(normalizedPath)) {
+          it.remove();
+          remove(entry);
+        }
+      }
+    }
+  }
+
+  @NotNull
+  static String getStatistics() {
+    synchronized (ourEntries) {
+      return "hits: " + ourHits.get() + ", misses: " + ourMisses.get() + ", versions: " + ourEntries.size() + ", size: " + ourSize;
+    }
+  }
+
+  private static void evict() {
+    if (ourSize <= MAX_SIZE) return;
+    final Iterator<Entry> it = ourEntries.values().iterator();
+    while (ourSize > MAX_SIZE && it.hasNext()) {
+      final Entry entry = it.next();
+      if (entry.myReaders > 0) continue;
+      it.remove();
+      remove(entry);
+    }
+    LOG.debug("ClearCase file content cache size limit exceeded, " + getStatistics());
+  }
+
+  private static void remove(@NotNull final Entry entry) {
+    ourSize -= entry.myLength;
+    if (entry.myReaders == 0) {
+      FileUtil.delete(entry.myFile);
+    }
+  }
+
+  @NotNull
+  private static String normalizePath(@NotNull final String path) {
+    return CCPathElement.removeUnneededDots(CCPathElement.normalizeSeparators(path));
+  }
+
+  /**
+   * @param key path normalized by {@link #normalizePath}
+   */
+  @NotNull
+  private static String getElementPath(@NotNull final String key) {
+    return CCPathElement.createPathWithoutVersions(CCPathElement.splitIntoPathElements(key));
+  }
+
+  private static boolean moveFile(@NotNull final File from, @NotNull final File to) {
+    if (from.renameTo(to)) return true;
+    try {
+      final InputStream input = new FileInputStream(from);
+      try {
+        final OutputStream output = new FileOutputStream(to);
+        try {
+          FileUtil.copyStreams(input, output);
+        }
+        finally {
+          output.close();
+        }
+      }
+      finally {
+        input.close();
+      }
+      return true;
+    }
+    catch (final IOException e) {
+      LOG.debug("Cannot put " + from + " to ClearCase file content cache", e);
+      FileUtil.delete(to);
+      return false;
+    }
+  }
+
+  private static class Entry {
+    @NotNull private final File myFile;
+    @NotNull private final String myElementPath;
+    private final long myLength;
+    private int myReaders;
+
+    private Entry(@NotNull final File file, @NotNull final String elementPath) {
+      myFile = file;
+      myElementPath = elementPath;
+      myLength = file.length();
+    }
+  }
+}
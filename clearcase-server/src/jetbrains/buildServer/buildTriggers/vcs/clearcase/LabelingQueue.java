@@ -0,0 +1,455 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runs the labeling jobs. At most {@code clearcase.labeling.threads} jobs run at once and at most
+ * {@code clearcase.labeling.vob.concurrency} of them label the same VOB. A request for the label and revision
+ * which is already queued or running joins that job. The queued and running jobs are kept in files, so the jobs
+ * interrupted by a server restart are run again after it. A job file records how many include rules are labeled,
+ * a resumed job starts from the first rule not labeled, the labels are put with -replace so repeating it is safe.
+ * The progress of the running jobs is logged every 30 seconds with the rate and the estimated time left,
+ * the estimation is based on the number of elements the previous job of the root labeled. When the labeling requests
+ * do not wait for the jobs, a failure is only logged.
+ */
+class LabelingQueue {
+  private static final Logger LOG = Logger.getLogger(LabelingQueue.class);
+
+  private static final boolean ASYNC = TeamCityProperties.getBoolean("clearcase.labeling.async");
+  private static final int THREADS = Math.max(1, TeamCityProperties.getInteger("clearcase.labeling.threads", 4));
+  private static final int VOB_CONCURRENCY = Math.max(1, TeamCityProperties.getInteger("clearcase.labeling.vob.concurrency", 1));
+  private static final long PROGRESS_INTERVAL = 30;
+
+  private static final String JOB_SUFFIX = ".job";
+  private static final String TOTALS_FILE_NAME = "totals";
+  private static final String ROOT_ID = "root.id";
+  private static final String ROOT_INSTANCE = "root.instance";
+  private static final String LABEL = "label";
+  private static final String REVISION = "revision";
+  private static final String CHECKOUT_RULES = "checkout.rules";
+  private static final String VOB = "vob";
+  private static final String LABELED_RULES = "labeled.rules";
+
+  interface JobRunner {
+    void run(@NotNull Job job) throws VcsException;
+  }
+
+  interface RootResolver {
+    /**
+     * @param instance true if the id is the id of a {@link VcsRootInstance}, false if it is the id of a VCS root
+     */
+    @Nullable
+    VcsRoot findRoot(long id, boolean instance);
+  }
+
+  @Nullable private final File myDir;
+  @NotNull private final JobRunner myRunner;
+  @NotNull private final Map<String, Job> myJobs = new HashMap<String, Job>();
+  @NotNull private final LinkedList<Job> myQueued = new LinkedList<Job>();
+  @NotNull private final Map<String, Integer> myRunningPerVob = new HashMap<String, Integer>();
+  @NotNull private final Properties myTotals = new Properties();
+  @Nullable private ExecutorService myExecutor;
+  @Nullable private ScheduledExecutorService myProgressExecutor;
+  private volatile boolean myShutdown;
+
+  /**
+   * @param dir directory for the job files, the jobs are not kept if it is null
+   */
+  LabelingQueue(@Nullable final File dir, @NotNull final JobRunner runner) {
+    myDir = dir != null && (dir.isDirectory() || dir.mkdirs()) ? dir : null;
+    myRunner = runner;
+    if (myDir != null) {
+      load(new File(myDir, TOTALS_FILE_NAME), myTotals);
+    }
+  }
+
+  /**
+   * @return true if the labeling requests return before the label is put
+   */
+  static boolean isAsync() {
+    return ASYNC;
+  }
+
+  /**
+   * @return the job which puts the label, a new one or the queued or running job of the same label and revision
+   * @throws VcsException if the queue is shut down
+   */
+  @NotNull
+  Job submit(@NotNull final VcsRoot root,
+             @NotNull final String label,
+             @NotNull final String revision,
+             @NotNull final CheckoutRules checkoutRules,
+             @NotNull final String vob) throws VcsException {
+    return submit(root, label, revision, checkoutRules, vob, 0);
+  }
+
+  @NotNull
+  private synchronized Job submit(@NotNull final VcsRoot root,
+                                  @NotNull final String label,
+                                  @NotNull final String revision,
+                                  @NotNull final CheckoutRules checkoutRules,
+                                  @NotNull final String vob,
+                                  final int labeledRules) throws VcsException {
+    if (myShutdown) {
+      throw new VcsException("Cannot put label \"" + label + "\": the server is shutting down");
+    }
+    final Job job = new Job(root, label, revision, checkoutRules, vob);
+    job.myLabeledRules = labeledRules;
+    final Job existing = myJobs.get(job.myKey);
+    if (existing != null) {
+      LOG.debug("ClearCase: labeling " + existing + " is already queued");
+      return existing;
+    }
+    myJobs.put(job.myKey, job);
+    myQueued.add(job);
+    save(job);
+    schedule();
+    return job;
+  }
+
+  /**
+   * Waits until the job is finished or is interrupted by the shutdown
+   */
+  void await(@NotNull final Job job) throws VcsException {
+    try {
+      job.myDone.await();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while labeling", e);
+    }
+    final Throwable error = job.myError;
+    if (error instanceof VcsException) throw (VcsException)error;
+    if (error != null) throw new VcsException(error);
+  }
+
+  /**
+   * Queues the jobs kept from the previous server run
+   */
+  void resume(@NotNull final RootResolver resolver) {
+    if (myDir == null) return;
+    final File[] files = myDir.listFiles();
+    if (files == null) return;
+    for (final File file : files) {
+      if (!file.getName().endsWith(JOB_SUFFIX)) continue;
+      final Properties properties = new Properties();
+      load(file, properties);
+      FileUtil.delete(file);
+      try {
+        final VcsRoot root = resolver.findRoot(Long.parseLong(properties.getProperty(ROOT_ID)), Boolean.parseBoolean(properties.getProperty(ROOT_INSTANCE)));
+        if (root == null) continue;
+        final int labeledRules = Integer.parseInt(properties.getProperty(LABELED_RULES, "0"));
+        final Job job = submit(root, properties.getProperty(LABEL), properties.getProperty(REVISION),
+                               new CheckoutRules(properties.getProperty(CHECKOUT_RULES)), properties.getProperty(VOB), labeledRules);
+        LOG.info("ClearCase: labeling " + job + " interrupted by the server restart is queued again" +
+                 (labeledRules > 0 ? ", " + labeledRules + " labeled include rules are skipped" : ""));
+      }
+      catch (final VcsException e) {
+        LOG.warn("ClearCase: cannot resume labeling job " + file + ": " + e.getMessage());
+      }
+      catch (final RuntimeException e) {
+        LOG.warn("ClearCase: cannot resume labeling job " + file + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Records that the first include rules of the job are labeled, a resumed job skips them
+   */
+  synchronized void setLabeledRules(@NotNull final Job job, final int labeledRules) {
+    job.myLabeledRules = labeledRules;
+    if (job.myFile != null) {
+      save(job);
+    }
+  }
+
+  /**
+   * @return numbers of the jobs and the progress of the running ones, it is logged every 30 seconds while there are jobs
+   */
+  @NotNull
+  synchronized String getStatistics() {
+    final StringBuilder result = new StringBuilder("queued: ").append(myQueued.size()).append(", running: ").append(myJobs.size() - myQueued.size());
+    for (final Job job : myJobs.values()) {
+      if (job.myStartTime > 0) {
+        result.append("; ").append(job).append(": ").append(job.getProgress());
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Stops the jobs, the files of the jobs not finished are kept for the next server run. The jobs not started
+   * are finished with an error, so the requests waiting for them return.
+   */
+  synchronized void shutdown() {
+    myShutdown = true;
+    for (final Job job : myJobs.values()) {
+      if (job.myStartTime == 0) {
+        job.myError = new VcsException("Labeling " + job + " is interrupted by the server shutdown, it will be run again after the server start");
+        job.myDone.countDown();
+      }
+    }
+    myQueued.clear();
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+    }
+    if (myProgressExecutor != null) {
+      myProgressExecutor.shutdownNow();
+    }
+  }
+
+  private synchronized void schedule() {
+    if (myShutdown) return;
+    if (myExecutor == null) {
+      myExecutor = Executors.newFixedThreadPool(THREADS, createThreadFactory("ClearCase labeling"));
+      myProgressExecutor = Executors.newSingleThreadScheduledExecutor(createThreadFactory("ClearCase labeling progress"));
+      myProgressExecutor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          reportProgress();
+        }
+      }, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+    }
+    final Iterator<Job> it = myQueued.iterator();
+    while (it.hasNext()) {
+      final Job job = it.next();
+      final Integer running = myRunningPerVob.get(job.myVob);
+      if (running != null && running >= VOB_CONCURRENCY) continue;
+      it.remove();
+      myRunningPerVob.put(job.myVob, running == null ? 1 : running + 1);
+      myExecutor.execute(new Runnable() {
+        public void run() {
+          runJob(job);
+        }
+      });
+    }
+  }
+
+  private void runJob(@NotNull final Job job) {
+    synchronized (this) {
+      if (myShutdown) return;
+      job.myStartTime = System.currentTimeMillis();
+    }
+    job.myExpectedTotal = getExpectedTotal(job);
+    try {
+      myRunner.run(job);
+      LOG.info("ClearCase: labeling " + job + " finished, " + job.getProgress());
+      synchronized (this) {
+        myTotals.setProperty(String.valueOf(job.myRoot.getId()), String.valueOf(job.myLabeled.get()));
+        if (myDir != null) {
+          store(new File(myDir, TOTALS_FILE_NAME), myTotals);
+        }
+      }
+    }
+    catch (final Throwable e) {
+      job.myError = e;
+      LOG.warn("ClearCase: labeling " + job + " failed: " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+    }
+    finally {
+      synchronized (this) {
+        myJobs.remove(job.myKey);
+        final int running = myRunningPerVob.get(job.myVob) - 1;
+        if (running == 0) {
+          myRunningPerVob.remove(job.myVob);
+        }
+        else {
+          myRunningPerVob.put(job.myVob, running);
+        }
+        if (job.myFile != null && !myShutdown) {
+          FileUtil.delete(job.myFile);
+        }
+        schedule();
+      }
+      job.myDone.countDown();
+    }
+  }
+
+  private synchronized void reportProgress() {
+    if (myJobs.isEmpty()) return;
+    LOG.info("ClearCase labeling jobs " + getStatistics());
+  }
+
+  private synchronized int getExpectedTotal(@NotNull final Job job) {
+    try {
+      return Integer.parseInt(myTotals.getProperty(String.valueOf(job.myRoot.getId()), "0"));
+    }
+    catch (final NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private void save(@NotNull final Job job) {
+    if (myDir == null) return;
+    if (job.myFile == null) {
+      job.myFile = new File(myDir, Integer.toHexString(job.myKey.hashCode()) + "_" + System.nanoTime() + JOB_SUFFIX);
+    }
+    final Properties properties = new Properties();
+    properties.setProperty(ROOT_ID, String.valueOf(job.myRoot.getId()));
+    properties.setProperty(ROOT_INSTANCE, String.valueOf(job.myRoot instanceof VcsRootInstance));
+    properties.setProperty(LABEL, job.myLabel);
+    properties.setProperty(REVISION, job.myRevision);
+    properties.setProperty(CHECKOUT_RULES, job.myCheckoutRules.getAsString());
+    properties.setProperty(VOB, job.myVob);
+    properties.setProperty(LABELED_RULES, String.valueOf(job.myLabeledRules));
+    store(job.myFile, properties);
+  }
+
+  private static void load(@NotNull final File file, @NotNull final Properties properties) {
+    if (!file.isFile()) return;
+    try {
+      final InputStream input = new FileInputStream(file);
+      try {
+        properties.load(input);
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (final IOException e) {
+      LOG.warn("ClearCase: cannot read " + file + ": " + e.getMessage());
+    }
+  }
+
+  private static void store(@NotNull final File file, @NotNull final Properties properties) {
+    try {
+      final OutputStream output = new FileOutputStream(file);
+      try {
+        properties.store(output, null);
+      }
+      finally {
+        output.close();
+      }
+    }
+    catch (final IOException e) {
+      LOG.warn("ClearCase: cannot write " + file + ": " + e.getMessage());
+    }
+  }
+
+  @NotNull
+  private static ThreadFactory createThreadFactory(@NotNull final String threadName) {
+    return new ThreadFactory() {
+      private final AtomicInteger myCount = new AtomicInteger();
+
+      public Thread newThread(@NotNull final Runnable runnable) {
+        final Thread thread = new Thread(runnable, threadName + " " + myCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Request to put the label on the revision of the root
+   */
+  static class Job {
+    @NotNull private final VcsRoot myRoot;
+    @NotNull private final String myLabel;
+    @NotNull private final String myRevision;
+    @NotNull private final CheckoutRules myCheckoutRules;
+    @NotNull private final String myVob;
+    @NotNull private final String myKey;
+    @NotNull private final AtomicInteger myLabeled = new AtomicInteger();
+    @NotNull private final CountDownLatch myDone = new CountDownLatch(1);
+    @Nullable private File myFile;
+    private volatile long myStartTime;
+    private volatile int myExpectedTotal;
+    private volatile int myLabeledRules;
+    @Nullable private volatile Throwable myError;
+
+    private Job(@NotNull final VcsRoot root,
+                @NotNull final String label,
+                @NotNull final String revision,
+                @NotNull final CheckoutRules checkoutRules,
+                @NotNull final String vob) {
+      myRoot = root;
+      myLabel = label;
+      myRevision = revision;
+      myCheckoutRules = checkoutRules;
+      myVob = vob;
+      myKey = root.getId() + "\n" + label + "\n" + revision + "\n" + checkoutRules.getAsString();
+    }
+
+    @NotNull
+    VcsRoot getRoot() {
+      return myRoot;
+    }
+
+    @NotNull
+    String getLabel() {
+      return myLabel;
+    }
+
+    @NotNull
+    String getRevision() {
+      return myRevision;
+    }
+
+    @NotNull
+    CheckoutRules getCheckoutRules() {
+      return myCheckoutRules;
+    }
+
+    /**
+     * @return number of the first include rules labeled before the job was interrupted by the server restart
+     */
+    int getLabeledRules() {
+      return myLabeledRules;
+    }
+
+    /**
+     * @return counter of the labeled elements
+     */
+    @NotNull
+    AtomicInteger getLabeledCounter() {
+      return myLabeled;
+    }
+
+    /**
+     * @return labeled elements, elements per second and the estimated time left if the previous total is known
+     */
+    @NotNull
+    String getProgress() {
+      final int labeled = myLabeled.get();
+      final long seconds = Math.max(1, (System.currentTimeMillis() - myStartTime) / 1000);
+      final double rate = (double)labeled / seconds;
+      final StringBuilder result = new StringBuilder();
+      result.append(labeled).append(" elements in ").append(seconds).append(" s, ").append(String.format("%.1f", rate)).append(" elements/s");
+      if (myExpectedTotal > labeled && rate > 0) {
+        result.append(", about ").append((long)((myExpectedTotal - labeled) / rate)).append(" s left of ").append(myExpectedTotal).append(" elements");
+      }
+      return result.toString();
+    }
+
+    @Override
+    public String toString() {
+      return "\"" + myLabel + "\" of \"" + myRoot.getName() + "\" at " + myRevision;
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Walks the view tree with several cleartool sessions at once. The directories above the fan-out depth are expanded
+ * by the calling thread, every subtree at the fan-out depth is walked by a worker into a buffer, and the buffers are
+ * replayed to the processor in the directory order, so the processor gets the same events as with the serial walk.
+ * <p/>
+ * The walk is off by default. When enabled, trees with fewer subtrees at the fan-out depth than the threshold are
+ * walked serially without starting worker sessions. All buffers of a walk share a limit of events, a subtree
+ * which does not fit it is dropped by its worker and walked serially when its turn comes.
+ */
+class ParallelTraversal {
+  private static final Logger LOG = Logger.getInstance(ParallelTraversal.class.getName());
+
+  private final ClearCaseConnection myConnection;
+  private final int myThreads = TeamCityProperties.getInteger("clearcase.structure.traversal.threads", 1);
+  private final int myFanOutDepth = Math.max(1, TeamCityProperties.getInteger("clearcase.structure.traversal.fanout.depth", 2));
+  private final int myMinSubtrees = TeamCityProperties.getInteger("clearcase.structure.traversal.min.subtrees", 8);
+  @NotNull private final EventBudget myBudget = new EventBudget(TeamCityProperties.getInteger("clearcase.structure.traversal.max.buffered.events", 50000));
+
+  ParallelTraversal(@NotNull final ClearCaseConnection connection) {
+    myConnection = connection;
+  }
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getInteger("clearcase.structure.traversal.threads", 1) > 1;
+  }
+
+  public void traverse(@NotNull final String dirPath, @NotNull final String relativePath, @NotNull final VersionProcessor processor) throws VcsException {
+    final List<Node> subtrees = new ArrayList<Node>();
+    final List<Node> nodes = expand(dirPath, relativePath, 1, subtrees);
+    if (subtrees.size() < myMinSubtrees) {
+      emit(nodes, processor, myConnection);
+      return;
+    }
+
+    final WorkerSessions workers = new WorkerSessions(myConnection, Math.min(myThreads, subtrees.size()), "ClearCase structure traversal");
+    try {
+      for (final Node subtree : subtrees) {
+        subtree.mySubtree = workers.submit(new Callable<BufferingVersionProcessor>() {
+          public BufferingVersionProcessor call() throws Exception {
+            final BufferingVersionProcessor buffer = new BufferingVersionProcessor(myBudget);
+            try {
+              myConnection.processAllVersionsInternal(subtree.myFullPath, buffer, subtree.myRelPath);
+              return buffer;
+            }
+            catch (final BufferOverflowException e) {
+              buffer.release();
+              return null;
+            }
+          }
+        });
+      }
+      emit(nodes, processor, myConnection);
+    }
+    finally {
+      workers.shutdown();
+    }
+  }
+
+  /**
+   * @param subtrees collects the directories at the fan-out depth, which are not expanded
+   */
+  @NotNull
+  private List<Node> expand(@NotNull final String dirPath,
+                            @NotNull final String relativePath,
+                            final int depth,
+                            @NotNull final List<Node> subtrees) throws VcsException {
+    final List<DirectoryChildElement> subfiles = CCParseUtil.readDirectoryVersionContent(myConnection, dirPath);
+    final List<Node> nodes = new ArrayList<Node>(subfiles.size());
+    final Map<String, ClearCaseFileAttr> fileAttrs = myConnection.loadFileAttrs(subfiles);
+
+    for (final DirectoryChildElement subfile : subfiles) {
+      final String fileFullPath = CCPathElement.removeUnneededDots(subfile.getFullPath());
+      final String newRelPath = ClearCaseConnection.getChildRelativePath(relativePath, subfile);
+      final String elemPath = myConnection.getViewWholePath() + File.separator + newRelPath;
+      final Node node = new Node(fileFullPath, newRelPath, elemPath, subfile.getStringVersion());
+      if (subfile.getType() == DirectoryChildElement.Type.FILE) {
+        final ClearCaseFileAttr fileAttr = fileAttrs.get(subfile.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
+        node.myFile = true;
+        node.myText = fileAttr.isIsText();
+        node.myExecutable = fileAttr.isIsExecutable();
+      }
+      else if (depth < myFanOutDepth) {
+        node.myChildren = expand(fileFullPath, newRelPath, depth + 1, subtrees);
+      }
+      else {
+        subtrees.add(node);
+      }
+      nodes.add(node);
+    }
+    return nodes;
+  }
+
+  /**
+   * Passes the events of the nodes to the processor in the order of the serial walk. The subtrees which were not
+   * buffered are walked with the connection's own session.
+   */
+  static void emit(@NotNull final List<Node> nodes, @NotNull final VersionProcessor processor, final ClearCaseConnection connection) throws VcsException {
+    for (final Node node : nodes) {
+      if (node.myFile) {
+        processor.processFile(node.myFullPath, node.myRelPath, node.myElemPath, node.myVersion, connection, node.myText, node.myExecutable);
+        continue;
+      }
+      processor.processDirectory(node.myFullPath, node.myRelPath, node.myElemPath, node.myVersion, connection);
+      try {
+        if (node.myChildren != null) {
+          emit(node.myChildren, processor, connection);
+          continue;
+        }
+        final BufferingVersionProcessor subtree = node.mySubtree == null ? null : getSubtree(node);
+        if (subtree == null) {
+          connection.processAllVersionsInternal(node.myFullPath, processor, node.myRelPath);
+          continue;
+        }
+        try {
+          subtree.replay(processor, connection);
+        }
+        finally {
+          subtree.release();
+        }
+      }
+      finally {
+        processor.finishProcessingDirectory();
+      }
+    }
+  }
+
+  /**
+   * @return buffered events of the subtree, null if they did not fit the limit
+   */
+  @Nullable
+  private static BufferingVersionProcessor getSubtree(@NotNull final Node node) throws VcsException {
+    try {
+      //noinspection ConstantConditions
+      return node.mySubtree.get();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while reading the directory " + node.myFullPath, e);
+    }
+    catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof VcsException) {
+        throw (VcsException)cause;
+      }
+      LOG.debug("Failed to read the directory " + node.myFullPath, cause);
+      throw new VcsException(cause);
+    }
+  }
+
+  static class Node {
+    private final String myFullPath;
+    private final String myRelPath;
+    private final String myElemPath;
+    private final String myVersion;
+    boolean myFile;
+    boolean myText;
+    boolean myExecutable;
+    @Nullable List<Node> myChildren;
+    @Nullable Future<BufferingVersionProcessor> mySubtree;
+
+    Node(final String fullPath, final String relPath, final String elemPath, final String version) {
+      myFullPath = fullPath;
+      myRelPath = relPath;
+      myElemPath = elemPath;
+      myVersion = version;
+    }
+  }
+
+  /**
+   * Number of events kept in all buffers of a walk
+   */
+  static class EventBudget {
+    @NotNull private final AtomicInteger myEvents = new AtomicInteger();
+    private final int myMaxEvents;
+
+    EventBudget(final int maxEvents) {
+      myMaxEvents = maxEvents;
+    }
+
+    int getEvents() {
+      return myEvents.get();
+    }
+  }
+
+  static class BufferOverflowException extends RuntimeException {
+    BufferOverflowException() {
+      super("Too many buffered events");
+    }
+  }
+
+  /**
+   * Keeps the events of a subtree walk until they can be passed on in order
+   */
+  static class BufferingVersionProcessor implements VersionProcessor {
+    private static final byte FILE = 0;
+    private static final byte TEXT_FILE = 1;
+    private static final byte EXECUTABLE_FILE = 2;
+    private static final byte TEXT_EXECUTABLE_FILE = 3;
+    private static final byte DIRECTORY = 4;
+    private static final byte FINISH_DIRECTORY = 5;
+
+    @NotNull private final EventBudget myBudget;
+    private final List<String> myStrings = new ArrayList<String>();
+    private byte[] myEvents = new byte[64];
+    private int myEventCount;
+    private int myReservedEvents;
+
+    BufferingVersionProcessor(@NotNull final EventBudget budget) {
+      myBudget = budget;
+    }
+
+    public void processFile(final String fileFullPath,
+                            final String relPath,
+                            final String pname,
+                            final String version,
+                            final ClearCaseConnection clearCaseConnection,
+                            final boolean text,
+                            final boolean executable) throws VcsException {
+      addEvent((byte)(FILE | (text ? TEXT_FILE : 0) | (executable ? EXECUTABLE_FILE : 0)));
+      addStrings(fileFullPath, relPath, pname, version);
+    }
+
+    public void processDirectory(final String fileFullPath,
+                                 final String relPath,
+                                 final String pname,
+                                 final String version,
+                                 final ClearCaseConnection clearCaseConnection) throws VcsException {
+      addEvent(DIRECTORY);
+      addStrings(fileFullPath, relPath, pname, version);
+    }
+
+    public void finishProcessingDirectory() throws VcsException {
+      addEvent(FINISH_DIRECTORY);
+    }
+
+    private void addEvent(final byte event) {
+      myReservedEvents++;
+      if (myBudget.myEvents.incrementAndGet() > myBudget.myMaxEvents) {
+        throw new BufferOverflowException();
+      }
+      if (myEventCount == myEvents.length) {
+        final byte[] events = new byte[myEvents.length * 2];
+        System.arraycopy(myEvents, 0, events, 0, myEventCount);
+        myEvents = events;
+      }
+      myEvents[myEventCount++] = event;
+    }
+
+    private void addStrings(final String fileFullPath, final String relPath, final String pname, final String version) {
+      myStrings.add(fileFullPath);
+      myStrings.add(relPath);
+      myStrings.add(pname);
+      myStrings.add(version);
+    }
+
+    /**
+     * Returns the events of the buffer to the budget of the walk
+     */
+    void release() {
+      myBudget.myEvents.addAndGet(-myReservedEvents);
+      myReservedEvents = 0;
+    }
+
+    void replay(@NotNull final VersionProcessor processor, final ClearCaseConnection connection) throws VcsException {
+      int openDirectories = 0;
+      int string = 0;
+      try {
+        for (int i = 0; i < myEventCount; i++) {
+          final byte event = myEvents[i];
+          if (event == FINISH_DIRECTORY) {
+            openDirectories--;
+            processor.finishProcessingDirectory();
+          }
+          else if (event == DIRECTORY) {
+            processor.processDirectory(myStrings.get(string), myStrings.get(string + 1), myStrings.get(string + 2), myStrings.get(string + 3), connection);
+            openDirectories++;
+            string += 4;
+          }
+          else {
+            processor.processFile(myStrings.get(string), myStrings.get(string + 1), myStrings.get(string + 2), myStrings.get(string + 3), connection,
+                                  (event & TEXT_FILE) != 0, (event & EXECUTABLE_FILE) != 0);
+            string += 4;
+          }
+        }
+      }
+      finally {
+        for (; openDirectories > 0; openDirectories--) {
+          processor.finishProcessingDirectory();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reduces the operations of an incremental patch to the final state of every file. A file write or deletion fully
+ * defines the state of the file, so only the last operation of a file is kept, at its own place among the directory
+ * operations. A file which was added in the patch and deleted later is left out completely.
+ */
+class PatchChangeReducer {
+  interface Action {
+    void run() throws IOException, VcsException;
+  }
+
+  @NotNull private final List<Entry> myEntries = new ArrayList<Entry>();
+  @NotNull private final Map<String, Integer> myLastFileOperations = new HashMap<String, Integer>();
+  @NotNull private final Set<String> myAddedFiles = new HashSet<String>();
+
+  /**
+   * @param added true if the file did not exist before the first operation of the patch
+   */
+  void writeFile(@NotNull final String relativePath, final boolean added, @NotNull final Action action) {
+    final String key = getKey(relativePath);
+    if (added && !myLastFileOperations.containsKey(key)) {
+      myAddedFiles.add(key);
+    }
+    addFileOperation(key, false, action);
+  }
+
+  void deleteFile(@NotNull final String relativePath, @NotNull final Action action) {
+    addFileOperation(getKey(relativePath), true, action);
+  }
+
+  /**
+   * Adds the operation which is kept as is, e.g. a directory creation or deletion
+   */
+  void add(@NotNull final Action action) {
+    myEntries.add(new Entry(null, false, action));
+  }
+
+  /**
+   * Runs the operations left after the reduction in their order
+   */
+  void replay() throws IOException, VcsException {
+    int skipped = 0;
+    for (int i = 0; i < myEntries.size(); i++) {
+      final Entry entry = myEntries.get(i);
+      if (entry.myFileKey != null &&
+          (myLastFileOperations.get(entry.myFileKey) != i || entry.myDeletion && myAddedFiles.contains(entry.myFileKey))) {
+        skipped++;
+        continue;
+      }
+      entry.myAction.run();
+    }
+    if (skipped > 0) {
+      ClearCaseConnection.LOG.debug("ClearCase: " + skipped + " of " + myEntries.size() + " patch operations are superseded by later changes");
+    }
+  }
+
+  private void addFileOperation(@NotNull final String key, final boolean deletion, @NotNull final Action action) {
+    myLastFileOperations.put(key, myEntries.size());
+    myEntries.add(new Entry(key, deletion, action));
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final String relativePath) {
+    return new File(relativePath).getPath();
+  }
+
+  private static class Entry {
+    private final String myFileKey;
+    private final boolean myDeletion;
+    @NotNull private final Action myAction;
+
+    private Entry(final String fileKey, final boolean deletion, @NotNull final Action action) {
+      myFileKey = fileKey;
+      myDeletion = deletion;
+      myAction = action;
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Applies the patch operations in the order they are added while the file contents they need are fetched ahead by
+ * several cleartool sessions. At most {@code clearcase.patch.fetch.lookahead} operations are pending and the fetched
+ * contents waiting to be applied take at most {@code clearcase.patch.fetch.pending.size.mb} on disk (plus the files
+ * being fetched). With one thread every operation is fetched and applied right away.
+ * <p/>
+ * The fetched operations which were not applied are disposed by {@link #close}, including the ones whose fetch
+ * completes after it: the fetches not started yet are cancelled and the running ones are disposed when they finish.
+ */
+class PatchFetchPipeline {
+  private static final int THREADS = TeamCityProperties.getInteger("clearcase.patch.fetch.threads", 4);
+  private static final int LOOKAHEAD = Math.max(1, TeamCityProperties.getInteger("clearcase.patch.fetch.lookahead", 64));
+  private static final long MAX_PENDING_SIZE = TeamCityProperties.getInteger("clearcase.patch.fetch.pending.size.mb", 64) * 1024L * 1024L;
+
+  @Nullable private final WorkerSessions myWorkers;
+  private final int myLookahead;
+  private final long myMaxPendingSize;
+  @NotNull private final LinkedList<Future<Operation>> myPending = new LinkedList<Future<Operation>>();
+  @NotNull private final AtomicLong myPendingSize = new AtomicLong();
+  @NotNull private final Set<Operation> myFetched = new HashSet<Operation>();
+  private boolean myClosed;
+  @Nullable private File myTempDir;
+
+  PatchFetchPipeline(@NotNull final ClearCaseConnection connection) {
+    this(THREADS > 1 ? new WorkerSessions(connection, THREADS, "ClearCase patch fetch") : null, LOOKAHEAD, MAX_PENDING_SIZE);
+  }
+
+  /**
+   * @param workers sessions to fetch with, null to fetch and apply every operation right away
+   * @param lookahead maximum number of pending operations
+   * @param maxPendingSize maximum size of the fetched contents waiting to be applied
+   */
+  PatchFetchPipeline(@Nullable final WorkerSessions workers, final int lookahead, final long maxPendingSize) {
+    myWorkers = workers;
+    myLookahead = Math.max(1, lookahead);
+    myMaxPendingSize = maxPendingSize;
+  }
+
+  /**
+   * Operation which is applied to the patch in order
+   */
+  abstract static class Operation {
+    abstract void apply() throws IOException, VcsException;
+
+    /**
+     * @return size of the fetched content the operation keeps until it is applied
+     */
+    long getSize() {
+      return 0;
+    }
+
+    /**
+     * Releases the fetched content, called after the operation is applied or when it is dropped
+     */
+    void dispose() {
+    }
+  }
+
+  /**
+   * Adds the operation which does not need anything to be fetched
+   */
+  void add(@NotNull final Operation operation) throws IOException, VcsException {
+    if (myWorkers == null) {
+      applyAndDispose(operation);
+      return;
+    }
+    myPending.add(new DoneFuture(operation));
+    drain(false);
+  }
+
+  /**
+   * Adds the operation created by the fetch, the fetch is run by a worker with its own cleartool session
+   */
+  void submit(@NotNull final Callable<Operation> fetch) throws IOException, VcsException {
+    if (myWorkers == null) {
+      final Operation operation;
+      try {
+        operation = fetch.call();
+      }
+      catch (final Exception e) {
+        throw rethrow(e);
+      }
+      applyAndDispose(operation);
+      return;
+    }
+    myPending.add(myWorkers.submit(new Callable<Operation>() {
+      public Operation call() throws Exception {
+        final Operation operation = fetch.call();
+        synchronized (myFetched) {
+          if (!myClosed) {
+            myFetched.add(operation);
+            myPendingSize.addAndGet(operation.getSize());
+            return operation;
+          }
+        }
+        operation.dispose();
+        return operation;
+      }
+    }));
+    drain(false);
+  }
+
+  /**
+   * Applies all the pending operations
+   */
+  void flush() throws IOException, VcsException {
+    drain(true);
+  }
+
+  /**
+   * @return new file for a fetched content, the files left are removed by {@link #close}
+   */
+  @NotNull
+  synchronized File createTempFile() throws IOException {
+    if (myTempDir == null) {
+      myTempDir = FileUtil.createTempFile("cc", "fetch");
+      FileUtil.delete(myTempDir);
+      if (!myTempDir.mkdirs()) throw new IOException("Cannot create directory " + myTempDir);
+    }
+    return File.createTempFile("cc", "temp", myTempDir);
+  }
+
+  /**
+   * @return size of the fetched contents waiting to be applied
+   */
+  long getPendingSize() {
+    return myPendingSize.get();
+  }
+
+  /**
+   * Drops the operations which were not applied and stops the workers
+   */
+  void close() {
+    final List<Operation> dropped = new ArrayList<Operation>();
+    synchronized (myFetched) {
+      myClosed = true;
+      dropped.addAll(myFetched);
+      myFetched.clear();
+    }
+    // the later fetches are cancelled first, so that a worker interrupted by the cancellation does not start them
+    for (final Iterator<Future<Operation>> it = myPending.descendingIterator(); it.hasNext(); ) {
+      final Future<Operation> future = it.next();
+      if (future instanceof DoneFuture) {
+        dropped.add(((DoneFuture)future).myOperation);
+      }
+      else {
+        future.cancel(true);
+      }
+    }
+    myPending.clear();
+    myPendingSize.set(0);
+    for (final Operation operation : dropped) {
+      operation.dispose();
+    }
+    if (myWorkers != null) {
+      myWorkers.shutdown();
+    }
+    synchronized (this) {
+      if (myTempDir != null) {
+        FileUtil.delete(myTempDir);
+        myTempDir = null;
+      }
+    }
+  }
+
+  private void drain(final boolean all) throws IOException, VcsException {
+    while (!myPending.isEmpty() && (all || myPending.size() > myLookahead || myPendingSize.get() > myMaxPendingSize || myPending.getFirst().isDone())) {
+      final Operation operation;
+      try {
+        operation = myPending.getFirst().get();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while fetching file contents", e);
+      }
+      catch (final ExecutionException e) {
+        throw rethrow(e.getCause());
+      }
+      myPending.removeFirst();
+      synchronized (myFetched) {
+        if (myFetched.remove(operation)) {
+          myPendingSize.addAndGet(-operation.getSize());
+        }
+      }
+      applyAndDispose(operation);
+    }
+  }
+
+  private static void applyAndDispose(@NotNull final Operation operation) throws IOException, VcsException {
+    try {
+      operation.apply();
+    }
+    finally {
+      operation.dispose();
+    }
+  }
+
+  @NotNull
+  private static VcsException rethrow(@NotNull final Throwable e) throws IOException {
+    if (e instanceof VcsException) return (VcsException)e;
+    if (e instanceof IOException) throw (IOException)e;
+    if (e instanceof RuntimeException) throw (RuntimeException)e;
+    if (e instanceof Error) throw (Error)e;
+    return new VcsException(e);
+  }
+
+  private static class DoneFuture implements Future<Operation> {
+    @NotNull private final Operation myOperation;
+
+    private DoneFuture(@NotNull final Operation operation) {
+      myOperation = operation;
+    }
+
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return true;
+    }
+
+    public Operation get() {
+      return myOperation;
+    }
+
+    public Operation get(final long timeout, @NotNull final TimeUnit unit) {
+      return myOperation;
+    }
+  }
+}
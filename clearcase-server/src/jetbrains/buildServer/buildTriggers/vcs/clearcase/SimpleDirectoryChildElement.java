@@ -50,6 +50,14 @@ public class SimpleDirectoryChildElement {
     return connection.getLastVersionElement(myPathWithoutVersion, myType);
   }
 
+  /**
+   * @param selectedVersion version selected by the view for the element if it is known, it is used unless the changes of the element are ignored
+   */
+  @Nullable
+  public DirectoryChildElement createFullElement(@NotNull final ClearCaseConnection connection, @Nullable final String selectedVersion) throws VcsException {
+    return connection.getLastVersionElement(myPathWithoutVersion, myType, selectedVersion);
+  }
+
   public enum Type {
     FILE, DIRECTORY
   }
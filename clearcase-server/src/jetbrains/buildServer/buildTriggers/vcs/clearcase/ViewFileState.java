@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Modification time and length of a view file taken before the view is listed. An update of a snapshot view or
+ * a checkin selected by a dynamic view replaces the file and changes them, so the content copied from the view
+ * belongs to the listed version only if the file still has the same state after the copy.
+ */
+class ViewFileState {
+  private final long myLastModified;
+  private final long myLength;
+
+  ViewFileState(@NotNull final File viewFile) {
+    myLastModified = viewFile.lastModified();
+    myLength = viewFile.length();
+  }
+
+  /**
+   * @return true if the file exists and was not changed since the state was taken
+   */
+  boolean isUnchanged(@NotNull final File viewFile) {
+    return myLastModified != 0 && viewFile.lastModified() == myLastModified && viewFile.length() == myLength;
+  }
+
+  /**
+   * @param selectedVersions versions the view selects in the directory of the file, null if it was not listed
+   * @return true if the view selects the version of the file, false if the version must be fetched by its name
+   */
+  static boolean isSelected(@Nullable final Map<String, String> selectedVersions, @NotNull final String name, @NotNull final String version) {
+    final String selectedVersion = selectedVersions == null ? null : selectedVersions.get(name);
+    return selectedVersion != null && CCPathElement.normalizeSeparators(selectedVersion).equals(CCPathElement.normalizeSeparators(version));
+  }
+}
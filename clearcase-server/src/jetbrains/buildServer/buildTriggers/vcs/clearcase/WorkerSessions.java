@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Worker threads which run the commands of a connection in their own cleartool sessions. A session is started
+ * by the first task of a thread and is destroyed by {@link #shutdown}.
+ */
+class WorkerSessions {
+  @NotNull private final ClearCaseConnection myConnection;
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final List<ClearCaseInteractiveProcess> myProcesses = Collections.synchronizedList(new ArrayList<ClearCaseInteractiveProcess>());
+  @NotNull private final ThreadLocal<ClearCaseInteractiveProcess> myThreadProcess = new ThreadLocal<ClearCaseInteractiveProcess>();
+
+  WorkerSessions(@NotNull final ClearCaseConnection connection, final int threads, @NotNull final String threadName) {
+    myConnection = connection;
+    myExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger myCount = new AtomicInteger();
+
+      public Thread newThread(@NotNull final Runnable runnable) {
+        final Thread thread = new Thread(runnable, threadName + " " + myCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @NotNull
+  <T> Future<T> submit(@NotNull final Callable<T> task) {
+    return myExecutor.submit(new Callable<T>() {
+      public T call() throws Exception {
+        ClearCaseInteractiveProcess process = myThreadProcess.get();
+        if (process == null) {
+          process = ClearCaseInteractiveProcessPool.startProcess(myConnection.getViewWholePath());
+          myProcesses.add(process);
+          myThreadProcess.set(process);
+        }
+        myConnection.setWorkerProcess(process);
+        try {
+          return task.call();
+        }
+        finally {
+          myConnection.setWorkerProcess(null);
+        }
+      }
+    });
+  }
+
+  void shutdown() {
+    myExecutor.shutdownNow();
+    try {
+      myExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (myProcesses) {
+      for (final ClearCaseInteractiveProcess process : myProcesses) {
+        process.destroy();
+      }
+      myProcesses.clear();
+    }
+  }
+}
@@ -17,10 +17,12 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.SortedSet;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCPathElement;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.LoadRuleTrie;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.VersionTree;
 import jetbrains.buildServer.vcs.VcsException;
@@ -38,7 +40,27 @@ public interface ConfigSpec {
 
   boolean isUnderLoadRules(String ccViewRoot, String fullFileName) throws IOException, VcsException;
 
+  @NotNull
+  LoadRuleTrie getLoadRuleTrie();
+
+  /**
+   * @return paths of the directories outside of which this config spec selects the same versions as the old one,
+   * or null if the difference cannot be limited to some directories
+   */
+  @Nullable
+  Collection<String> getChangedSubtrees(@NotNull ConfigSpec oldConfigSpec);
+
   void setViewIsDynamic(boolean viewIsDynamic);
+
+  boolean isViewDynamic();
+
+  /**
+   * @return hash of the config spec text together with the texts of the included files, null if the config spec was not read from the view
+   */
+  @Nullable
+  String getTextHash();
+
+  void setTextHash(@Nullable String textHash);
   
   /**
    * @return true if Version Selector of any Rule refers to a Label 
@@ -47,4 +69,11 @@ public interface ConfigSpec {
 
   @NotNull
   SortedSet<String> getBranches();
+
+  /**
+   * @return paths of the branches (e.g. "main/release_x") from which Rules select LATEST versions,
+   * or null if some Rule requires the whole version tree (label or version number selectors, wildcard branches, -mkbranch)
+   */
+  @Nullable
+  SortedSet<String> getLatestVersionBranches();
 }
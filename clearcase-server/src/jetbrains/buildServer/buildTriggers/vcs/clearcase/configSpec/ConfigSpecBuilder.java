@@ -57,7 +57,7 @@ public class ConfigSpecBuilder implements ConfigSpecRulesProcessor {
     return result;
   }
 
-  public ConfigSpec getConfigSpec() {
+  public ConfigSpecImpl getConfigSpec() {
     return new ConfigSpecImpl(myLoadRules, myStandardRules);
   }
 }
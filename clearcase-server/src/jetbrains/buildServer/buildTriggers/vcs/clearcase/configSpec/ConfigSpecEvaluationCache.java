@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers the results of the config spec evaluation for the elements of each view between the connections.
+ * The results of all the views share one LRU map of at most {@code clearcase.config.spec.evaluation.cache.size}
+ * entries. The results of a view are kept while its config spec stays the same and are abandoned as soon as
+ * a different config spec is evaluated or {@link #invalidate} is called.
+ */
+public class ConfigSpecEvaluationCache {
+  private static final boolean ENABLED = !TeamCityProperties.getBoolean("clearcase.disable.config.spec.evaluation.cache");
+  private static final int MAX_RESULTS = TeamCityProperties.getInteger("clearcase.config.spec.evaluation.cache.size", 100000);
+  private static final int MAX_VIEWS = 1000;
+
+  @NotNull private static final Map<String, ViewResults> ourViewResults = new LinkedHashMap<String, ViewResults>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, ViewResults> eldest) {
+      return size() > MAX_VIEWS;
+    }
+  };
+  @NotNull private static final Map<String, Object> ourResults = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Object> eldest) {
+      return size() > MAX_RESULTS;
+    }
+  };
+  private static long ourLastViewResultsId;
+
+  @Nullable
+  static ViewResults getViewResults(@NotNull final String ccViewRoot, @NotNull final ConfigSpec configSpec, final boolean viewIsDynamic) {
+    if (!ENABLED) return null;
+    synchronized (ourViewResults) {
+      ViewResults results = ourViewResults.get(ccViewRoot);
+      if (results == null || results.myViewIsDynamic != viewIsDynamic || !results.myConfigSpec.equals(configSpec)) {
+        results = new ViewResults(++ourLastViewResultsId, configSpec, viewIsDynamic);
+        ourViewResults.put(ccViewRoot, results);
+      }
+      return results;
+    }
+  }
+
+  public static void invalidate(@NotNull final String ccViewRoot) {
+    synchronized (ourViewResults) {
+      ourViewResults.remove(ccViewRoot);
+    }
+  }
+
+  /**
+   * Results of one config spec of a view, the keys are prefixed with its own id so the abandoned results are never
+   * seen again and just leave the shared map as the least recently used ones
+   */
+  static class ViewResults {
+    @NotNull private static final String NOT_FOUND = "";
+
+    @NotNull private final String myKeyPrefix;
+    @NotNull private final ConfigSpec myConfigSpec;
+    private final boolean myViewIsDynamic;
+
+    private ViewResults(final long id, @NotNull final ConfigSpec configSpec, final boolean viewIsDynamic) {
+      myKeyPrefix = id + "\n";
+      myConfigSpec = configSpec;
+      myViewIsDynamic = viewIsDynamic;
+    }
+
+    @Nullable
+    Boolean getVersionIsInsideView(@NotNull final String key) {
+      final Object result = get("i" + key);
+      return result instanceof Boolean ? (Boolean)result : null;
+    }
+
+    void putVersionIsInsideView(@NotNull final String key, final boolean isInsideView) {
+      put("i" + key, isInsideView);
+    }
+
+    /**
+     * @return whole name of the current version, empty string if the current version was not found or null if the result is unknown
+     */
+    @Nullable
+    String getCurrentVersion(@NotNull final String key) {
+      final Object result = get("c" + key);
+      return result instanceof String ? (String)result : null;
+    }
+
+    void putCurrentVersion(@NotNull final String key, @Nullable final String versionWholeName) {
+      put("c" + key, versionWholeName == null ? NOT_FOUND : versionWholeName);
+    }
+
+    @Nullable
+    private Object get(@NotNull final String key) {
+      synchronized (ourResults) {
+        return ourResults.get(myKeyPrefix + key);
+      }
+    }
+
+    private void put(@NotNull final String key, @NotNull final Object result) {
+      synchronized (ourResults) {
+        ourResults.put(myKeyPrefix + key, result);
+      }
+    }
+
+    @NotNull
+    static String createKey(@NotNull final String fullFileName, @NotNull final String version, final boolean isFile, @NotNull final String versionTreeFingerprint) {
+      return fullFileName + '\n' + version + '\n' + isFile + '\n' + versionTreeFingerprint;
+    }
+  }
+}
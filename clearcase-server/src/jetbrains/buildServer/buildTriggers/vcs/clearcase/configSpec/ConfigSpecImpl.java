@@ -18,12 +18,15 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeSet;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCPathElement;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.LoadRuleTrie;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ViewPath;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Branch;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
@@ -35,20 +38,53 @@ import org.jetbrains.annotations.Nullable;
 
 public class ConfigSpecImpl implements ConfigSpec {
   private final List<ConfigSpecLoadRule> myLoadRules;
+  private final LoadRuleTrie myLoadRuleTrie;
   private final List<ConfigSpecStandardRule> myStandardRules;
+  private final ConfigSpecRuleMatcher myRuleMatcher;
   private boolean myViewIsDynamic;
+  @Nullable private String myTextHash;
+  @Nullable private String myEvaluationResultsViewRoot;
+  @Nullable private ConfigSpecEvaluationCache.ViewResults myEvaluationResults;
 
   private static final Logger LOG = Logger.getLogger(ConfigSpecImpl.class);
 
   public ConfigSpecImpl(final List<ConfigSpecLoadRule> loadRules, final List<ConfigSpecStandardRule> standardRules) {
     myLoadRules = loadRules;
+    myLoadRuleTrie = createLoadRuleTrie(loadRules);
     myStandardRules = standardRules;
+    myRuleMatcher = new ConfigSpecRuleMatcher(standardRules);
+  }
+
+  /**
+   * Creates a config spec of its own for a connection, the parsed rules are shared with the original config spec
+   */
+  ConfigSpecImpl(@NotNull final ConfigSpecImpl parsedConfigSpec, @Nullable final String textHash) {
+    myLoadRules = parsedConfigSpec.myLoadRules;
+    myLoadRuleTrie = parsedConfigSpec.myLoadRuleTrie;
+    myStandardRules = parsedConfigSpec.myStandardRules;
+    myRuleMatcher = parsedConfigSpec.myRuleMatcher;
+    myTextHash = textHash;
   }
 
   @Nullable
   public Version getCurrentVersion(final String ccViewRoot, final String fullFileName, final VersionTree versionTree, final boolean isFile) throws VcsException {
     final String normalizedFullFileName = CCPathElement.normalizeFileName(fullFileName);
-    final Version version = doGetCurrentVersion(ccViewRoot, normalizedFullFileName, versionTree, isFile);
+    final ConfigSpecEvaluationCache.ViewResults results = getEvaluationResults(ccViewRoot);
+    final Version version;
+    if (results == null) {
+      version = doGetCurrentVersion(ccViewRoot, normalizedFullFileName, versionTree, isFile);
+    }
+    else {
+      final String key = ConfigSpecEvaluationCache.ViewResults.createKey(normalizedFullFileName, "", isFile, versionTree.getFingerprint());
+      final String cachedVersion = results.getCurrentVersion(key);
+      if (cachedVersion != null) {
+        version = cachedVersion.length() == 0 ? null : versionTree.findVersionByPath(cachedVersion);
+      }
+      else {
+        version = doGetCurrentVersion(ccViewRoot, normalizedFullFileName, versionTree, isFile);
+        results.putCurrentVersion(key, version == null ? null : version.getWholeName());
+      }
+    }
 
     if (version == null) {
       LOG.debug("ClearCase: element \"" + fullFileName + "\" ignored, last version not found;");
@@ -69,10 +105,12 @@ public class ConfigSpecImpl implements ConfigSpec {
       final String pathElementVersion = pathElement.getVersion();
       if (pathElementVersion != null) {
         final boolean elementIsFile = i == pathElements.size() - 1 && isFile;
-        final Version version = connection.findVersion(CCPathElement.removeFirstSeparatorIfNeeded(objectPath), pathElementVersion, !elementIsFile);
+        final String elementPath = CCPathElement.removeFirstSeparatorIfNeeded(objectPath);
+        final VersionTree versionTree = connection.readVersionTree(elementPath, !elementIsFile);
+        final Version version = ClearCaseConnection.findVersion(versionTree, elementPath, pathElementVersion);
         if (version == null) return false;
         objectPath.append(pathElementVersion);
-        if (!doIsVersionIsInsideView(connection, CCPathElement.removeFirstSeparatorIfNeeded(filePath), version, elementIsFile)) {
+        if (!isVersionIsInsideView(connection, CCPathElement.removeFirstSeparatorIfNeeded(filePath), version, versionTree.getFingerprint(), elementIsFile)) {
           return false;
         }
       }
@@ -86,17 +124,47 @@ public class ConfigSpecImpl implements ConfigSpec {
     return myLoadRules;
   }
   
+  private boolean isVersionIsInsideView(final ClearCaseConnection connection,
+                                        final String fullFileName,
+                                        final Version version,
+                                        @NotNull final String versionTreeFingerprint,
+                                        final boolean isFile) throws VcsException {
+    final ConfigSpecEvaluationCache.ViewResults results = getEvaluationResults(connection.getClearCaseViewPath());
+    if (results == null) {
+      return doIsVersionIsInsideView(connection, fullFileName, version, isFile);
+    }
+
+    final String key = ConfigSpecEvaluationCache.ViewResults.createKey(CCPathElement.normalizeFileName(fullFileName), version.getWholeName(), isFile, versionTreeFingerprint);
+    final Boolean cachedResult = results.getVersionIsInsideView(key);
+    if (cachedResult != null) {
+      return cachedResult;
+    }
+
+    final boolean result = doIsVersionIsInsideView(connection, fullFileName, version, isFile);
+    results.putVersionIsInsideView(key, result);
+    return result;
+  }
+
+  @Nullable
+  private synchronized ConfigSpecEvaluationCache.ViewResults getEvaluationResults(final String ccViewRoot) {
+    if (myEvaluationResults == null || !ccViewRoot.equals(myEvaluationResultsViewRoot)) {
+      myEvaluationResults = ConfigSpecEvaluationCache.getViewResults(ccViewRoot, this, myViewIsDynamic);
+      myEvaluationResultsViewRoot = ccViewRoot;
+    }
+    return myEvaluationResults;
+  }
+
   private boolean doIsVersionIsInsideView(final ClearCaseConnection connection, final String fullFileName, final Version version, final boolean isFile) throws VcsException {
     final String normalizedFullFileName = CCPathElement.normalizeFileName(fullFileName);
     if (!isUnderLoadRules(connection.getClearCaseViewPath(), normalizedFullFileName)) return false;
 
     final Version version_copy = new Version(version);
+    final List<ConfigSpecStandardRule> matchingRules = myRuleMatcher.getMatchingRules(normalizedFullFileName, isFile);
 
     boolean versionTreeHasBeenChanged;
     do {
       versionTreeHasBeenChanged = false;
-      for (ConfigSpecStandardRule rule : myStandardRules) {
-        if (!rule.matchesPath(normalizedFullFileName, isFile)) continue;
+      for (ConfigSpecStandardRule rule : matchingRules) {
         final ConfigSpecStandardRule.ResultType result = rule.isVersionIsInsideView(version_copy);
         if (ConfigSpecStandardRule.ResultType.DOES_NOT_MATCH.equals(result)) {
           if (rightVersionExists(rule, getRootBranch(version_copy))) {
@@ -151,12 +219,10 @@ public class ConfigSpecImpl implements ConfigSpec {
       return null;
     }
 
-    for (ConfigSpecStandardRule standardRule : myStandardRules) {
-      if (standardRule.matchesPath(fullFileName, isFile)) {
-        final Version version = standardRule.findVersion(versionTree, fullFileName);
-        if (version != null) {
-          return version;
-        }
+    for (ConfigSpecStandardRule standardRule : myRuleMatcher.getMatchingRules(fullFileName, isFile)) {
+      final Version version = standardRule.findVersion(versionTree, fullFileName);
+      if (version != null) {
+        return version;
       }
     }
 
@@ -168,17 +234,103 @@ public class ConfigSpecImpl implements ConfigSpec {
            doIsUnderLoadRules((new ViewPath(ccViewRoot, fullFileName)).getWholePath());
   }
 
-  public void setViewIsDynamic(final boolean viewIsDynamic) {
+  public synchronized void setViewIsDynamic(final boolean viewIsDynamic) {
     myViewIsDynamic = viewIsDynamic;
+    myEvaluationResults = null;
+  }
+
+  public synchronized boolean isViewDynamic() {
+    return myViewIsDynamic;
+  }
+
+  @Nullable
+  public String getTextHash() {
+    return myTextHash;
+  }
+
+  public void setTextHash(@Nullable final String textHash) {
+    myTextHash = textHash;
   }
 
   private boolean doIsUnderLoadRules(final String fullFileName) {
-    for (ConfigSpecLoadRule loadRule : myLoadRules) {
-      if (loadRule.isUnderLoadRule(fullFileName)) {
-        return true;
+    return myLoadRuleTrie.isUnderLoadRules(fullFileName);
+  }
+
+  @NotNull
+  public LoadRuleTrie getLoadRuleTrie() {
+    return myLoadRuleTrie;
+  }
+
+  @NotNull
+  private static LoadRuleTrie createLoadRuleTrie(@NotNull final List<ConfigSpecLoadRule> loadRules) {
+    final List<String> paths = new ArrayList<String>(loadRules.size());
+    for (ConfigSpecLoadRule loadRule : loadRules) {
+      paths.add(loadRule.getPath());
+    }
+    return new LoadRuleTrie(paths);
+  }
+
+  @Nullable
+  public Collection<String> getChangedSubtrees(@NotNull final ConfigSpec oldConfigSpec) {
+    if (!(oldConfigSpec instanceof ConfigSpecImpl)) return null;
+    final ConfigSpecImpl that = (ConfigSpecImpl)oldConfigSpec;
+
+    final SortedSet<String> result = new TreeSet<String>();
+
+    // a path selects the same version if the Rules matching it are the same and go in the same order,
+    // so only the Rules out of the longest common subsequence can change the selection
+    final List<ConfigSpecStandardRule> changedRules = getRulesOutOfCommonSubsequence(that.myStandardRules, myStandardRules);
+    changedRules.addAll(getRulesOutOfCommonSubsequence(myStandardRules, that.myStandardRules));
+    for (final ConfigSpecStandardRule rule : changedRules) {
+      final String prefix = rule.getScopeLiteralPrefix();
+      final int lastSeparatorPos = prefix.lastIndexOf(File.separatorChar);
+      if (lastSeparatorPos <= 0) return null;
+      result.add(prefix.substring(0, lastSeparatorPos));
+    }
+
+    // the parent directory of an added or removed Load Rule gets different children
+    for (final ConfigSpecLoadRule loadRule : myLoadRules) {
+      if (!that.myLoadRules.contains(loadRule) && !addParentPath(result, loadRule)) return null;
+    }
+    for (final ConfigSpecLoadRule loadRule : that.myLoadRules) {
+      if (!myLoadRules.contains(loadRule) && !addParentPath(result, loadRule)) return null;
+    }
+
+    return result;
+  }
+
+  private static boolean addParentPath(@NotNull final Collection<String> paths, @NotNull final ConfigSpecLoadRule loadRule) {
+    final String parent = new File(loadRule.getPath()).getParent();
+    if (parent == null) return false;
+    paths.add(parent);
+    return true;
+  }
+
+  @NotNull
+  private static List<ConfigSpecStandardRule> getRulesOutOfCommonSubsequence(@NotNull final List<ConfigSpecStandardRule> rules,
+                                                                             @NotNull final List<ConfigSpecStandardRule> otherRules) {
+    final int n = rules.size(), m = otherRules.size();
+    final int[][] lcs = new int[n + 1][m + 1];
+    for (int i = n - 1; i >= 0; i--) {
+      for (int j = m - 1; j >= 0; j--) {
+        lcs[i][j] = rules.get(i).equals(otherRules.get(j)) ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
       }
     }
-    return false;
+    final List<ConfigSpecStandardRule> result = new ArrayList<ConfigSpecStandardRule>();
+    int i = 0, j = 0;
+    while (i < n) {
+      if (j < m && rules.get(i).equals(otherRules.get(j))) {
+        i++;
+        j++;
+      }
+      else if (j < m && lcs[i][j + 1] >= lcs[i + 1][j]) {
+        j++;
+      }
+      else {
+        result.add(rules.get(i++));
+      }
+    }
+    return result;
   }
 
   @Override
@@ -207,6 +359,22 @@ public class ConfigSpecImpl implements ConfigSpec {
     return false;
   }
 
+  @Nullable
+  public SortedSet<String> getLatestVersionBranches() {
+    final SortedSet<String> branches = new TreeSet<String>();
+    for (final ConfigSpecStandardRule rule : myStandardRules) {
+      if (!rule.isLatestVersionSelector()) {
+        return null;
+      }
+      final String branchPath = rule.getBranchPath();
+      if (branchPath == null) {
+        return null;
+      }
+      branches.add(branchPath);
+    }
+    return branches.isEmpty() ? null : branches;
+  }
+
   @NotNull
   public SortedSet<String> getBranches() {
     final SortedSet<String> branches = new TreeSet<String>();
@@ -17,7 +17,6 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
 
 import java.io.File;
-import jetbrains.buildServer.util.FileUtil;
 
 public class ConfigSpecLoadRule {
   private final File myFile;
@@ -32,9 +31,8 @@ public class ConfigSpecLoadRule {
     return myRelativePath;
   }
 
-  public boolean isUnderLoadRule(final String elementPath) {
-    final File elementFile = new File(elementPath);
-    return FileUtil.isAncestor(elementFile, myFile, false) || FileUtil.isAncestor(myFile, elementFile, false);
+  public String getPath() {
+    return myFile.getPath();
   }
 
   @Override
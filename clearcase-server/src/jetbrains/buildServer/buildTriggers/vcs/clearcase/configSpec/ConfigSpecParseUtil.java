@@ -17,21 +17,85 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ViewPath;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
 import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class ConfigSpecParseUtil {
-  public static ConfigSpec getAndSaveConfigSpec(final ViewPath viewPath, final File outputConfigSpecFile, final ClearCaseInteractiveProcess process) throws VcsException, IOException {
-    clearOldSavedVersion(outputConfigSpecFile);
-    //noinspection ResultOfMethodCallIgnored
-    outputConfigSpecFile.createNewFile();
+  private static final int MAX_CACHED_CONFIG_SPECS = TeamCityProperties.getInteger("clearcase.config.spec.cache.size", 100);
+
+  @NotNull private static final ConfigSpecRulesProcessor NO_RULES_PROCESSOR = new ConfigSpecRulesProcessor() {
+    public void processLoadRule(final String rule) {}
+    public void processTimeRule(final String rule, final boolean isBlockStart) {}
+    public void processCreateBranchRule(final String rule, final boolean isBlockStart) {}
+    public void processStandartRule(final String scope, final String pattern, final String rule) {}
+  };
+
+  @NotNull private static final Map<String, CachedConfigSpec> ourConfigSpecs = new LinkedHashMap<String, CachedConfigSpec>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, CachedConfigSpec> eldest) {
+      return size() > MAX_CACHED_CONFIG_SPECS;
+    }
+  };
 
-    return doGetConfigSpecFromStream(viewPath.getClearCaseViewPathFile(), ClearCaseConnection.getConfigSpecInputStream(process), null,
-                                     new FileOutputStream(outputConfigSpecFile), outputConfigSpecFile);
+  /**
+   * Reads the config spec of the view and saves it (with all the included files) to the output file
+   * unless the saved config spec has the same text hash
+   */
+  public static ConfigSpec getAndSaveConfigSpec(final ViewPath viewPath,
+                                                final File outputConfigSpecFile,
+                                                @Nullable final String savedConfigSpecHash,
+                                                final ClearCaseInteractiveProcess process) throws VcsException, IOException {
+    final List<String> texts = readConfigSpecTexts(ClearCaseConnection.getConfigSpecInputStream(process));
+    final String hash = calcHash(texts);
+    if (!hash.equals(savedConfigSpecHash)) {
+      saveConfigSpecTexts(texts, outputConfigSpecFile);
+    }
+    return getCachedConfigSpec(viewPath.getClearCaseViewPathFile(), texts, hash);
+  }
+
+  /**
+   * @return config spec saved by {@link #getAndSaveConfigSpec}, null if there is no saved config spec
+   */
+  @Nullable
+  public static ConfigSpec getSavedConfigSpec(final File viewRoot, final File configSpecFile) throws VcsException, IOException {
+    if (!configSpecFile.isFile()) return null;
+    final List<String> texts = new ArrayList<String>();
+    final String path = configSpecFile.getAbsolutePath();
+    File file = configSpecFile;
+    while (file.isFile()) {
+      texts.add(readText(new FileInputStream(file)));
+      file = new File(path + "." + texts.size());
+    }
+    return getCachedConfigSpec(viewRoot, texts, calcHash(texts));
+  }
+
+  private static void saveConfigSpecTexts(final List<String> texts, final File outputConfigSpecFile) throws IOException {
+    clearOldSavedVersion(outputConfigSpecFile);
+    final String path = outputConfigSpecFile.getAbsolutePath();
+    for (int i = 0; i < texts.size(); i++) {
+      final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(i == 0 ? outputConfigSpecFile : new File(path + "." + i))));
+      try {
+        final String[] lines = texts.get(i).split("\n", -1);
+        for (int j = 0; j < lines.length - 1; j++) {
+          writer.write(lines[j]);
+          writer.newLine();
+        }
+      }
+      finally {
+        writer.close();
+      }
+    }
   }
 
   private static void clearOldSavedVersion(final File outputConfigSpecFile) {
@@ -45,50 +109,115 @@ public class ConfigSpecParseUtil {
   }
 
   public static ConfigSpec getConfigSpec(final ViewPath viewPath, final ClearCaseInteractiveProcess process) throws VcsException, IOException {
-    return getConfigSpecFromStream(viewPath.getClearCaseViewPathFile(), ClearCaseConnection.getConfigSpecInputStream(process), null);
+    final List<String> texts = readConfigSpecTexts(ClearCaseConnection.getConfigSpecInputStream(process));
+    return getCachedConfigSpec(viewPath.getClearCaseViewPathFile(), texts, calcHash(texts));
   }
 
   public static ConfigSpec getConfigSpecFromStream(final File viewRoot,
                                                    final InputStream configSpecInputStream,
                                                    @Nullable final File inputConfigSpecFile) throws VcsException {
-    return doGetConfigSpecFromStream(viewRoot, configSpecInputStream, inputConfigSpecFile, null, null);
+    final ConfigSpecBuilder builder = new ConfigSpecBuilder(viewRoot);
+    final IncludeSource includeSource = inputConfigSpecFile == null ? IncludeSource.INCLUDED_FILES : new IncludeSource() {
+      @NotNull
+      public InputStream open(@NotNull final String includedFile, final int includesIndex) throws IOException {
+        return new FileInputStream(inputConfigSpecFile.getAbsolutePath() + "." + includesIndex);
+      }
+    };
+    readConfigSpecFromStream(builder, configSpecInputStream, includeSource, null, 0);
+    return builder.getConfigSpec();
   }
 
-  private static ConfigSpec doGetConfigSpecFromStream(final File viewRoot,
-                                                      final InputStream configSpecInputStream,
-                                                      @Nullable final File inputConfigSpecFile,
-                                                      @Nullable final OutputStream configSpecOutputStream,
-                                                      @Nullable final File outputConfigSpecFile) throws VcsException {
+  /**
+   * Parsed rules are shared between the connections: the rule patterns are compiled only once for every config spec text of the view,
+   * while every connection gets a config spec of its own
+   */
+  @NotNull
+  private static ConfigSpec getCachedConfigSpec(final File viewRoot, @NotNull final List<String> texts, @NotNull final String hash) throws VcsException {
+    final String key = viewRoot.getAbsolutePath() + "\n" + hash;
+    synchronized (ourConfigSpecs) {
+      final CachedConfigSpec cached = ourConfigSpecs.get(key);
+      if (cached != null && cached.myTexts.equals(texts)) {
+        return new ConfigSpecImpl(cached.myConfigSpec, hash);
+      }
+    }
+
     final ConfigSpecBuilder builder = new ConfigSpecBuilder(viewRoot);
+    readConfigSpecFromStream(builder, new ByteArrayInputStream(texts.get(0).getBytes()), new IncludeSource() {
+      @NotNull
+      public InputStream open(@NotNull final String includedFile, final int includesIndex) throws IOException {
+        if (includesIndex >= texts.size()) throw new FileNotFoundException(includedFile);
+        return new ByteArrayInputStream(texts.get(includesIndex).getBytes());
+      }
+    }, null, 0);
+    final ConfigSpecImpl configSpec = builder.getConfigSpec();
 
-    readConfigSpecFromStream(builder, configSpecInputStream, inputConfigSpecFile, configSpecOutputStream, outputConfigSpecFile, 0);
+    synchronized (ourConfigSpecs) {
+      ourConfigSpecs.put(key, new CachedConfigSpec(texts, configSpec));
+    }
+    return new ConfigSpecImpl(configSpec, hash);
+  }
 
-    return builder.getConfigSpec();
+  /**
+   * @return texts of the config spec followed by the texts of the included files in the order of inclusion
+   */
+  @NotNull
+  private static List<String> readConfigSpecTexts(final InputStream configSpecInputStream) throws VcsException {
+    final List<StringBuilder> texts = new ArrayList<StringBuilder>();
+    readConfigSpecFromStream(NO_RULES_PROCESSOR, configSpecInputStream, IncludeSource.INCLUDED_FILES, texts, 0);
+    final List<String> result = new ArrayList<String>(texts.size());
+    for (final StringBuilder text : texts) {
+      result.add(text.toString());
+    }
+    return result;
+  }
+
+  @NotNull
+  private static String readText(final InputStream inputStream) throws IOException {
+    final StringBuilder text = new StringBuilder();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        text.append(line).append('\n');
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return text.toString();
+  }
+
+  @NotNull
+  private static String calcHash(@NotNull final List<String> texts) {
+    final StringBuilder allTexts = new StringBuilder();
+    for (final String text : texts) {
+      allTexts.append(text).append('\0');
+    }
+    return String.valueOf(Hash.calc(allTexts.toString()));
   }
 
   private static int readConfigSpecFromStream(final ConfigSpecRulesProcessor processor,
                                               final InputStream configSpecInputStream,
-                                              @Nullable final File inputConfigSpecFile,
-                                              @Nullable final OutputStream configSpecOutputStream,
-                                              @Nullable final File outputConfigSpecFile,
+                                              @NotNull final IncludeSource includeSource,
+                                              @Nullable final List<StringBuilder> texts,
                                               final int configSpecIncludesIndex) throws VcsException {
     BufferedReader reader = null;
-    BufferedWriter writer = null;
     try {
       reader = new BufferedReader(new InputStreamReader(configSpecInputStream));
-      if (configSpecOutputStream != null) {
-        writer = new BufferedWriter(new OutputStreamWriter(configSpecOutputStream));
+      StringBuilder text = null;
+      if (texts != null) {
+        text = new StringBuilder();
+        texts.add(text);
       }
       String line;
 
       int result = configSpecIncludesIndex;
 
       while ((line = reader.readLine()) != null) {
-        if (writer != null) {
-          writer.write(line);
-          writer.newLine();
+        if (text != null) {
+          text.append(line).append('\n');
         }
-        result = processLine(processor, line, inputConfigSpecFile, outputConfigSpecFile, result);
+        result = processLine(processor, line, includeSource, texts, result);
       }
 
       return result;
@@ -102,25 +231,20 @@ public class ConfigSpecParseUtil {
           reader.close();
         }
       } catch (IOException ignored) {}
-      try {
-        if (writer != null) {
-          writer.close();
-        }
-      } catch (IOException ignored) {}
     }
   }
 
   private static int processLine(final ConfigSpecRulesProcessor processor,
                                   final String line,
-                                  @Nullable final File inputConfigSpecFile,
-                                  @Nullable final File outputConfigSpecFile,
+                                  @NotNull final IncludeSource includeSource,
+                                  @Nullable final List<StringBuilder> texts,
                                   final int configSpecIncludesIndex) throws VcsException, IOException {
     String[] lines = line.split(";");
     int result = configSpecIncludesIndex;
     for (String aLine : lines) {
       final String trimmedLine = aLine.trim();
       if (trimmedLine.length() != 0) {
-        result = doProcessLine(processor, trimmedLine, false, inputConfigSpecFile, outputConfigSpecFile, result);
+        result = doProcessLine(processor, trimmedLine, false, includeSource, texts, result);
       }
     }
     return result;
@@ -129,8 +253,8 @@ public class ConfigSpecParseUtil {
   private static int doProcessLine(final ConfigSpecRulesProcessor processor,
                                     final String line,
                                     final boolean lineIsBlockRuleEnd,
-                                    @Nullable final File inputConfigSpecFile,
-                                    @Nullable final File outputConfigSpecFile,
+                                    @NotNull final IncludeSource includeSource,
+                                    @Nullable final List<StringBuilder> texts,
                                     final int configSpecIncludesIndex) throws VcsException, IOException {
     String firstWord = extractFirstWord(line), trimmedfirstWord = trimQuotes(firstWord.trim());
     String rule = line.substring(firstWord.length()).trim();
@@ -138,7 +262,7 @@ public class ConfigSpecParseUtil {
     int includesIndex = configSpecIncludesIndex;
 
     if (ConfigSpecRuleTokens.BLOCK_RULE_END.equalsIgnoreCase(trimmedfirstWord)) {
-      doProcessLine(processor, rule, true, inputConfigSpecFile, outputConfigSpecFile, includesIndex);
+      doProcessLine(processor, rule, true, includeSource, texts, includesIndex);
     } else if (ConfigSpecRuleTokens.TIME.equalsIgnoreCase(trimmedfirstWord)) {
       processor.processTimeRule(rule, !lineIsBlockRuleEnd);
     } else if (ConfigSpecRuleTokens.CREATE_BRANCH.equalsIgnoreCase(trimmedfirstWord)) {
@@ -149,23 +273,8 @@ public class ConfigSpecParseUtil {
       processor.processLoadRule(trimQuotes(rule));
     } else if (ConfigSpecRuleTokens.FILE_INCLUSION.equalsIgnoreCase(trimmedfirstWord)) {
       includesIndex++;
-      final File inputFile;
-      if (inputConfigSpecFile != null) {
-        inputFile = new File(inputConfigSpecFile.getAbsolutePath() + "." + includesIndex);
-      } else {
-        inputFile = new File(trimQuotes(rule));
-      }
-      OutputStream outputStream = null;
-      if (outputConfigSpecFile != null) {
-        final File outputFile = new File(outputConfigSpecFile.getAbsolutePath() + "." + includesIndex);
-        if (!outputFile.exists()) {
-          //noinspection ResultOfMethodCallIgnored
-          outputFile.createNewFile();
-        }
-        outputStream = new FileOutputStream(outputFile);
-      }
       try {
-        includesIndex = readConfigSpecFromStream(processor, new FileInputStream(inputFile), inputConfigSpecFile, outputStream, outputConfigSpecFile, includesIndex);
+        includesIndex = readConfigSpecFromStream(processor, includeSource.open(trimQuotes(rule), includesIndex), includeSource, texts, includesIndex);
       } catch (FileNotFoundException e) {
         throw new VcsException("Invalid config spec rule: \"" + line + "\"", e);
       }
@@ -211,4 +320,26 @@ public class ConfigSpecParseUtil {
     }
     return s;
   }
+
+  private interface IncludeSource {
+    IncludeSource INCLUDED_FILES = new IncludeSource() {
+      @NotNull
+      public InputStream open(@NotNull final String includedFile, final int includesIndex) throws IOException {
+        return new FileInputStream(includedFile);
+      }
+    };
+
+    @NotNull
+    InputStream open(@NotNull String includedFile, int includesIndex) throws IOException;
+  }
+
+  private static class CachedConfigSpec {
+    @NotNull private final List<String> myTexts;
+    @NotNull private final ConfigSpecImpl myConfigSpec;
+
+    private CachedConfigSpec(@NotNull final List<String> texts, @NotNull final ConfigSpecImpl configSpec) {
+      myTexts = texts;
+      myConfigSpec = configSpec;
+    }
+  }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds the Standard Rules matching a path in one pass over the path characters.
+ * Literal prefixes of the absolute scope patterns and literal suffixes of the other ones are merged into two character tries,
+ * so the regular expressions are run only for the Rules which still can match. The Rules are returned in the config spec order.
+ */
+class ConfigSpecRuleMatcher {
+  @NotNull private final List<ConfigSpecStandardRule> myRules;
+  @NotNull private final Node myPrefixes = new Node();
+  @NotNull private final Node mySuffixes = new Node();
+  @NotNull private final BitSet myUnconstrainedRules = new BitSet();
+
+  ConfigSpecRuleMatcher(@NotNull final List<ConfigSpecStandardRule> rules) {
+    myRules = rules;
+    for (int i = 0; i < rules.size(); i++) {
+      final ConfigSpecStandardRule rule = rules.get(i);
+      final String prefix = rule.getScopeLiteralPrefix();
+      final String suffix = rule.getScopeLiteralSuffix();
+      if (prefix.length() > 0 && prefix.length() >= suffix.length()) {
+        addRule(myPrefixes, prefix, false, i);
+      }
+      else if (suffix.length() > 0) {
+        addRule(mySuffixes, suffix, true, i);
+      }
+      else {
+        myUnconstrainedRules.set(i);
+      }
+    }
+  }
+
+  @NotNull
+  List<ConfigSpecStandardRule> getMatchingRules(@NotNull final String fullFileName, final boolean isFile) {
+    final BitSet candidates = (BitSet)myUnconstrainedRules.clone();
+    collectRules(myPrefixes, fullFileName, false, candidates);
+    collectRules(mySuffixes, fullFileName, true, candidates);
+
+    final List<ConfigSpecStandardRule> result = new ArrayList<ConfigSpecStandardRule>(candidates.cardinality());
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+      final ConfigSpecStandardRule rule = myRules.get(i);
+      if (rule.matchesPath(fullFileName, isFile)) {
+        result.add(rule);
+      }
+    }
+    return result;
+  }
+
+  private static void addRule(@NotNull final Node root, @NotNull final String literal, final boolean reversed, final int ruleIndex) {
+    Node node = root;
+    final int length = literal.length();
+    for (int i = 0; i < length; i++) {
+      node = node.getOrCreateChild(literal.charAt(reversed ? length - 1 - i : i));
+    }
+    node.myRules.set(ruleIndex);
+  }
+
+  private static void collectRules(@NotNull final Node root, @NotNull final String path, final boolean reversed, @NotNull final BitSet candidates) {
+    Node node = root;
+    final int length = path.length();
+    for (int i = 0; i < length; i++) {
+      node = node.getChild(path.charAt(reversed ? length - 1 - i : i));
+      if (node == null) return;
+      candidates.or(node.myRules);
+    }
+  }
+
+  private static class Node {
+    @NotNull private final BitSet myRules = new BitSet();
+    @Nullable private Map<Character, Node> myChildren;
+
+    @Nullable
+    Node getChild(final char c) {
+      return myChildren == null ? null : myChildren.get(c);
+    }
+
+    @NotNull
+    Node getOrCreateChild(final char c) {
+      if (myChildren == null) {
+        myChildren = new HashMap<Character, Node>();
+      }
+      Node child = myChildren.get(c);
+      if (child == null) {
+        child = new Node();
+        myChildren.put(c, child);
+      }
+      return child;
+    }
+  }
+}
@@ -37,11 +37,14 @@ public class ConfigSpecStandardRule {
   @NonNls @NotNull private static final String ELLIPSIS = "...";
   private final ScopeType myScopeType;
   protected final Pattern myScopePattern;
+  @NotNull private final String myScopeLiteralPrefix;
+  @NotNull private final String myScopeLiteralSuffix;
   protected final Pattern myBranchPattern;
   protected final String myVersion;
   private final String myMkBranchOption;
   private final boolean myIsLabelSelector;
   @Nullable private String myPrimaryBranch;
+  @Nullable private String myBranchPath;
 
   public ResultType isVersionIsInsideView(final Version version) {
     final String versionFullName = version.getWholeName();
@@ -206,7 +209,16 @@ public class ConfigSpecStandardRule {
     } else {
       myScopeType = ScopeType.ANY;
     }
-    myScopePattern = createPattern(removeFirstSeparatorIfNeeded(scopePattern.trim()), false);
+    final String normalizedScopePattern = removeFirstSeparatorIfNeeded(scopePattern.trim());
+    myScopePattern = createPattern(normalizedScopePattern, false);
+    final String scopeGlob = CCPathElement.normalizeSeparators(normalizedScopePattern);
+    final boolean[] literal = detectLiteralChars(scopeGlob);
+    int prefixEnd = 0;
+    while (prefixEnd < literal.length && literal[prefixEnd]) prefixEnd++;
+    int suffixStart = literal.length;
+    while (suffixStart > 0 && literal[suffixStart - 1]) suffixStart--;
+    myScopeLiteralPrefix = scopeGlob.startsWith("/") ? scopeGlob.substring(0, prefixEnd) : "";
+    myScopeLiteralSuffix = scopeGlob.substring(suffixStart);
     if (versionSelectorWithOptions.startsWith("{")) {
       //todo
     }
@@ -221,6 +233,7 @@ public class ConfigSpecStandardRule {
       final String branchPathSelector = normalizedVersionSelector.substring(0, lastSeparatorPos);
       myBranchPattern = createPattern(branchPathSelector, true);
       detectPrimaryBranch(branchPathSelector);
+      detectBranchPath(branchPathSelector);
     }
     myVersion = normalizedVersionSelector.substring(lastSeparatorPos + 1);
     if (myVersion.startsWith("{")) {
@@ -240,6 +253,13 @@ public class ConfigSpecStandardRule {
     }
   }
 
+  private void detectBranchPath(@NotNull final String branchPathSelector) {
+    if (branchPathSelector.startsWith(File.separator) && branchPathSelector.length() > 1 &&
+        !branchPathSelector.contains("*") && !branchPathSelector.contains("?") && !branchPathSelector.contains(ELLIPSIS)) {
+      myBranchPath = branchPathSelector.substring(1);
+    }
+  }
+
   private boolean isLabelBasedSelector() {
     return !Util.isDigit(myVersion)/*StringUtil.isNumber(myVersion)*/
            && !ConfigSpecRuleTokens.CHECKEDOUT.equalsIgnoreCase(myVersion)
@@ -293,6 +313,34 @@ public class ConfigSpecStandardRule {
     return result;
   }
 
+  /**
+   * Marks the characters of the scope pattern which are matched literally by the pattern created by {@link #createCommonPattern},
+   * i.e. everything except wildcards, ellipses (together with the separator they absorb) and regular expression metacharacters
+   */
+  @NotNull
+  private static boolean[] detectLiteralChars(@NotNull final String pattern) {
+    final int len = pattern.length();
+    final boolean[] literal = new boolean[len];
+    int i = 0;
+    while (i < len) {
+      final char c = pattern.charAt(i);
+      if (c == '.' && i + 2 < len && pattern.charAt(i + 1) == '.' && pattern.charAt(i + 2) == '.') {
+        if (i > 0 && pattern.charAt(i - 1) == File.separatorChar) {
+          literal[i - 1] = false;
+        }
+        else if (i + 3 < len && pattern.charAt(i + 3) == File.separatorChar) {
+          i++;
+        }
+        i += 3;
+      }
+      else {
+        literal[i] = "*?[](){}+^$|".indexOf(c) == -1;
+        i++;
+      }
+    }
+    return literal;
+  }
+
   private static String escapeDots(final String string) {
     StringBuilder sb = new StringBuilder();
     int i = 0, len = string.length();
@@ -315,6 +363,22 @@ public class ConfigSpecStandardRule {
     return sb.toString();
   }
 
+  /**
+   * @return characters every path matching the scope pattern starts with
+   */
+  @NotNull
+  String getScopeLiteralPrefix() {
+    return myScopeLiteralPrefix;
+  }
+
+  /**
+   * @return characters every path matching the scope pattern ends with
+   */
+  @NotNull
+  String getScopeLiteralSuffix() {
+    return myScopeLiteralSuffix;
+  }
+
   public boolean matchesPath(String fullFilePath, final boolean isFile) {
     return myScopeType.matches(isFile) && myScopePattern.matcher(fullFilePath).matches();
   }
@@ -329,7 +393,8 @@ public class ConfigSpecStandardRule {
     return myBranchPattern.pattern().equals(that.myBranchPattern.pattern()) &&
            myScopePattern.pattern().equals(that.myScopePattern.pattern()) &&
            myScopeType == that.myScopeType &&
-           myVersion.equals(that.myVersion);
+           myVersion.equals(that.myVersion) &&
+           (myMkBranchOption == null ? that.myMkBranchOption == null : myMkBranchOption.equals(that.myMkBranchOption));
   }
 
   @Override
@@ -338,6 +403,7 @@ public class ConfigSpecStandardRule {
     result = 31 * result + myScopePattern.pattern().hashCode();
     result = 31 * result + myBranchPattern.pattern().hashCode();
     result = 31 * result + myVersion.hashCode();
+    result = 31 * result + (myMkBranchOption == null ? 0 : myMkBranchOption.hashCode());
     return result;
   }
 
@@ -379,4 +445,22 @@ public class ConfigSpecStandardRule {
   public String getPrimaryBranch() {
     return myPrimaryBranch;
   }
+
+  /**
+   * @return branch path without leading separator (e.g. "main/release_x") if Version Selector refers to
+   * an exactly specified branch, null if it contains wildcards or is relative
+   */
+  @Nullable
+  public String getBranchPath() {
+    return myBranchPath;
+  }
+
+  /**
+   * @return true if the Rule can select only the LATEST (or CHECKEDOUT) version of some branch and does not create branches,
+   * so the whole version tree is not needed to find the version
+   */
+  public boolean isLatestVersionSelector() {
+    return myMkBranchOption == null &&
+           (ConfigSpecRuleTokens.LATEST.equalsIgnoreCase(myVersion) || ConfigSpecRuleTokens.CHECKEDOUT.equalsIgnoreCase(myVersion));
+  }
 }
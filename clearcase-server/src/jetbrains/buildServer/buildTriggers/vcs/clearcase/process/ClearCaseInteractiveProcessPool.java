@@ -75,6 +75,14 @@ public class ClearCaseInteractiveProcessPool {
     }
   }
 
+  /**
+   * Starts a session which is not bound to a single operation, the caller must destroy it
+   */
+  @NotNull
+  public static ClearCaseInteractiveProcess startProcess(@NotNull final String workingDirectory) throws IOException {
+    return createProcess(workingDirectory);
+  }
+
   @NotNull
   private static ClearCaseInteractiveProcess createProcess(@NotNull final String workingDirectory) throws IOException {
     try {
@@ -17,11 +17,13 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
 import com.intellij.openapi.util.Ref;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.*;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.IncludeRule;
@@ -29,6 +31,7 @@ import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class CacheElement {
   private static final Logger LOG = Logger.getLogger(CacheElement.class);
@@ -40,6 +43,17 @@ public class CacheElement {
   public static final int FILE_TYPE = 0;
   public static final int DIR_OPEN_TYPE = 1;
   public static final int DIR_CLOSE_TYPE = 2;
+  public static final int END_TYPE = 3;
+
+  public static final int TEXT_FLAG = 1;
+  public static final int EXECUTABLE_FLAG = 2;
+
+  /**
+   * Snapshots written before the format was versioned have no header and are still readable
+   */
+  public static final int FORMAT_MAGIC = 0x43435343;
+  public static final byte FORMAT_VERSION = 2;
+  public static final int DELTA_FORMAT_MAGIC = 0x43435344;
   
   private final ClearCaseSupport myParentSupport;
   private final VcsRoot myRoot;
@@ -65,50 +79,225 @@ public class CacheElement {
 
   public void processAllVersions(final VersionProcessor versionProcessor, boolean processRoot, ClearCaseConnection connection) throws VcsException {
     try {
-      if (!myCacheFile.exists()) {
-        CacheElement nearestCache = myOwner.getNearestExistingCache(myVersion, myPath, myIncludeRule, myRoot);
-        if (nearestCache == null) {
-          LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading all versions");
-          loadAllRevisions(myVersion, connection);
-        }
-        else {
-          LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading differences from " + nearestCache.getVersion().asString());
-          loadDifferences(nearestCache, connection);
+      if (!myCacheFile.exists() || !ClearCaseStructureCache.getRescanSubtrees(myCacheFile).isEmpty()) {
+        // only one thread builds the snapshot, the others wait for it and read the published file
+        final Object lock = myOwner.getSnapshotLock(myCacheFile);
+        synchronized (lock) {
+          try {
+            prepareSnapshot(connection);
+          }
+          finally {
+            myOwner.releaseSnapshotLock(myCacheFile, lock);
+          }
         }
       }
 
-      processAllVersionsInternal(versionProcessor, processRoot, connection);
+      myOwner.snapshotReadStarted(myCacheFile);
+      try {
+        processAllVersionsInternal(versionProcessor, processRoot, connection);
+      }
+      finally {
+        myOwner.snapshotReadFinished(myCacheFile);
+      }
     }
     catch (final IOException e) {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " cannot be used: " + e.getMessage());
+      FileUtil.delete(myCacheFile);
+      DecodedSnapshotCache.invalidate(myCacheFile);
+      ClearCaseStructureCache.removeRescanSubtrees(myCacheFile);
       connection.processAllVersions(myVersion, versionProcessor, processRoot, false);
     }
   }
 
+  private void prepareSnapshot(final ClearCaseConnection connection) throws IOException, VcsException {
+    final boolean cacheExists = myCacheFile.exists();
+    final Set<String> rescanSubtrees = cacheExists ? ClearCaseStructureCache.getRescanSubtrees(myCacheFile) : Collections.<String>emptySet();
+    if (cacheExists && rescanSubtrees.isEmpty()) return;
+
+    CacheElement nearestCache = cacheExists ? this : myOwner.getNearestExistingCache(myVersion, myPath, myIncludeRule, myRoot);
+    // the base is kept by the cache size limit until the new snapshot is published
+    final File baseFile = nearestCache == null ? null : nearestCache.getCacheFile();
+    if (baseFile != null) {
+      myOwner.snapshotReadStarted(baseFile);
+    }
+    try {
+      if (baseFile != null && !baseFile.isFile()) {
+        nearestCache = null;
+      }
+      final Set<String> relativeRescanSubtrees = nearestCache == null ? null : nearestCache.getRelativeRescanSubtrees();
+      if (relativeRescanSubtrees == null) {
+        LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading all versions");
+        loadAllRevisions(myVersion, connection);
+      }
+      else {
+        LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading differences from " + nearestCache.getVersion().asString() +
+                  (relativeRescanSubtrees.isEmpty() ? "" : ", reading again " + relativeRescanSubtrees));
+        loadDifferences(nearestCache, relativeRescanSubtrees, connection);
+      }
+    }
+    finally {
+      if (baseFile != null) {
+        myOwner.snapshotReadFinished(baseFile);
+      }
+    }
+    if (myCacheFile.isFile()) {
+      ClearCaseStructureCache.removeRescanSubtrees(myCacheFile);
+      if (!cacheExists) {
+        myOwner.snapshotCreated(myCacheFile);
+      }
+    }
+  }
+
   private void loadAllRevisions(DateRevision version, ClearCaseConnection connection) throws IOException {
     //noinspection ResultOfMethodCallIgnored
     myCacheFile.getParentFile().mkdirs();
-    final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(myCacheFile));
+    final File tempFile = createTempFile(myCacheFile);
+    final WriteVersionProcessor writeProcessor = new WriteVersionProcessor(new FileOutputStream(tempFile));
+    boolean published = false;
     try {
-      connection.processAllVersions(version, new WriteVersionProcessor(outputStream), true, false);
-      outputStream.close();
-    } catch (Throwable e) {
-      outputStream.close();
-      FileUtil.delete(myCacheFile);
+      connection.processAllVersions(version, writeProcessor, true, false);
+      writeProcessor.finish();
+      writeProcessor.close();
+      publish(tempFile, myCacheFile);
+      published = true;
+    } catch (Exception e) {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " cannot be created: " + e.getMessage(), e);
+    } finally {
+      if (!published) {
+        writeProcessor.close();
+        FileUtil.delete(tempFile);
+      }
     }
-
   }
 
-  private void loadDifferences(final CacheElement nearestCache, final ClearCaseConnection connection) throws IOException, VcsException {
-    final List<ChangedElementInfo> changedElements = loadChanges(nearestCache);
-    
-    final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(myCacheFile));
-    final WriteVersionProcessor writeProcessor = new WriteVersionProcessor(outputStream);
+  private void loadDifferences(final CacheElement nearestCache,
+                               final Set<String> rescanSubtrees,
+                               final ClearCaseConnection connection) throws IOException, VcsException {
+    final boolean rebuildItself = nearestCache == this;
+    final List<ChangedElementInfo> changedElements = rebuildItself ? Collections.<ChangedElementInfo>emptyList() : loadChanges(nearestCache);
+    if (!rescanSubtrees.isEmpty()) {
+      connection.collectChangesToIgnore(myVersion);
+    }
+
+    if (!rebuildItself && SnapshotDelta.canBeBasedOn(nearestCache.getCacheFile())) {
+      writeDelta(nearestCache, changedElements, rescanSubtrees, connection);
+      return;
+    }
+
+    final File tempFile = createTempFile(myCacheFile);
+    final WriteVersionProcessor writeProcessor = new WriteVersionProcessor(new FileOutputStream(tempFile));
     try {
-      new CacheProcessor(new WriteCorrectingVersionProcessor(changedElements, writeProcessor), connection, nearestCache.getCacheFile())
+      new CacheProcessor(new WriteCorrectingVersionProcessor(changedElements, rescanSubtrees, writeProcessor), connection, nearestCache.getCacheFile())
         .processAllRevisions(true);
+      writeProcessor.finish();
+      writeProcessor.close();
+      publish(tempFile, myCacheFile);
     } finally {
-      outputStream.close();
+      writeProcessor.close();
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  /**
+   * Stores the snapshot as the differences from the nearest one or completely if there are too many of them
+   */
+  private void writeDelta(final CacheElement nearestCache,
+                          final List<ChangedElementInfo> changedElements,
+                          final Set<String> rescanSubtrees,
+                          final ClearCaseConnection connection) throws IOException, VcsException {
+    final File parentFile = nearestCache.getCacheFile();
+    final DecodedSnapshot.Builder builder = new DecodedSnapshot.Builder();
+    new CacheProcessor(new WriteCorrectingVersionProcessor(changedElements, rescanSubtrees, builder), connection, parentFile).processAllRevisions(true);
+    final DecodedSnapshot snapshot = builder.build();
+
+    final SnapshotDelta delta = SnapshotDelta.compute(parentFile, CacheProcessor.getDecodedSnapshot(parentFile), snapshot);
+    final File tempFile = createTempFile(myCacheFile);
+    try {
+      if (delta == null) {
+        snapshot.writeTo(tempFile);
+      }
+      else {
+        delta.write(tempFile);
+      }
+      publish(tempFile, myCacheFile);
+    }
+    finally {
+      FileUtil.delete(tempFile);
+    }
+    if (delta != null) {
+      myOwner.deltaPublished(parentFile);
+    }
+    DecodedSnapshotCache.put(myCacheFile, myCacheFile.lastModified(), myCacheFile.length(), snapshot);
+    if (delta != null && delta.getChainLength() >= SnapshotDelta.MAX_CHAIN_LENGTH) {
+      myOwner.scheduleCompaction(myCacheFile);
+    }
+  }
+
+  /**
+   * @return file to write the snapshot to before it is published, unique for the current thread
+   */
+  @NotNull
+  static File createTempFile(@NotNull final File cacheFile) {
+    return new File(cacheFile.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+  }
+
+  /**
+   * Replaces the snapshot with the completely written temporary file. The rename is atomic where the file system
+   * allows replacing an existing file, otherwise the old snapshot is removed first.
+   */
+  static void publish(@NotNull final File tempFile, @NotNull final File cacheFile) throws IOException {
+    if (!tempFile.renameTo(cacheFile)) {
+      FileUtil.delete(cacheFile);
+      if (!tempFile.renameTo(cacheFile)) {
+        throw new IOException("Cannot rename " + tempFile + " to " + cacheFile);
+      }
+    }
+    DecodedSnapshotCache.invalidate(cacheFile);
+  }
+
+  /**
+   * @return paths relative to the cache root of the deepest existing directories containing the subtrees to read again,
+   * null if the whole cache must be read again
+   */
+  @Nullable
+  private Set<String> getRelativeRescanSubtrees() throws IOException, VcsException {
+    final Set<String> rescanSubtrees = ClearCaseStructureCache.getRescanSubtrees(myCacheFile);
+    final Set<String> relativePaths = new HashSet<String>();
+    final File rootFile = new File(myPath);
+    for (String subtree : rescanSubtrees) {
+      final File subtreeFile = new File(subtree);
+      if (FileUtil.isAncestor(subtreeFile, rootFile, false)) return null;
+      if (FileUtil.isAncestor(rootFile, subtreeFile, true)) {
+        relativePaths.add(subtreeFile.getPath().substring(rootFile.getPath().length() + 1));
+      }
+    }
+    if (relativePaths.isEmpty()) return relativePaths;
+
+    final Set<String> existingDirs = new HashSet<String>();
+    new CacheProcessor(new VersionProcessor() {
+      public void processFile(final String fileFullPath, final String relPath, final String pname, final String version,
+                              final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) {
+      }
+
+      public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version,
+                                   final ClearCaseConnection clearCaseConnection) {
+        existingDirs.add(relPath);
+      }
+
+      public void finishProcessingDirectory() {
+      }
+    }, null, myCacheFile).processAllRevisions(false);
+
+    final Set<String> result = new HashSet<String>();
+    for (String relativePath : relativePaths) {
+      File dir = new File(relativePath);
+      while (dir != null && !existingDirs.contains(dir.getPath())) {
+        dir = dir.getParentFile();
+      }
+      if (dir == null) return null;
+      result.add(dir.getPath());
     }
+    return result;
   }
 
   public File getCacheFile() {
@@ -16,19 +16,48 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
+import com.intellij.openapi.util.SystemInfo;
 import java.io.*;
-import java.util.Stack;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TCStreamUtil;
 import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
 
+/**
+ * Replays a structure snapshot written by {@link WriteVersionProcessor}.
+ * Full, relative and IO paths are kept in builders which are extended when an element is entered and truncated when
+ * it is left, so the strings passed to the version processor are the only per element allocations.
+ */
 public class CacheProcessor {
+  private static final int HEADER_LENGTH = 5;
+  private static final int TRAILER_LENGTH = 9;
+
+  /**
+   * A mapped file cannot be deleted or renamed on Windows until the buffer is garbage collected,
+   * so snapshots are read into the heap there
+   */
+  private static final boolean USE_MAPPED_FILES = !SystemInfo.isWindows && !TeamCityProperties.getBoolean("clearcase.disable.structure.cache.mmap");
+
   private final VersionProcessor myVersionProcessor;
   private final ClearCaseConnection myConnection;
   private final File myCacheFile;
 
+  private final StringBuilder myFullPath = new StringBuilder();
+  private final StringBuilder myRelPath = new StringBuilder();
+  private final StringBuilder myIOPath = new StringBuilder();
+  private int[] myPathLengths = new int[3 * 32];
+  private int myDepth;
+
   public CacheProcessor(final VersionProcessor versionProcessor, final ClearCaseConnection connection, final File cacheFile) {
 
     myVersionProcessor = versionProcessor;
@@ -37,116 +66,324 @@ public class CacheProcessor {
   }
 
   public void processAllRevisions(final boolean processRoot) throws IOException, VcsException {
-    final Stack<ReadCacheItem> readDirs = new Stack<ReadCacheItem>();
-    DataInputStream input = new DataInputStream(new FileInputStream(myCacheFile));
-    int index = 0;
-    try {
-      while (true) {
-        byte type;
-        try {
-          type = input.readByte();
-        } catch (EOFException e) {
-          break;
-        }
-          if (type == CacheElement.FILE_TYPE) {
-            String name = TCStreamUtil.readString(input);
-            String version = TCStreamUtil.readString(input);
-
-            boolean text = false;
-            boolean executable = false;
-
-            final int modeSep = version.indexOf("|");
-
-            if (modeSep > 0) {
-              String mode = version.substring(modeSep);
-              version = version.substring(0, modeSep);
-              text = mode.contains("t");
-              executable = mode.contains("x");
-            }
-            
-            readDirs.push(new ReadCacheItem(name, version));
-
-
-
-            myVersionProcessor.processFile(createFullPath(readDirs, myConnection), createRelPath(readDirs), createIOPath(readDirs, myConnection), version, myConnection,
-                                           text, executable);
-            readDirs.pop();
-          }
-          else if (type == CacheElement.DIR_OPEN_TYPE) {
-            String name = TCStreamUtil.readString(input);
-            String version = TCStreamUtil.readString(input);
-            readDirs.push(new ReadCacheItem(name, version));
-            if (index > 0 || processRoot) {
-              myVersionProcessor.processDirectory(createFullPath(readDirs, myConnection), createRelPath(readDirs), createIOPath(readDirs, myConnection), version, myConnection);
-            }
-          }
-          else if (type == CacheElement.DIR_CLOSE_TYPE){ 
-            readDirs.pop();
-            myVersionProcessor.finishProcessingDirectory();
-          }
-          else {
-            throw new IOException("Unexpected type "+ type);
-          }
-        index++;
+    resetPaths();
+    final RecordHandler handler = new ProcessingRecordHandler(processRoot);
+    final DecodedSnapshot cachedSnapshot = DecodedSnapshotCache.get(myCacheFile);
+    if (cachedSnapshot != null) {
+      cachedSnapshot.replay(handler);
+    }
+    else if (DecodedSnapshotCache.accepts(myCacheFile) || SnapshotDelta.isDelta(myCacheFile)) {
+      decode(myCacheFile).replay(handler);
+    }
+    else {
+      readRecords(handler);
+    }
+  }
+
+  /**
+   * @return the snapshot stored in the file, complete or restored from the deltas
+   */
+  @NotNull
+  static DecodedSnapshot getDecodedSnapshot(@NotNull final File cacheFile) throws IOException, VcsException {
+    final DecodedSnapshot cachedSnapshot = DecodedSnapshotCache.get(cacheFile);
+    return cachedSnapshot != null ? cachedSnapshot : decode(cacheFile);
+  }
+
+  @NotNull
+  private static DecodedSnapshot decode(@NotNull final File cacheFile) throws IOException, VcsException {
+    final long lastModified = cacheFile.lastModified();
+    final long length = cacheFile.length();
+    final DecodedSnapshot snapshot;
+    if (SnapshotDelta.isDelta(cacheFile)) {
+      snapshot = SnapshotDelta.materialize(cacheFile);
+    }
+    else {
+      final DecodedSnapshot.Builder builder = new DecodedSnapshot.Builder();
+      new CacheProcessor(null, null, cacheFile).readRecords(builder);
+      snapshot = builder.build();
+    }
+    DecodedSnapshotCache.put(cacheFile, lastModified, length, snapshot);
+    return snapshot;
+  }
+
+  private void readRecords(final RecordHandler handler) throws IOException, VcsException {
+    final ByteBuffer buffer = readCacheFile();
+    if (buffer.remaining() >= 4 && buffer.getInt(0) == CacheElement.FORMAT_MAGIC) {
+      try {
+        processVersionedRevisions(buffer, handler);
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Unexpected end of cache file " + myCacheFile);
       }
+    }
+    else {
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(myCacheFile)));
+      try {
+        processLegacyRevisions(input, handler);
+      } finally {
+        input.close();
+      }
+    }
+  }
+
+  private ByteBuffer readCacheFile() throws IOException {
+    if (!USE_MAPPED_FILES) {
+      return ByteBuffer.wrap(FileUtil.loadFileBytes(myCacheFile));
+    }
+    final RandomAccessFile file = new RandomAccessFile(myCacheFile, "r");
+    try {
+      return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
     } finally {
-      input.close();
+      file.close();
     }
-    
   }
-  
-  private String createIOPath(final Stack<ReadCacheItem> readDirs, final ClearCaseConnection connection) {
-    StringBuilder result = new StringBuilder();
-    if (connection != null) {
-      result.append(connection.getViewWholePath());
+
+  private void processVersionedRevisions(final ByteBuffer buffer, final RecordHandler handler) throws IOException, VcsException {
+    final int length = buffer.limit();
+    if (length < HEADER_LENGTH + TRAILER_LENGTH) {
+      throw new IOException("Truncated cache file " + myCacheFile);
+    }
+    if (buffer.get(4) != CacheElement.FORMAT_VERSION) {
+      throw new IOException("Unsupported cache file version " + buffer.get(4) + " in " + myCacheFile);
+    }
+    final int bodyEnd = length - TRAILER_LENGTH;
+    if (buffer.get(bodyEnd) != CacheElement.END_TYPE) {
+      throw new IOException("Incomplete cache file " + myCacheFile);
+    }
+    if (calculateChecksum(buffer, bodyEnd + 1) != buffer.getLong(bodyEnd + 1)) {
+      throw new IOException("Checksum mismatch in cache file " + myCacheFile);
     }
-    for (ReadCacheItem readDir : readDirs) {
-      String name = readDir.getName();
-      if (!isRoot(name)) {
-        result.append(File.separatorChar);
-        result.append(name);
+
+    buffer.limit(bodyEnd);
+    buffer.position(HEADER_LENGTH);
+    final List<String> branches = new ArrayList<String>();
+    final StringBuilder name = new StringBuilder();
+    final StringBuilder version = new StringBuilder();
+    while (buffer.hasRemaining()) {
+      final byte type = buffer.get();
+      if (type == CacheElement.FILE_TYPE) {
+        final byte flags = buffer.get();
+        readName(buffer, name);
+        readVersion(buffer, branches, version);
+        handler.processFile(name, version.toString(), (flags & CacheElement.TEXT_FLAG) != 0, (flags & CacheElement.EXECUTABLE_FLAG) != 0);
+      }
+      else if (type == CacheElement.DIR_OPEN_TYPE) {
+        readName(buffer, name);
+        readVersion(buffer, branches, version);
+        handler.processDirectory(name, version.toString());
+      }
+      else if (type == CacheElement.DIR_CLOSE_TYPE) {
+        handler.finishProcessingDirectory();
+      }
+      else {
+        throw new IOException("Unexpected type " + type);
       }
     }
-    return result.toString();    
   }
 
-  private boolean isRoot(final String name) {
-    return "".equals(name);
-  }
+  private void processLegacyRevisions(final DataInputStream input, final RecordHandler handler) throws IOException, VcsException {
+    while (true) {
+      byte type;
+      try {
+        type = input.readByte();
+      } catch (EOFException e) {
+        break;
+      }
+      if (type == CacheElement.FILE_TYPE) {
+        String name = TCStreamUtil.readString(input);
+        String version = TCStreamUtil.readString(input);
+
+        boolean text = false;
+        boolean executable = false;
+
+        final int modeSep = version.indexOf("|");
+
+        if (modeSep > 0) {
+          String mode = version.substring(modeSep);
+          version = version.substring(0, modeSep);
+          text = mode.contains("t");
+          executable = mode.contains("x");
+        }
 
-  private String createRelPath(final Stack<ReadCacheItem> readDirs) {
-    StringBuilder result = new StringBuilder();
-    for (ReadCacheItem readDir : readDirs) {
-      if (result.length() > 0) {
-        result.append(File.separatorChar);
+        handler.processFile(name, version, text, executable);
       }
-      String name = readDir.getName();
-      if (!isRoot(name)) {
-        result.append(name);
+      else if (type == CacheElement.DIR_OPEN_TYPE) {
+        String name = TCStreamUtil.readString(input);
+        String version = TCStreamUtil.readString(input);
+        handler.processDirectory(name, version);
+      }
+      else if (type == CacheElement.DIR_CLOSE_TYPE) {
+        handler.finishProcessingDirectory();
+      }
+      else {
+        throw new IOException("Unexpected type " + type);
       }
     }
-    return result.toString();
-    
   }
 
-  private String createFullPath(final Stack<ReadCacheItem> readDirs, final ClearCaseConnection connection) {
-    StringBuilder result = new StringBuilder();
-    if (connection != null) {
-      result.append(connection.getViewWholePath());
+  private void resetPaths() {
+    final String viewPath = myConnection == null ? "" : myConnection.getViewWholePath();
+    myFullPath.setLength(0);
+    myFullPath.append(viewPath);
+    myRelPath.setLength(0);
+    myIOPath.setLength(0);
+    myIOPath.append(viewPath);
+    myDepth = 0;
+  }
+
+  /**
+   * Appends the element to the current paths, the root element has an empty name
+   */
+  private void enter(final CharSequence name, final CharSequence version) {
+    if (3 * myDepth + 3 > myPathLengths.length) {
+      final int[] lengths = new int[myPathLengths.length * 2];
+      System.arraycopy(myPathLengths, 0, lengths, 0, myPathLengths.length);
+      myPathLengths = lengths;
     }
-    for (ReadCacheItem readDir : readDirs) {
-      if (!isRoot(readDir.getName())) {
-        result.append(File.separatorChar);
-        result.append(readDir.getName());
-        result.append(CCParseUtil.CC_VERSION_SEPARATOR);
-        result.append(readDir.getVersion());
+    myPathLengths[3 * myDepth] = myFullPath.length();
+    myPathLengths[3 * myDepth + 1] = myRelPath.length();
+    myPathLengths[3 * myDepth + 2] = myIOPath.length();
+    myDepth++;
+
+    final boolean root = name.length() == 0;
+    if (!root) {
+      myFullPath.append(File.separatorChar).append(name);
+    }
+    myFullPath.append(CCParseUtil.CC_VERSION_SEPARATOR).append(version);
+
+    if (myRelPath.length() > 0) {
+      myRelPath.append(File.separatorChar);
+    }
+    myRelPath.append(name);
+
+    if (!root) {
+      myIOPath.append(File.separatorChar).append(name);
+    }
+  }
+
+  private void leave() throws IOException {
+    if (myDepth == 0) {
+      throw new IOException("Unbalanced directory close in cache file " + myCacheFile);
+    }
+    myDepth--;
+    restorePaths();
+  }
+
+  private void restorePaths() {
+    myFullPath.setLength(myPathLengths[3 * myDepth]);
+    myRelPath.setLength(myPathLengths[3 * myDepth + 1]);
+    myIOPath.setLength(myPathLengths[3 * myDepth + 2]);
+  }
+
+  private static long calculateChecksum(final ByteBuffer buffer, final int length) {
+    final CRC32 checksum = new CRC32();
+    final byte[] chunk = new byte[8192];
+    buffer.position(0);
+    int remaining = length;
+    while (remaining > 0) {
+      final int count = Math.min(remaining, chunk.length);
+      buffer.get(chunk, 0, count);
+      checksum.update(chunk, 0, count);
+      remaining -= count;
+    }
+    return checksum.getValue();
+  }
+
+  /**
+   * Replaces the front-coded name in place: keeps the shared prefix of the previous name and appends the rest
+   */
+  private static void readName(final ByteBuffer buffer, final StringBuilder name) throws IOException {
+    final int prefix = CompactInt.read(buffer);
+    if (prefix > name.length()) {
+      throw new IOException("Invalid name prefix length " + prefix);
+    }
+    name.setLength(prefix);
+    readUTF(buffer, name);
+  }
+
+  private static void readVersion(final ByteBuffer buffer, final List<String> branches, final StringBuilder version) throws IOException {
+    final int index = CompactInt.read(buffer);
+    version.setLength(0);
+    if (index == branches.size()) {
+      readUTF(buffer, version);
+      branches.add(version.toString());
+    }
+    else if (index < branches.size()) {
+      version.append(branches.get(index));
+    }
+    else {
+      throw new IOException("Invalid branch index " + index);
+    }
+    final int number = CompactInt.read(buffer) - 1;
+    if (number >= 0) {
+      version.append(number);
+    }
+  }
+
+  /**
+   * Decodes a string written by {@link DataOutput#writeUTF(String)} and appends it to the target
+   */
+  private static void readUTF(final ByteBuffer buffer, final StringBuilder target) throws IOException {
+    final int end = (buffer.getShort() & 0xFFFF) + buffer.position();
+    while (buffer.position() < end) {
+      final int b = buffer.get() & 0xFF;
+      if (b < 0x80) {
+        target.append((char)b);
+      }
+      else if ((b & 0xE0) == 0xC0) {
+        target.append((char)(((b & 0x1F) << 6) | (buffer.get() & 0x3F)));
+      }
+      else if ((b & 0xF0) == 0xE0) {
+        target.append((char)(((b & 0x0F) << 12) | ((buffer.get() & 0x3F) << 6) | (buffer.get() & 0x3F)));
       }
       else {
-        result.append(CCParseUtil.CC_VERSION_SEPARATOR);
-        result.append(readDir.getVersion());        
+        throw new IOException("Malformed string in cache file");
       }
     }
-    return result.toString();
+    if (buffer.position() != end) {
+      throw new IOException("Malformed string in cache file");
+    }
+  }
+
+  /**
+   * Receives the records of a snapshot in the order they were written
+   */
+  interface RecordHandler {
+    void processFile(@NotNull CharSequence name, @NotNull String version, boolean text, boolean executable) throws IOException, VcsException;
+
+    void processDirectory(@NotNull CharSequence name, @NotNull String version) throws IOException, VcsException;
+
+    void finishProcessingDirectory() throws IOException, VcsException;
+  }
+
+  private class ProcessingRecordHandler implements RecordHandler {
+    private final boolean myProcessRoot;
+    private boolean myRootProcessed;
+
+    private ProcessingRecordHandler(final boolean processRoot) {
+      myProcessRoot = processRoot;
+    }
+
+    public void processFile(@NotNull final CharSequence name, @NotNull final String version, final boolean text, final boolean executable)
+      throws VcsException {
+      myRootProcessed = true;
+      enter(name, version);
+      myVersionProcessor.processFile(myFullPath.toString(), myRelPath.toString(), myIOPath.toString(), version, myConnection, text, executable);
+      myDepth--;
+      restorePaths();
+    }
+
+    public void processDirectory(@NotNull final CharSequence name, @NotNull final String version) throws VcsException {
+      enter(name, version);
+      if (myRootProcessed || myProcessRoot) {
+        myVersionProcessor.processDirectory(myFullPath.toString(), myRelPath.toString(), myIOPath.toString(), version, myConnection);
+      }
+      myRootProcessed = true;
+    }
+
+    public void finishProcessingDirectory() throws IOException, VcsException {
+      myRootProcessed = true;
+      leave();
+      myVersionProcessor.finishProcessingDirectory();
+    }
   }
-  
 }
@@ -16,42 +16,89 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
-import java.io.File;
-import java.util.Date;
-import java.util.List;
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.BuildAgent;
 import jetbrains.buildServer.BuildType;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseSupport;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.DateRevision;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.Revision;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildRevision;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.cleanup.CleanupExtension;
 import jetbrains.buildServer.serverSide.cleanup.CleanupExtensionAdapter;
 import jetbrains.buildServer.serverSide.cleanup.CleanupProcessState;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.Hash;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import jetbrains.buildServer.vcs.IncludeRule;
+import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 
 public class ClearCaseStructureCache {
+  private static final Logger LOG = Logger.getLogger(ClearCaseStructureCache.class);
+  static final String RESCAN_SUFFIX = ".rescan";
+  private static final int PREBUILD_THREADS = TeamCityProperties.getInteger("clearcase.structure.cache.prebuild.threads", 1);
+  private static final String INDEX_FILE_NAME = "index";
+
   private final @NotNull File myBaseDir;
   private final @NotNull ClearCaseSupport myParentSupport;
+  private final @NotNull ConcurrentMap<File, NavigableSet<Long>> mySnapshotIndices = new ConcurrentHashMap<File, NavigableSet<Long>>();
+  private final @NotNull ExecutorService myMaintenanceExecutor = ExecutorsFactory.newExecutor("ClearCase structure cache maintenance");
+  private final @NotNull StructureCacheQuota myQuota = new StructureCacheQuota();
+  private final @NotNull AtomicBoolean myEvictionScheduled = new AtomicBoolean();
+  private volatile @Nullable SBuildServer myServer;
+  private final @Nullable ThreadPoolExecutor myPrebuildExecutor = PREBUILD_THREADS > 0 ? createPrebuildExecutor() : null;
+  private final @NotNull ConcurrentMap<Long, Revision> myPendingPrebuilds = new ConcurrentHashMap<Long, Revision>();
+  private final @NotNull ConcurrentMap<Long, String> myPreparedRevisions = new ConcurrentHashMap<Long, String>();
+  private final @NotNull Set<File> myCompactedSnapshots = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  private final @NotNull ConcurrentMap<File, Object> mySnapshotLocks = new ConcurrentHashMap<File, Object>();
+  private final @NotNull PatchCache myPatchCache;
 
   public ClearCaseStructureCache(final @NotNull File baseDir, final @NotNull ClearCaseSupport support) {
     myBaseDir = baseDir;
     myParentSupport = support;
+    myPatchCache = new PatchCache(new File(baseDir.getParentFile(), "clearCasePatches"));
+  }
+
+  @NotNull
+  public PatchCache getPatchCache() {
+    return myPatchCache;
   }
 
   public void register(final @NotNull SBuildServer server, final @NotNull EventDispatcher<BuildServerListener> dispatcher) {
+    myServer = server;
     server.registerExtension(CleanupExtension.class, ClearCaseStructureCache.class.getName(), new ClearcaseCacheGeneralDataCleaner());
 
     dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        myMaintenanceExecutor.shutdownNow();
+        if (myPrebuildExecutor != null) {
+          myPrebuildExecutor.shutdownNow();
+        }
+      }
+
       @Override
       public void sourcesVersionReleased(@NotNull final BuildType configuration) {
         doSourcesVersionReleased(configuration);
@@ -82,24 +129,270 @@ public class ClearCaseStructureCache {
   @Nullable
   public CacheElement getNearestExistingCache(final @NotNull DateRevision version, final @NotNull String path, final @NotNull IncludeRule includeRule, final @NotNull VcsRoot vcsRoot) {
     File baseDir = createCacheBaseDir(path, vcsRoot);
-    File[] cacheFiles = baseDir.listFiles();
-    CacheElement result = null;
-    if (cacheFiles != null) {
-      for (File cacheFile : cacheFiles) {
-        String fileName = cacheFile.getName();
+    final NavigableSet<Long> index = getSnapshotIndex(baseDir);
+    Long cacheTime = index.floor(version.getDate().getTime());
+    while (cacheTime != null) {
+      if (new File(baseDir, String.valueOf(cacheTime)).isFile()) {
+        return getCache(Revision.fromDate(new Date(cacheTime)), path, includeRule, vcsRoot);
+      }
+      // removed outside of the cache
+      updateSnapshotIndex(baseDir, cacheTime, false);
+      cacheTime = index.lower(cacheTime);
+    }
+    return null;
+  }
+
+  void snapshotCreated(final @NotNull File cacheFile) {
+    try {
+      updateSnapshotIndex(cacheFile.getParentFile(), Long.parseLong(cacheFile.getName()), true);
+    } catch (NumberFormatException e) {
+      //ignore
+    }
+    scheduleEviction();
+  }
+
+  /**
+   * Builds the snapshot of the revision in background, so that the patches and labels do not wait for it.
+   * Only the latest revision of a root is built if several of them are detected while the previous one is being built.
+   */
+  public void schedulePrebuild(final @NotNull VcsRoot root, final @NotNull Revision revision) {
+    if (myPrebuildExecutor == null) return;
+    final long rootId = root.getId();
+    if (revision.asString().equals(myPreparedRevisions.get(rootId))) return;
+    if (myPendingPrebuilds.put(rootId, revision) != null) return;
+    myPrebuildExecutor.execute(new Runnable() {
+      public void run() {
+        final Revision latestRevision = myPendingPrebuilds.remove(rootId);
+        if (latestRevision == null) return;
         try {
-          long currentCacheTime = Long.parseLong(fileName);
-          if (currentCacheTime <= version.getDate().getTime()) {
-            if (result == null || result.getVersion().getDate().getTime() < currentCacheTime) {
-              result = getCache(Revision.fromDate(new Date(currentCacheTime)), path, includeRule, vcsRoot);
+          myParentSupport.prepareStructureCache(root, latestRevision);
+          myPreparedRevisions.put(rootId, latestRevision.asString());
+        } catch (Exception e) {
+          LOG.debug("ClearCase cache for " + root + " cannot be prepared for " + latestRevision.asString() + ": " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  @NotNull
+  private static ThreadPoolExecutor createPrebuildExecutor() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(PREBUILD_THREADS, PREBUILD_THREADS, 60, TimeUnit.SECONDS,
+                                                               new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger myCount = new AtomicInteger();
+
+      public Thread newThread(@NotNull final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "ClearCase structure cache prebuild " + myCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  void snapshotReadStarted(final @NotNull File cacheFile) {
+    myQuota.accessed(cacheFile);
+    myQuota.startReading(cacheFile);
+  }
+
+  void snapshotReadFinished(final @NotNull File cacheFile) {
+    myQuota.finishReading(cacheFile);
+  }
+
+  /**
+   * Should be called before the base of the published delta is released by {@link #snapshotReadFinished}
+   */
+  void deltaPublished(final @NotNull File baseFile) {
+    myQuota.deltaPublished(baseFile);
+  }
+
+  private void scheduleEviction() {
+    if (!StructureCacheQuota.isEnabled() || !myEvictionScheduled.compareAndSet(false, true)) return;
+    myMaintenanceExecutor.submit(new Runnable() {
+      public void run() {
+        try {
+          evictSnapshots();
+        } finally {
+          myEvictionScheduled.set(false);
+        }
+      }
+    });
+  }
+
+  private void evictSnapshots() {
+    final List<File> evicted = myQuota.evict(myBaseDir, getPinnedSnapshots());
+    for (File cacheFile : evicted) {
+      updateSnapshotIndex(cacheFile.getParentFile(), Long.parseLong(cacheFile.getName()), false);
+    }
+    if (!evicted.isEmpty()) {
+      LOG.debug("ClearCase structure cache size limit exceeded, removed " + evicted);
+    }
+  }
+
+  /**
+   * @return snapshots of the revisions the running builds were started with
+   */
+  @NotNull
+  private Set<File> getPinnedSnapshots() {
+    final SBuildServer server = myServer;
+    if (server == null) return Collections.emptySet();
+    final Set<File> result = new HashSet<File>();
+    final String vcsName = myParentSupport.getName();
+    for (SRunningBuild build : server.getRunningBuilds()) {
+      for (BuildRevision revision : build.getRevisions()) {
+        final VcsRoot root = revision.getRoot();
+        if (!vcsName.equals(root.getVcsName())) continue;
+        final DateRevision dateRevision;
+        try {
+          dateRevision = Revision.fromNotNullString(revision.getRevision()).getDateRevision();
+        } catch (ParseException e) {
+          continue;
+        }
+        final File cacheDir = getCacheDir(root);
+        final File[] pathDirs = cacheDir == null || dateRevision == null ? null : cacheDir.listFiles();
+        if (pathDirs == null) continue;
+        for (File pathDir : pathDirs) {
+          result.add(new File(pathDir, String.valueOf(dateRevision.getDate().getTime())));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the object to synchronize on while the snapshot file is built or replaced,
+   * the same for all threads until it is released by the thread which holds it
+   */
+  @NotNull
+  Object getSnapshotLock(final @NotNull File cacheFile) {
+    final Object lock = new Object();
+    final Object existing = mySnapshotLocks.putIfAbsent(cacheFile, lock);
+    return existing != null ? existing : lock;
+  }
+
+  /**
+   * Should be called while holding the lock, the threads waiting for it see the published snapshot
+   * and the threads coming later do not need the lock anymore
+   */
+  void releaseSnapshotLock(final @NotNull File cacheFile, final @NotNull Object lock) {
+    mySnapshotLocks.remove(cacheFile, lock);
+  }
+
+  /**
+   * Replaces the delta snapshot with the complete one in background, the deltas based on it stay valid
+   */
+  void scheduleCompaction(final @NotNull File cacheFile) {
+    if (!myCompactedSnapshots.add(cacheFile)) return;
+    myMaintenanceExecutor.submit(new Runnable() {
+      public void run() {
+        final Object lock = getSnapshotLock(cacheFile);
+        try {
+          synchronized (lock) {
+            try {
+              SnapshotDelta.compact(cacheFile);
+            }
+            finally {
+              releaseSnapshotLock(cacheFile, lock);
             }
           }
+          LOG.debug("ClearCase cache " + cacheFile.getPath() + " compacted");
+        } catch (IOException e) {
+          LOG.debug("ClearCase cache " + cacheFile.getPath() + " cannot be compacted: " + e.getMessage());
+        } catch (VcsException e) {
+          LOG.debug("ClearCase cache " + cacheFile.getPath() + " cannot be compacted: " + e.getMessage());
+        } finally {
+          myCompactedSnapshots.remove(cacheFile);
+        }
+      }
+    });
+  }
+
+  /**
+   * Snapshot times of a cache directory, loaded from the index file (or the directory content if there is no index) on the first access
+   */
+  @NotNull
+  private NavigableSet<Long> getSnapshotIndex(final @NotNull File baseDir) {
+    NavigableSet<Long> index = mySnapshotIndices.get(baseDir);
+    if (index == null) {
+      index = loadSnapshotIndex(baseDir);
+      final NavigableSet<Long> existing = mySnapshotIndices.putIfAbsent(baseDir, index);
+      if (existing != null) {
+        index = existing;
+      }
+    }
+    return index;
+  }
+
+  private void updateSnapshotIndex(final @NotNull File baseDir, final long cacheTime, final boolean add) {
+    final NavigableSet<Long> index = getSnapshotIndex(baseDir);
+    synchronized (index) {
+      final boolean changed = add ? index.add(cacheTime) : index.remove(cacheTime);
+      if (changed) {
+        saveSnapshotIndex(baseDir, index);
+      }
+    }
+  }
+
+  @NotNull
+  private static NavigableSet<Long> loadSnapshotIndex(final @NotNull File baseDir) {
+    final NavigableSet<Long> index = new ConcurrentSkipListSet<Long>();
+    final File indexFile = new File(baseDir, INDEX_FILE_NAME);
+    if (indexFile.isFile()) {
+      try {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+          final int size = input.readInt();
+          for (int i = 0; i < size; i++) {
+            index.add(input.readLong());
+          }
+          return index;
+        }
+        finally {
+          input.close();
+        }
+      } catch (IOException e) {
+        index.clear();
+      }
+    }
+
+    final File[] cacheFiles = baseDir.listFiles();
+    if (cacheFiles != null) {
+      for (File cacheFile : cacheFiles) {
+        try {
+          index.add(Long.parseLong(cacheFile.getName()));
         } catch (NumberFormatException e) {
           //ignore
         }
       }
     }
-    return result;
+    return index;
+  }
+
+  private static void saveSnapshotIndex(final @NotNull File baseDir, final @NotNull NavigableSet<Long> index) {
+    if (!baseDir.isDirectory()) return;
+    final File indexFile = new File(baseDir, INDEX_FILE_NAME);
+    final File tempFile = new File(baseDir, INDEX_FILE_NAME + ".tmp");
+    try {
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        output.writeInt(index.size());
+        for (Long cacheTime : index) {
+          output.writeLong(cacheTime);
+        }
+      }
+      finally {
+        output.close();
+      }
+      FileUtil.delete(indexFile);
+      if (!tempFile.renameTo(indexFile)) {
+        FileUtil.delete(tempFile);
+      }
+    } catch (IOException e) {
+      // the index is rebuilt from the directory content next time
+      FileUtil.delete(indexFile);
+      FileUtil.delete(tempFile);
+    }
   }
 
   @Nullable
@@ -120,10 +413,19 @@ public class ClearCaseStructureCache {
   }
 
   public void cleanup() {
+    myPatchCache.cleanup();
+    if (StructureCacheQuota.isEnabled()) {
+      evictSnapshots();
+      return;
+    }
     doCleanup(true);
   }
 
   public void cleanup(final @NotNull VcsRoot root) {
+    if (StructureCacheQuota.isEnabled()) {
+      evictSnapshots();
+      return;
+    }
     final File cacheDir = getCacheDir(root);
     if (cacheDir == null) return;
     cleanupFolder(cacheDir, true);
@@ -166,25 +468,113 @@ public class ClearCaseStructureCache {
     }
 
     String keepFileName = String.valueOf(lastCacheDate);
+    String keepRescanFileName = keepFileName + RESCAN_SUFFIX;
+    // the snapshots the kept delta is based on are removed after it is compacted
+    final Set<String> keepBaseFileNames = keepLastCache ? SnapshotDelta.getBaseFileNames(new File(subDir, keepFileName)) : Collections.<String>emptySet();
 
     for (File versCach : versCaches) {
-      if (!keepLastCache || !versCach.getName().equals(keepFileName)) {
+      if (!keepLastCache || !versCach.getName().equals(keepFileName) && !versCach.getName().equals(keepRescanFileName) &&
+                            !keepBaseFileNames.contains(versCach.getName())) {
         FileUtil.delete(versCach);
+        DecodedSnapshotCache.invalidate(versCach);
+        myQuota.forget(versCach);
       }
     }
     
     if (!keepLastCache) {
       FileUtil.delete(subDir);
     }
+
+    if (keepLastCache && lastCacheDate != -1) {
+      final NavigableSet<Long> index = new ConcurrentSkipListSet<Long>();
+      index.add(lastCacheDate);
+      if (!keepBaseFileNames.isEmpty()) {
+        scheduleCompaction(new File(subDir, keepFileName));
+      }
+      mySnapshotIndices.put(subDir, index);
+      saveSnapshotIndex(subDir, index);
+    }
+    else {
+      mySnapshotIndices.remove(subDir);
+    }
   }
 
   public void clearCaches(final @NotNull VcsRoot root) {
+    myPatchCache.clear(root);
     final File dir = getCacheDir(root);
     if (dir != null) {
       cleanupFolder(dir, false);
     }
   }
 
+  /**
+   * Keeps only the last cache of every path and marks it as requiring the given subtrees to be read again
+   * before it can be used, other caches are removed
+   * @param subtreePaths full paths of the directories which content can be different now
+   */
+  public void invalidateSubtrees(final @NotNull VcsRoot root, final @NotNull Collection<String> subtreePaths) throws IOException {
+    myPatchCache.clear(root);
+    final File dir = getCacheDir(root);
+    if (dir == null) return;
+    cleanupFolder(dir, true);
+    final File[] subDirs = dir.listFiles();
+    if (subDirs == null) return;
+    for (File subDir : subDirs) {
+      final File[] versCaches = subDir.listFiles();
+      if (versCaches == null) continue;
+      for (File versCache : versCaches) {
+        if (StructureCacheQuota.isSnapshotName(versCache.getName())) {
+          addRescanSubtrees(versCache, subtreePaths);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return full paths of the directories which must be read again before the cache can be used, empty if the cache is up to date
+   */
+  @NotNull
+  static Set<String> getRescanSubtrees(final @NotNull File cacheFile) throws IOException {
+    final Set<String> result = new TreeSet<String>();
+    final File rescanFile = getRescanFile(cacheFile);
+    if (!rescanFile.isFile()) return result;
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rescanFile), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() > 0) {
+          result.add(line);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return result;
+  }
+
+  static void removeRescanSubtrees(final @NotNull File cacheFile) {
+    FileUtil.delete(getRescanFile(cacheFile));
+  }
+
+  private static void addRescanSubtrees(final @NotNull File cacheFile, final @NotNull Collection<String> subtreePaths) throws IOException {
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(getRescanFile(cacheFile), true), "UTF-8");
+    try {
+      for (String path : subtreePaths) {
+        writer.write(path);
+        writer.write('\n');
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  @NotNull
+  private static File getRescanFile(final @NotNull File cacheFile) {
+    return new File(cacheFile.getPath() + RESCAN_SUFFIX);
+  }
+
   @Nullable
   public File getCacheDir(final @NotNull VcsRoot root) {
     return getCacheDir(root, false);
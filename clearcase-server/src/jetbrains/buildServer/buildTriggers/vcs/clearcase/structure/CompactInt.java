@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned variable-length integers of the cache files: seven bits per byte starting from the lowest ones,
+ * the high bit of a byte is set when more bytes follow.
+ */
+class CompactInt {
+  private static final int MAX_SHIFT = 32;
+
+  private CompactInt() {}
+
+  static void write(final DataOutput output, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      output.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output.writeByte(value);
+  }
+
+  static int read(final DataInput input) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < MAX_SHIFT; shift += 7) {
+      final int b = input.readUnsignedByte();
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new IOException("Malformed compact integer");
+  }
+
+  static int read(final ByteBuffer buffer) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < MAX_SHIFT; shift += 7) {
+      final int b = buffer.get() & 0xFF;
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new IOException("Malformed compact integer");
+  }
+}
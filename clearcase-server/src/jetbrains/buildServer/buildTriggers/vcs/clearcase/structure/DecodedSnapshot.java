@@ -0,0 +1,268 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Structure snapshot decoded into memory. Names and versions are kept once in dictionaries,
+ * the structure is an array of record types with the dictionary ids of the elements.
+ */
+class DecodedSnapshot {
+  private static final int TYPE_MASK = 0x3;
+  private static final int FLAGS_SHIFT = 2;
+
+  @NotNull private final String[] myNames;
+  @NotNull private final String[] myVersions;
+  @NotNull private final byte[] myRecords;
+  @NotNull private final int[] myNameIds;
+  @NotNull private final int[] myVersionIds;
+  private final long myWeight;
+  private long myContentHash;
+
+  private DecodedSnapshot(@NotNull final String[] names,
+                          @NotNull final String[] versions,
+                          @NotNull final byte[] records,
+                          @NotNull final int[] nameIds,
+                          @NotNull final int[] versionIds) {
+    myNames = names;
+    myVersions = versions;
+    myRecords = records;
+    myNameIds = nameIds;
+    myVersionIds = versionIds;
+    myWeight = 64 + getWeight(names) + getWeight(versions) + records.length + 4L * (nameIds.length + versionIds.length);
+  }
+
+  /**
+   * @return approximate number of bytes occupied in memory
+   */
+  long getWeight() {
+    return myWeight;
+  }
+
+  int getRecordCount() {
+    return myRecords.length;
+  }
+
+  /**
+   * @return {@link CacheElement#FILE_TYPE}, {@link CacheElement#DIR_OPEN_TYPE} or {@link CacheElement#DIR_CLOSE_TYPE}
+   */
+  int getRecordType(final int record) {
+    return myRecords[record] & TYPE_MASK;
+  }
+
+  int getRecordFlags(final int record) {
+    return myRecords[record] >> FLAGS_SHIFT;
+  }
+
+  /**
+   * @param element index of a file or directory record among the records which are not directory closings
+   */
+  @NotNull
+  String getElementName(final int element) {
+    return myNames[myNameIds[element]];
+  }
+
+  @NotNull
+  String getElementVersion(final int element) {
+    return myVersions[myVersionIds[element]];
+  }
+
+  /**
+   * @return hash of the structure, equal for the snapshots of the same structure regardless of how they were stored
+   */
+  long getContentHash() {
+    long result = myContentHash;
+    if (result == 0) {
+      result = myRecords.length;
+      int element = 0;
+      for (byte record : myRecords) {
+        result = result * 31 + record;
+        if ((record & TYPE_MASK) != CacheElement.DIR_CLOSE_TYPE) {
+          result = result * 31 + myNames[myNameIds[element]].hashCode();
+          result = result * 31 + myVersions[myVersionIds[element]].hashCode();
+          element++;
+        }
+      }
+      if (result == 0) {
+        result = 1;
+      }
+      myContentHash = result;
+    }
+    return result;
+  }
+
+  /**
+   * Writes the snapshot in the current cache format
+   */
+  void writeTo(@NotNull final File file) throws IOException, VcsException {
+    final WriteVersionProcessor writeProcessor = new WriteVersionProcessor(new FileOutputStream(file));
+    try {
+      replay(new CacheProcessor.RecordHandler() {
+        public void processFile(@NotNull final CharSequence name, @NotNull final String version, final boolean text, final boolean executable)
+          throws VcsException {
+          writeProcessor.writeFile(version, name.toString(), text, executable);
+        }
+
+        public void processDirectory(@NotNull final CharSequence name, @NotNull final String version) throws VcsException {
+          writeProcessor.writeDirOpen(version, name.toString());
+        }
+
+        public void finishProcessingDirectory() throws VcsException {
+          writeProcessor.writeDirClose();
+        }
+      });
+      writeProcessor.finish();
+    } finally {
+      writeProcessor.close();
+    }
+  }
+
+  void replay(@NotNull final CacheProcessor.RecordHandler handler) throws IOException, VcsException {
+    int element = 0;
+    for (byte record : myRecords) {
+      final int type = record & TYPE_MASK;
+      if (type == CacheElement.FILE_TYPE) {
+        final int flags = record >> FLAGS_SHIFT;
+        handler.processFile(myNames[myNameIds[element]], myVersions[myVersionIds[element]],
+                            (flags & CacheElement.TEXT_FLAG) != 0, (flags & CacheElement.EXECUTABLE_FLAG) != 0);
+        element++;
+      }
+      else if (type == CacheElement.DIR_OPEN_TYPE) {
+        handler.processDirectory(myNames[myNameIds[element]], myVersions[myVersionIds[element]]);
+        element++;
+      }
+      else {
+        handler.finishProcessingDirectory();
+      }
+    }
+  }
+
+  private static long getWeight(@NotNull final String[] strings) {
+    long result = 16 + 4L * strings.length;
+    for (String string : strings) {
+      result += 40 + 2L * string.length();
+    }
+    return result;
+  }
+
+  static class Builder implements CacheProcessor.RecordHandler, SnapshotWriter {
+    private final Map<String, Integer> myNameIds = new HashMap<String, Integer>();
+    private final Map<String, Integer> myVersionIds = new HashMap<String, Integer>();
+    private final List<String> myNames = new ArrayList<String>();
+    private final List<String> myVersions = new ArrayList<String>();
+    private byte[] myRecords = new byte[1024];
+    private int myRecordCount;
+    private int[] myElementNameIds = new int[1024];
+    private int[] myElementVersionIds = new int[1024];
+    private int myElementCount;
+
+    public void processFile(@NotNull final CharSequence name, @NotNull final String version, final boolean text, final boolean executable) {
+      final int flags = (text ? CacheElement.TEXT_FLAG : 0) | (executable ? CacheElement.EXECUTABLE_FLAG : 0);
+      addRecord(CacheElement.FILE_TYPE | (flags << FLAGS_SHIFT));
+      addElement(name.toString(), version);
+    }
+
+    public void processDirectory(@NotNull final CharSequence name, @NotNull final String version) {
+      addRecord(CacheElement.DIR_OPEN_TYPE);
+      addElement(name.toString(), version);
+    }
+
+    public void finishProcessingDirectory() {
+      addRecord(CacheElement.DIR_CLOSE_TYPE);
+    }
+
+    public void processFile(final String fileFullPath,
+                            final String relPath,
+                            final String pname,
+                            final String version,
+                            final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) {
+      writeFile(version, new File(relPath).getName(), text, executable);
+    }
+
+    public void processDirectory(final String fileFullPath,
+                                 final String relPath,
+                                 final String pname,
+                                 final String version,
+                                 final ClearCaseConnection clearCaseConnection) {
+      writeDirOpen(version, new File(relPath).getName());
+    }
+
+    public void writeFile(final String version, final String fileName, final boolean text, final boolean executable) {
+      processFile(fileName, version, text, executable);
+    }
+
+    public void writeDirOpen(final String version, final String name) {
+      processDirectory(name, version);
+    }
+
+    public void writeDirClose() {
+      finishProcessingDirectory();
+    }
+
+    @NotNull
+    DecodedSnapshot build() {
+      final byte[] records = new byte[myRecordCount];
+      System.arraycopy(myRecords, 0, records, 0, myRecordCount);
+      final int[] nameIds = new int[myElementCount];
+      System.arraycopy(myElementNameIds, 0, nameIds, 0, myElementCount);
+      final int[] versionIds = new int[myElementCount];
+      System.arraycopy(myElementVersionIds, 0, versionIds, 0, myElementCount);
+      return new DecodedSnapshot(myNames.toArray(new String[myNames.size()]), myVersions.toArray(new String[myVersions.size()]),
+                                 records, nameIds, versionIds);
+    }
+
+    private void addRecord(final int record) {
+      if (myRecordCount == myRecords.length) {
+        final byte[] records = new byte[myRecords.length * 2];
+        System.arraycopy(myRecords, 0, records, 0, myRecordCount);
+        myRecords = records;
+      }
+      myRecords[myRecordCount++] = (byte)record;
+    }
+
+    private void addElement(@NotNull final String name, @NotNull final String version) {
+      if (myElementCount == myElementNameIds.length) {
+        final int[] nameIds = new int[myElementNameIds.length * 2];
+        System.arraycopy(myElementNameIds, 0, nameIds, 0, myElementCount);
+        myElementNameIds = nameIds;
+        final int[] versionIds = new int[myElementVersionIds.length * 2];
+        System.arraycopy(myElementVersionIds, 0, versionIds, 0, myElementCount);
+        myElementVersionIds = versionIds;
+      }
+      myElementNameIds[myElementCount] = getId(name, myNameIds, myNames);
+      myElementVersionIds[myElementCount] = getId(version, myVersionIds, myVersions);
+      myElementCount++;
+    }
+
+    private static int getId(@NotNull final String value, @NotNull final Map<String, Integer> ids, @NotNull final List<String> values) {
+      final Integer id = ids.get(value);
+      if (id != null) return id;
+      ids.put(value, values.size());
+      values.add(value);
+      return values.size() - 1;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps recently replayed structure snapshots decoded in memory, so that the full patches and labels built for
+ * the same revision do not read and decode the snapshot file again. The snapshots are evicted in the least recently
+ * used order when their total weight exceeds the limit. A snapshot is used only while its file was not rewritten.
+ */
+public class DecodedSnapshotCache {
+  private static final Logger LOG = Logger.getLogger(DecodedSnapshotCache.class);
+
+  private static final boolean ENABLED = !TeamCityProperties.getBoolean("clearcase.disable.structure.cache.memory.tier");
+  private static final long MAX_WEIGHT = TeamCityProperties.getInteger("clearcase.structure.cache.memory.tier.size.mb", 64) * 1024L * 1024L;
+
+  @NotNull private static final Map<String, Entry> ourSnapshots = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private static long ourWeight;
+
+  @NotNull private static final AtomicLong ourHits = new AtomicLong();
+  @NotNull private static final AtomicLong ourMisses = new AtomicLong();
+  @NotNull private static final AtomicLong ourEvictions = new AtomicLong();
+
+  /**
+   * @return decoded snapshot of the file or null if it is not in memory or the file was changed since it was decoded
+   */
+  @Nullable
+  static DecodedSnapshot get(@NotNull final File cacheFile) {
+    if (!ENABLED) return null;
+    final String key = cacheFile.getAbsolutePath();
+    final long lastModified = cacheFile.lastModified();
+    final long length = cacheFile.length();
+    synchronized (ourSnapshots) {
+      final Entry entry = ourSnapshots.get(key);
+      if (entry != null) {
+        if (entry.myLastModified == lastModified && entry.myLength == length) {
+          ourHits.incrementAndGet();
+          return entry.mySnapshot;
+        }
+        remove(key);
+      }
+    }
+    ourMisses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * @return true if the snapshot of the file may be kept in memory after it is decoded
+   */
+  static boolean accepts(@NotNull final File cacheFile) {
+    return ENABLED && cacheFile.length() <= MAX_WEIGHT;
+  }
+
+  static void put(@NotNull final File cacheFile, final long lastModified, final long length, @NotNull final DecodedSnapshot snapshot) {
+    if (!ENABLED || snapshot.getWeight() > MAX_WEIGHT) return;
+    final String key = cacheFile.getAbsolutePath();
+    synchronized (ourSnapshots) {
+      remove(key);
+      ourSnapshots.put(key, new Entry(snapshot, lastModified, length));
+      ourWeight += snapshot.getWeight();
+      final Iterator<Map.Entry<String, Entry>> iterator = ourSnapshots.entrySet().iterator();
+      while (ourWeight > MAX_WEIGHT && iterator.hasNext()) {
+        final Map.Entry<String, Entry> eldest = iterator.next();
+        ourWeight -= eldest.getValue().mySnapshot.getWeight();
+        iterator.remove();
+        ourEvictions.incrementAndGet();
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("ClearCase structure snapshots in memory: " + getStatistics());
+    }
+  }
+
+  public static void invalidate(@NotNull final File cacheFile) {
+    synchronized (ourSnapshots) {
+      remove(cacheFile.getAbsolutePath());
+    }
+  }
+
+  public static long getHitCount() {
+    return ourHits.get();
+  }
+
+  public static long getMissCount() {
+    return ourMisses.get();
+  }
+
+  public static long getEvictionCount() {
+    return ourEvictions.get();
+  }
+
+  public static long getWeight() {
+    synchronized (ourSnapshots) {
+      return ourWeight;
+    }
+  }
+
+  @NotNull
+  public static String getStatistics() {
+    final int size;
+    final long weight;
+    synchronized (ourSnapshots) {
+      size = ourSnapshots.size();
+      weight = ourWeight;
+    }
+    return size + " snapshots, " + weight + " of " + MAX_WEIGHT + " bytes, " +
+           getHitCount() + " hits, " + getMissCount() + " misses, " + getEvictionCount() + " evictions";
+  }
+
+  private static void remove(@NotNull final String key) {
+    final Entry entry = ourSnapshots.remove(key);
+    if (entry != null) {
+      ourWeight -= entry.mySnapshot.getWeight();
+    }
+  }
+
+  private static class Entry {
+    @NotNull private final DecodedSnapshot mySnapshot;
+    private final long myLastModified;
+    private final long myLength;
+
+    private Entry(@NotNull final DecodedSnapshot snapshot, final long lastModified, final long length) {
+      mySnapshot = snapshot;
+      myLastModified = lastModified;
+      myLength = length;
+    }
+  }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.Revision;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the recorded full patches of the roots, so that the clean checkouts of the same root, include rule and
+ * revision are replayed from one file instead of walking the tree and fetching every file again. The patches of
+ * a root are removed together with its structure snapshots, the patches not used between two cleanups are removed
+ * by the cleanup and the least recently used ones are removed when the total size exceeds the limit.
+ */
+public class PatchCache {
+  private static final Logger LOG = Logger.getLogger(PatchCache.class);
+
+  private static final boolean ENABLED = TeamCityProperties.getBoolean("clearcase.full.patch.cache.enabled");
+  private static final long MAX_SIZE = TeamCityProperties.getInteger("clearcase.full.patch.cache.max.size.mb", 4096) * 1024L * 1024L;
+
+  private static final int FORMAT_MAGIC = 0x43435041;
+  private static final byte FORMAT_VERSION = 1;
+
+  private static final byte END = 0;
+  private static final byte CREATE_DIRECTORY = 1;
+  private static final byte DELETE_DIRECTORY = 2;
+  private static final byte DELETE_FILE = 3;
+  private static final byte TEXT_FILE = 4;
+  private static final byte BINARY_FILE = 5;
+
+  private static final String PATCH_SUFFIX = ".patch";
+
+  @NotNull private final File myBaseDir;
+  private volatile long myLastCleanup = System.currentTimeMillis();
+
+  PatchCache(@NotNull final File baseDir) {
+    myBaseDir = baseDir;
+  }
+
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+  /**
+   * Writes the recorded patch to the builder
+   *
+   * @return false if there is no complete patch recorded for the root, include rule and revision
+   */
+  public boolean replay(@NotNull final VcsRoot root,
+                        @NotNull final String includeRule,
+                        @NotNull final Revision revision,
+                        @NotNull final PatchBuilder builder) throws IOException {
+    final File patchFile = getPatchFile(root, includeRule, revision);
+    if (!patchFile.isFile()) return false;
+
+    final InputStream input;
+    try {
+      input = new FileInputStream(patchFile);
+    }
+    catch (final FileNotFoundException e) {
+      return false; // removed by the eviction
+    }
+    try {
+      if (!isComplete(input)) {
+        LOG.debug("ClearCase recorded patch " + patchFile + " is broken, removing it");
+        FileUtil.delete(patchFile);
+        return false;
+      }
+    }
+    finally {
+      input.close();
+    }
+
+    final DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(patchFile)));
+    try {
+      readHeader(data);
+      byte type;
+      while ((type = data.readByte()) != END) {
+        final File path = new File(data.readUTF());
+        switch (type) {
+          case CREATE_DIRECTORY:
+            builder.createDirectory(path);
+            break;
+          case DELETE_DIRECTORY:
+            builder.deleteDirectory(path, false);
+            break;
+          case DELETE_FILE:
+            builder.deleteFile(path, false);
+            break;
+          default:
+            final String mode = data.readBoolean() ? data.readUTF() : null;
+            final long length = data.readLong();
+            final LimitedInputStream content = new LimitedInputStream(data, length);
+            if (type == TEXT_FILE) {
+              builder.changeOrCreateTextFile(path, mode, content, length, null);
+            }
+            else {
+              builder.changeOrCreateBinaryFile(path, mode, content, length);
+            }
+            content.skipRest();
+        }
+      }
+    }
+    finally {
+      data.close();
+    }
+    //noinspection ResultOfMethodCallIgnored
+    patchFile.setLastModified(System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * @return recorder of the patch being built, the patch is available after {@link Recorder#commit}
+   */
+  @NotNull
+  public Recorder startRecording(@NotNull final VcsRoot root, @NotNull final String includeRule, @NotNull final Revision revision) {
+    return new Recorder(getPatchFile(root, includeRule, revision));
+  }
+
+  /**
+   * Removes the patches of the root, called when its structure snapshots are removed
+   */
+  void clear(@NotNull final VcsRoot root) {
+    FileUtil.delete(getRootDir(root));
+  }
+
+  /**
+   * Removes the patches which were not used since the previous cleanup and the temporary files left
+   */
+  void cleanup() {
+    final long lastCleanup = myLastCleanup;
+    myLastCleanup = System.currentTimeMillis();
+    for (final File patchFile : listFiles(false)) {
+      if (patchFile.lastModified() < lastCleanup) {
+        FileUtil.delete(patchFile);
+      }
+    }
+  }
+
+  private void evict() {
+    final List<File> patches = listFiles(true);
+    long totalSize = 0;
+    for (final File patchFile : patches) {
+      totalSize += patchFile.length();
+    }
+    if (totalSize <= MAX_SIZE) return;
+
+    final File[] byAge = patches.toArray(new File[patches.size()]);
+    Arrays.sort(byAge, new Comparator<File>() {
+      public int compare(final File o1, final File o2) {
+        final long diff = o1.lastModified() - o2.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+    for (final File patchFile : byAge) {
+      if (totalSize <= MAX_SIZE) break;
+      totalSize -= patchFile.length();
+      FileUtil.delete(patchFile);
+      LOG.debug("ClearCase recorded patch size limit exceeded, removed " + patchFile);
+    }
+  }
+
+  @NotNull
+  private List<File> listFiles(final boolean patchesOnly) {
+    final List<File> result = new ArrayList<File>();
+    final File[] rootDirs = myBaseDir.listFiles();
+    if (rootDirs == null) return result;
+    for (final File rootDir : rootDirs) {
+      final File[] patchFiles = rootDir.listFiles();
+      if (patchFiles == null) continue;
+      for (final File patchFile : patchFiles) {
+        if (!patchesOnly || patchFile.getName().endsWith(PATCH_SUFFIX)) {
+          result.add(patchFile);
+        }
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private File getRootDir(@NotNull final VcsRoot root) {
+    return new File(myBaseDir, String.valueOf(root.getId()));
+  }
+
+  @NotNull
+  private File getPatchFile(@NotNull final VcsRoot root, @NotNull final String includeRule, @NotNull final Revision revision) {
+    final String key = new TreeMap<String, String>(root.getProperties()).toString() + "\n" + includeRule + "\n" + revision.asString();
+    return new File(getRootDir(root), getHash(key) + PATCH_SUFFIX);
+  }
+
+  @NotNull
+  private static String getHash(@NotNull final String key) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+      final StringBuilder result = new StringBuilder();
+      for (final byte b : digest) {
+        result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+    }
+    catch (final NoSuchAlgorithmException e) {
+      return Integer.toHexString(key.hashCode());
+    }
+    catch (final UnsupportedEncodingException e) {
+      return Integer.toHexString(key.hashCode());
+    }
+  }
+
+  private static void readHeader(@NotNull final DataInputStream data) throws IOException {
+    if (data.readInt() != FORMAT_MAGIC || data.readByte() != FORMAT_VERSION) {
+      throw new IOException("Unknown recorded patch format");
+    }
+  }
+
+  /**
+   * Reads the whole patch and checks its end marker and checksum
+   */
+  private static boolean isComplete(@NotNull final InputStream input) {
+    try {
+      final CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(input), new CRC32());
+      final DataInputStream data = new DataInputStream(checked);
+      readHeader(data);
+      byte type;
+      while ((type = data.readByte()) != END) {
+        data.readUTF();
+        if (type == TEXT_FILE || type == BINARY_FILE) {
+          if (data.readBoolean()) {
+            data.readUTF();
+          }
+          new LimitedInputStream(data, data.readLong()).skipRest();
+        }
+      }
+      final long checksum = checked.getChecksum().getValue();
+      return data.readLong() == checksum;
+    }
+    catch (final IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes the operations of a patch to a temporary file, which replaces the recorded patch when the patch is complete.
+   * A failure to write stops the recording only, the patch itself is built as usual.
+   */
+  public class Recorder {
+    @NotNull private final File myPatchFile;
+    @NotNull private final File myTempFile;
+    @Nullable private CheckedOutputStream myChecked;
+    @Nullable private DataOutputStream myData;
+
+    private Recorder(@NotNull final File patchFile) {
+      myPatchFile = patchFile;
+      myTempFile = CacheElement.createTempFile(patchFile);
+      try {
+        final File dir = patchFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create directory " + dir);
+        myChecked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(myTempFile)), new CRC32());
+        myData = new DataOutputStream(myChecked);
+        myData.writeInt(FORMAT_MAGIC);
+        myData.writeByte(FORMAT_VERSION);
+      }
+      catch (final IOException e) {
+        fail(e);
+      }
+    }
+
+    public void createDirectory(@NotNull final String path) {
+      writeOperation(CREATE_DIRECTORY, path);
+    }
+
+    public void deleteDirectory(@NotNull final String path) {
+      writeOperation(DELETE_DIRECTORY, path);
+    }
+
+    public void deleteFile(@NotNull final String path) {
+      writeOperation(DELETE_FILE, path);
+    }
+
+    public void writeFile(@NotNull final String path, @Nullable final String mode, final boolean text, @NotNull final File content) {
+      final DataOutputStream data = myData;
+      if (data == null) return;
+      try {
+        data.writeByte(text ? TEXT_FILE : BINARY_FILE);
+        data.writeUTF(path);
+        data.writeBoolean(mode != null);
+        if (mode != null) {
+          data.writeUTF(mode);
+        }
+        final long length = content.length();
+        data.writeLong(length);
+        final InputStream input = new FileInputStream(content);
+        try {
+          if (copy(input, data, length) != length) throw new IOException("File " + content + " changed while it was recorded");
+        }
+        finally {
+          input.close();
+        }
+      }
+      catch (final IOException e) {
+        fail(e);
+      }
+    }
+
+    /**
+     * Makes the recorded patch available for the replay
+     */
+    public void commit() {
+      final DataOutputStream data = myData;
+      final CheckedOutputStream checked = myChecked;
+      if (data == null || checked == null) return;
+      try {
+        data.writeByte(END);
+        data.flush();
+        data.writeLong(checked.getChecksum().getValue());
+        data.close();
+        myData = null;
+        CacheElement.publish(myTempFile, myPatchFile);
+      }
+      catch (final IOException e) {
+        fail(e);
+        return;
+      }
+      evict();
+    }
+
+    /**
+     * Drops the recorded operations
+     */
+    public void abort() {
+      close();
+    }
+
+    private void writeOperation(final byte type, @NotNull final String path) {
+      final DataOutputStream data = myData;
+      if (data == null) return;
+      try {
+        data.writeByte(type);
+        data.writeUTF(path);
+      }
+      catch (final IOException e) {
+        fail(e);
+      }
+    }
+
+    private void fail(@NotNull final IOException e) {
+      LOG.warn("Cannot record ClearCase patch to " + myPatchFile + ": " + e.getMessage());
+      LOG.debug(e.getMessage(), e);
+      close();
+    }
+
+    private void close() {
+      if (myData != null) {
+        try {
+          myData.close();
+        }
+        catch (final IOException ignore) {
+        }
+        myData = null;
+      }
+      FileUtil.delete(myTempFile);
+    }
+  }
+
+  private static long copy(@NotNull final InputStream input, @NotNull final OutputStream output, final long length) throws IOException {
+    final byte[] buffer = new byte[64 * 1024];
+    long copied = 0;
+    while (copied < length) {
+      final int read = input.read(buffer, 0, (int)Math.min(buffer.length, length - copied));
+      if (read < 0) break;
+      output.write(buffer, 0, read);
+      copied += read;
+    }
+    return copied;
+  }
+
+  /**
+   * Content of a single file inside the patch, it is not closed by the patch builder
+   */
+  private static class LimitedInputStream extends InputStream {
+    @NotNull private final InputStream myInput;
+    private long myLeft;
+
+    private LimitedInputStream(@NotNull final InputStream input, final long length) {
+      myInput = input;
+      myLeft = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (myLeft <= 0) return -1;
+      final int result = myInput.read();
+      if (result < 0) throw new EOFException();
+      myLeft--;
+      return result;
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, final int off, final int len) throws IOException {
+      if (myLeft <= 0) return -1;
+      final int read = myInput.read(b, off, (int)Math.min(len, myLeft));
+      if (read < 0) throw new EOFException();
+      myLeft -= read;
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int)Math.min(myInput.available(), myLeft);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void skipRest() throws IOException {
+      while (myLeft > 0) {
+        final long skipped = myInput.skip(myLeft);
+        if (skipped <= 0) {
+          if (myInput.read() < 0) throw new EOFException();
+          myLeft--;
+        }
+        else {
+          myLeft -= skipped;
+        }
+      }
+    }
+  }
+}
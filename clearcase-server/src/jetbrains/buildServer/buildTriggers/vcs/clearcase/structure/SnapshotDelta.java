@@ -0,0 +1,456 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Structure snapshot stored as the differences from the snapshot of an earlier revision in the same cache directory.
+ * The differences are kept per directory: a directory whose list of direct children (with their versions and modes)
+ * differs from the parent snapshot is stored with its whole list, the content of other directories is taken from the parent.
+ * <p/>
+ * The parent is identified by its file name and the hash of its content, so it can be compacted into a complete
+ * snapshot without breaking the deltas based on it, while a parent rebuilt with a different structure invalidates them.
+ * <pre>
+ *   header:  int DELTA_FORMAT_MAGIC, byte FORMAT_VERSION, parent name, long parent content hash, chain length,
+ *            root name, root version
+ *   body:    number of directories, for each: directory path, number of children,
+ *            for each child: byte (type | flags << 2), name, version
+ *   trailer: byte END_TYPE, long CRC32 of all preceding bytes
+ * </pre>
+ */
+class SnapshotDelta {
+  static final boolean ENABLED = !TeamCityProperties.getBoolean("clearcase.disable.structure.cache.deltas");
+  static final int MAX_CHAIN_LENGTH = TeamCityProperties.getInteger("clearcase.structure.cache.delta.chain.length", 8);
+  static final long MAX_BASE_SIZE = TeamCityProperties.getInteger("clearcase.structure.cache.delta.base.size.mb", 16) * 1024L * 1024L;
+
+  private static final char PATH_SEPARATOR = '/';
+
+  @NotNull private final String myParentName;
+  private final long myParentContentHash;
+  private final int myChainLength;
+  @NotNull private final String myRootName;
+  @NotNull private final String myRootVersion;
+  @NotNull private final Map<String, List<Child>> myChangedDirectories;
+
+  private SnapshotDelta(@NotNull final String parentName,
+                        final long parentContentHash,
+                        final int chainLength,
+                        @NotNull final String rootName,
+                        @NotNull final String rootVersion,
+                        @NotNull final Map<String, List<Child>> changedDirectories) {
+    myParentName = parentName;
+    myParentContentHash = parentContentHash;
+    myChainLength = chainLength;
+    myRootName = rootName;
+    myRootVersion = rootVersion;
+    myChangedDirectories = changedDirectories;
+  }
+
+  int getChainLength() {
+    return myChainLength;
+  }
+
+  /**
+   * @return the differences of the snapshot from the parent or null if the snapshot should be stored completely
+   */
+  @Nullable
+  static SnapshotDelta compute(@NotNull final File parentFile,
+                               @NotNull final DecodedSnapshot parent,
+                               @NotNull final DecodedSnapshot snapshot) throws IOException {
+    final Tree parentTree = Tree.create(parent);
+    final Tree tree = Tree.create(snapshot);
+    if (parentTree == null || tree == null) return null;
+
+    final Map<String, List<Child>> changedDirectories = new LinkedHashMap<String, List<Child>>();
+    final int changedChildren = collectChangedDirectories(parentTree, 0, tree, 0, "", changedDirectories);
+    if (changedChildren > snapshot.getRecordCount() / 4) return null;
+
+    final int parentChainLength = isDelta(parentFile) ? read(parentFile).myChainLength : 0;
+    return new SnapshotDelta(parentFile.getName(), parent.getContentHash(), parentChainLength + 1,
+                             tree.getName(0), tree.getVersion(0), changedDirectories);
+  }
+
+  /**
+   * @return the number of stored children
+   */
+  private static int collectChangedDirectories(@NotNull final Tree parentTree,
+                                               final int parentDir,
+                                               @NotNull final Tree tree,
+                                               final int dir,
+                                               @NotNull final String path,
+                                               @NotNull final Map<String, List<Child>> changedDirectories) {
+    int result = 0;
+    if (parentDir < 0 || !tree.hasSameChildren(dir, parentTree, parentDir)) {
+      final List<Child> children = new ArrayList<Child>();
+      for (int child = dir + 1; child < tree.getEnd(dir); child = tree.getNext(child)) {
+        children.add(new Child(tree.mySnapshot.getRecordType(child), tree.mySnapshot.getRecordFlags(child), tree.getName(child), tree.getVersion(child)));
+      }
+      changedDirectories.put(path, children);
+      result += children.size();
+    }
+
+    final Map<String, Integer> parentDirs = parentDir < 0 ? Collections.<String, Integer>emptyMap() : parentTree.getChildDirectories(parentDir);
+    for (int child = dir + 1; child < tree.getEnd(dir); child = tree.getNext(child)) {
+      if (tree.mySnapshot.getRecordType(child) == CacheElement.DIR_OPEN_TYPE) {
+        final String name = tree.getName(child);
+        final Integer parentChild = parentDirs.get(name);
+        result += collectChangedDirectories(parentTree, parentChild == null ? -1 : parentChild, tree, child, getChildPath(path, name), changedDirectories);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Both writing and reading a delta keep the complete snapshot decoded in memory, so deltas are based only on
+   * snapshots whose chain is short enough and whose complete snapshot file is small enough. Larger snapshots
+   * are written and read as a stream of records.
+   * @return true if the next snapshot may be stored as the differences from the given one
+   */
+  static boolean canBeBasedOn(@NotNull final File parentFile) {
+    if (!ENABLED) return false;
+    try {
+      File file = parentFile;
+      for (int chainLength = 0; chainLength < MAX_CHAIN_LENGTH; chainLength++) {
+        final String parentName = readParentName(file);
+        if (parentName == null) return file.isFile() && file.length() <= MAX_BASE_SIZE;
+        file = new File(parentFile.getParentFile(), parentName);
+      }
+    } catch (IOException e) {
+      //the chain is broken, the next snapshot is stored completely
+    }
+    return false;
+  }
+
+  /**
+   * Restores the complete snapshot stored in the delta file from the snapshots it is based on
+   */
+  @NotNull
+  static DecodedSnapshot materialize(@NotNull final File deltaFile) throws IOException, VcsException {
+    final SnapshotDelta delta = read(deltaFile);
+    if (delta.myChainLength > MAX_CHAIN_LENGTH * 2) {
+      throw new IOException("Too long chain of deltas for " + deltaFile);
+    }
+    final File parentFile = new File(deltaFile.getParentFile(), delta.myParentName);
+    if (!parentFile.isFile()) {
+      throw new IOException("Base snapshot " + parentFile + " of " + deltaFile + " does not exist");
+    }
+    final DecodedSnapshot parent = CacheProcessor.getDecodedSnapshot(parentFile);
+    if (parent.getContentHash() != delta.myParentContentHash) {
+      throw new IOException("Base snapshot " + parentFile + " of " + deltaFile + " was changed");
+    }
+    final Tree parentTree = Tree.create(parent);
+    if (parentTree == null) {
+      throw new IOException("Base snapshot " + parentFile + " of " + deltaFile + " is empty");
+    }
+    final DecodedSnapshot.Builder builder = new DecodedSnapshot.Builder();
+    delta.restoreDirectory(parentTree, 0, "", delta.myRootName, delta.myRootVersion, builder);
+    return builder.build();
+  }
+
+  private void restoreDirectory(@NotNull final Tree parentTree,
+                                final int parentDir,
+                                @NotNull final String path,
+                                @NotNull final String name,
+                                @NotNull final String version,
+                                @NotNull final DecodedSnapshot.Builder builder) throws IOException {
+    builder.processDirectory(name, version);
+    final List<Child> children = myChangedDirectories.get(path);
+    if (children == null) {
+      if (parentDir < 0) {
+        throw new IOException("No content stored for the added directory " + path);
+      }
+      for (int child = parentDir + 1; child < parentTree.getEnd(parentDir); child = parentTree.getNext(child)) {
+        final String childName = parentTree.getName(child);
+        if (parentTree.mySnapshot.getRecordType(child) == CacheElement.DIR_OPEN_TYPE) {
+          restoreDirectory(parentTree, child, getChildPath(path, childName), childName, parentTree.getVersion(child), builder);
+        }
+        else {
+          final int flags = parentTree.mySnapshot.getRecordFlags(child);
+          builder.processFile(childName, parentTree.getVersion(child), (flags & CacheElement.TEXT_FLAG) != 0, (flags & CacheElement.EXECUTABLE_FLAG) != 0);
+        }
+      }
+    }
+    else {
+      final Map<String, Integer> parentDirs = parentDir < 0 ? Collections.<String, Integer>emptyMap() : parentTree.getChildDirectories(parentDir);
+      for (Child child : children) {
+        if (child.myType == CacheElement.DIR_OPEN_TYPE) {
+          final Integer parentChild = parentDirs.get(child.myName);
+          restoreDirectory(parentTree, parentChild == null ? -1 : parentChild, getChildPath(path, child.myName), child.myName, child.myVersion, builder);
+        }
+        else {
+          builder.processFile(child.myName, child.myVersion, (child.myFlags & CacheElement.TEXT_FLAG) != 0, (child.myFlags & CacheElement.EXECUTABLE_FLAG) != 0);
+        }
+      }
+    }
+    builder.finishProcessingDirectory();
+  }
+
+  /**
+   * Replaces the delta file with the complete snapshot it stores
+   */
+  static void compact(@NotNull final File deltaFile) throws IOException, VcsException {
+    if (!isDelta(deltaFile)) return;
+    final DecodedSnapshot snapshot = CacheProcessor.getDecodedSnapshot(deltaFile);
+    final File tempFile = CacheElement.createTempFile(deltaFile);
+    try {
+      snapshot.writeTo(tempFile);
+      CacheElement.publish(tempFile, deltaFile);
+    }
+    finally {
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  /**
+   * @return names of the files the snapshot is based on, empty for a complete snapshot
+   */
+  @NotNull
+  static Set<String> getBaseFileNames(@NotNull final File cacheFile) {
+    final Set<String> result = new HashSet<String>();
+    File file = cacheFile;
+    try {
+      String parentName;
+      while ((parentName = readParentName(file)) != null && result.size() <= MAX_CHAIN_LENGTH * 2) {
+        if (!result.add(parentName)) break;
+        file = new File(cacheFile.getParentFile(), parentName);
+      }
+    } catch (IOException e) {
+      //the chain is broken, the snapshot will be created again on the next access
+    }
+    return result;
+  }
+
+  /**
+   * Reads only the header of the file, the rest of it is neither decoded nor verified
+   * @return name of the snapshot the delta is based on, null for a complete snapshot
+   */
+  @Nullable
+  static String readParentName(@NotNull final File cacheFile) throws IOException {
+    if (cacheFile.length() < 4) return null;
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+    try {
+      if (input.readInt() != CacheElement.DELTA_FORMAT_MAGIC) return null;
+      if (input.readByte() != CacheElement.FORMAT_VERSION) {
+        throw new IOException("Unsupported cache file " + cacheFile);
+      }
+      return input.readUTF();
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  static boolean isDelta(@NotNull final File cacheFile) throws IOException {
+    if (cacheFile.length() < 4) return false;
+    final DataInputStream input = new DataInputStream(new FileInputStream(cacheFile));
+    try {
+      return input.readInt() == CacheElement.DELTA_FORMAT_MAGIC;
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  void write(@NotNull final File file) throws IOException {
+    final CRC32 checksum = new CRC32();
+    final DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(file)), checksum));
+    try {
+      output.writeInt(CacheElement.DELTA_FORMAT_MAGIC);
+      output.writeByte(CacheElement.FORMAT_VERSION);
+      output.writeUTF(myParentName);
+      output.writeLong(myParentContentHash);
+      CompactInt.write(output, myChainLength);
+      output.writeUTF(myRootName);
+      output.writeUTF(myRootVersion);
+      CompactInt.write(output, myChangedDirectories.size());
+      for (Map.Entry<String, List<Child>> entry : myChangedDirectories.entrySet()) {
+        output.writeUTF(entry.getKey());
+        CompactInt.write(output, entry.getValue().size());
+        for (Child child : entry.getValue()) {
+          output.writeByte(child.myType | (child.myFlags << 2));
+          output.writeUTF(child.myName);
+          output.writeUTF(child.myVersion);
+        }
+      }
+      output.writeByte(CacheElement.END_TYPE);
+      output.writeLong(checksum.getValue());
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  @NotNull
+  static SnapshotDelta read(@NotNull final File file) throws IOException {
+    final byte[] data = FileUtil.loadFileBytes(file);
+    final int bodyEnd = data.length - 9;
+    if (bodyEnd < 5 || data[bodyEnd] != CacheElement.END_TYPE) {
+      throw new IOException("Incomplete cache file " + file);
+    }
+    final CRC32 checksum = new CRC32();
+    checksum.update(data, 0, bodyEnd + 1);
+    final DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+    input.skipBytes(bodyEnd + 1);
+    if (input.readLong() != checksum.getValue()) {
+      throw new IOException("Checksum mismatch in cache file " + file);
+    }
+
+    final DataInputStream body = new DataInputStream(new ByteArrayInputStream(data, 0, bodyEnd));
+    if (body.readInt() != CacheElement.DELTA_FORMAT_MAGIC || body.readByte() != CacheElement.FORMAT_VERSION) {
+      throw new IOException("Unsupported cache file " + file);
+    }
+    final String parentName = body.readUTF();
+    final long parentContentHash = body.readLong();
+    final int chainLength = CompactInt.read(body);
+    final String rootName = body.readUTF();
+    final String rootVersion = body.readUTF();
+    final int directoryCount = CompactInt.read(body);
+    final Map<String, List<Child>> changedDirectories = new HashMap<String, List<Child>>();
+    for (int i = 0; i < directoryCount; i++) {
+      final String path = body.readUTF();
+      final int childCount = CompactInt.read(body);
+      final List<Child> children = new ArrayList<Child>(childCount);
+      for (int j = 0; j < childCount; j++) {
+        final int record = body.readUnsignedByte();
+        children.add(new Child(record & 0x3, record >> 2, body.readUTF(), body.readUTF()));
+      }
+      changedDirectories.put(path, children);
+    }
+    return new SnapshotDelta(parentName, parentContentHash, chainLength, rootName, rootVersion, changedDirectories);
+  }
+
+  @NotNull
+  private static String getChildPath(@NotNull final String path, @NotNull final String name) {
+    return path.length() == 0 ? name : path + PATH_SEPARATOR + name;
+  }
+
+  private static class Child {
+    private final int myType;
+    private final int myFlags;
+    @NotNull private final String myName;
+    @NotNull private final String myVersion;
+
+    private Child(final int type, final int flags, @NotNull final String name, @NotNull final String version) {
+      myType = type;
+      myFlags = flags;
+      myName = name;
+      myVersion = version;
+    }
+  }
+
+  /**
+   * Random access to the directories of a decoded snapshot
+   */
+  private static class Tree {
+    @NotNull private final DecodedSnapshot mySnapshot;
+    @NotNull private final int[] myElements;
+    @NotNull private final int[] myEnds;
+
+    private Tree(@NotNull final DecodedSnapshot snapshot, @NotNull final int[] elements, @NotNull final int[] ends) {
+      mySnapshot = snapshot;
+      myElements = elements;
+      myEnds = ends;
+    }
+
+    /**
+     * @return the tree or null if the snapshot does not consist of a single root directory
+     */
+    @Nullable
+    static Tree create(@NotNull final DecodedSnapshot snapshot) {
+      final int count = snapshot.getRecordCount();
+      if (count < 2 || snapshot.getRecordType(0) != CacheElement.DIR_OPEN_TYPE) return null;
+      final int[] elements = new int[count];
+      final int[] ends = new int[count];
+      final int[] openDirs = new int[count];
+      int depth = 0;
+      int element = 0;
+      for (int record = 0; record < count; record++) {
+        final int type = snapshot.getRecordType(record);
+        if (type == CacheElement.DIR_CLOSE_TYPE) {
+          if (depth == 0) return null;
+          ends[openDirs[--depth]] = record;
+          elements[record] = -1;
+        }
+        else {
+          if (depth == 0 && record > 0) return null;
+          elements[record] = element++;
+          ends[record] = record;
+          if (type == CacheElement.DIR_OPEN_TYPE) {
+            openDirs[depth++] = record;
+          }
+        }
+      }
+      return depth == 0 ? new Tree(snapshot, elements, ends) : null;
+    }
+
+    /**
+     * @return index of the closing record of a directory
+     */
+    int getEnd(final int dir) {
+      return myEnds[dir];
+    }
+
+    int getNext(final int record) {
+      return myEnds[record] + 1;
+    }
+
+    @NotNull
+    String getName(final int record) {
+      return mySnapshot.getElementName(myElements[record]);
+    }
+
+    @NotNull
+    String getVersion(final int record) {
+      return mySnapshot.getElementVersion(myElements[record]);
+    }
+
+    @NotNull
+    Map<String, Integer> getChildDirectories(final int dir) {
+      final Map<String, Integer> result = new HashMap<String, Integer>();
+      for (int child = dir + 1; child < getEnd(dir); child = getNext(child)) {
+        if (mySnapshot.getRecordType(child) == CacheElement.DIR_OPEN_TYPE) {
+          result.put(getName(child), child);
+        }
+      }
+      return result;
+    }
+
+    boolean hasSameChildren(final int dir, @NotNull final Tree other, final int otherDir) {
+      int child = dir + 1;
+      int otherChild = otherDir + 1;
+      while (child < getEnd(dir) && otherChild < other.getEnd(otherDir)) {
+        if (mySnapshot.getRecordType(child) != other.mySnapshot.getRecordType(otherChild) ||
+            mySnapshot.getRecordFlags(child) != other.mySnapshot.getRecordFlags(otherChild) ||
+            !getName(child).equals(other.getName(otherChild)) ||
+            !getVersion(child).equals(other.getVersion(otherChild))) {
+          return false;
+        }
+        child = getNext(child);
+        otherChild = other.getNext(otherChild);
+      }
+      return child == getEnd(dir) && otherChild == other.getEnd(otherDir);
+    }
+  }
+}
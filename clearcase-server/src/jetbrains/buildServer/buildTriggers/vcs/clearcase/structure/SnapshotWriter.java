@@ -13,23 +13,18 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
-class ReadCacheItem {
-  private final String myName;
-  private final String myVersion;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
+import jetbrains.buildServer.vcs.VcsException;
 
-  ReadCacheItem(final String name, final String version) {
-    myName = name;
-    myVersion = version;
-  }
+/**
+ * Receives the elements of a structure snapshot by their names
+ */
+interface SnapshotWriter extends VersionProcessor {
+  void writeFile(final String version, final String fileName, final boolean text, final boolean executable) throws VcsException;
 
-  public String getName() {
-    return myName;
-  }
+  void writeDirOpen(final String version, final String name) throws VcsException;
 
-  public String getVersion() {
-    return myVersion;
-  }
+  void writeDirClose() throws VcsException;
 }
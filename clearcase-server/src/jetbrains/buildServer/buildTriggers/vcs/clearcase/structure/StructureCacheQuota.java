@@ -0,0 +1,245 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits the disk space taken by the structure snapshots of all roots. When the limit is exceeded the snapshots
+ * are removed in the least recently used (or least frequently used) order. Pinned snapshots, snapshots being read
+ * or used as the base of a snapshot being built, and snapshots other kept snapshots are based on are not removed.
+ */
+class StructureCacheQuota {
+  private static final long MAX_SIZE = TeamCityProperties.getInteger("clearcase.structure.cache.max.size.mb", 1024) * 1024L * 1024L;
+  private static final boolean USE_LFU = "lfu".equalsIgnoreCase(TeamCityProperties.getProperty("clearcase.structure.cache.eviction.policy", "lru"));
+
+  @NotNull private final ConcurrentMap<File, AccessStats> myAccessStats = new ConcurrentHashMap<File, AccessStats>();
+  @NotNull private final Map<File, Integer> myReaders = new HashMap<File, Integer>();
+  @NotNull private final Set<File> myPublishedBases = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  @NotNull private final Object myDeletionLock = new Object();
+  @NotNull private final Object myEvictionLock = new Object();
+  private final long myMaxSize;
+
+  StructureCacheQuota() {
+    this(MAX_SIZE);
+  }
+
+  /**
+   * @param maxSize limit of the total size of the cache files in bytes
+   */
+  StructureCacheQuota(final long maxSize) {
+    myMaxSize = maxSize;
+  }
+
+  /**
+   * @return false if the snapshots are kept until the cleanup leaves only the last one of every path
+   */
+  static boolean isEnabled() {
+    return MAX_SIZE > 0;
+  }
+
+  void accessed(@NotNull final File cacheFile) {
+    AccessStats stats = myAccessStats.get(cacheFile);
+    if (stats == null) {
+      final AccessStats created = new AccessStats();
+      stats = myAccessStats.putIfAbsent(cacheFile, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    stats.accessed();
+  }
+
+  /**
+   * Once the method returns the snapshot is not removed until {@link #finishReading} is called,
+   * so a snapshot which still exists after it can be read safely
+   */
+  void startReading(@NotNull final File cacheFile) {
+    synchronized (myDeletionLock) {
+      final Integer readers = myReaders.get(cacheFile);
+      myReaders.put(cacheFile, readers == null ? 1 : readers + 1);
+    }
+  }
+
+  void finishReading(@NotNull final File cacheFile) {
+    synchronized (myDeletionLock) {
+      final Integer readers = myReaders.get(cacheFile);
+      if (readers == null || readers <= 1) {
+        myReaders.remove(cacheFile);
+      }
+      else {
+        myReaders.put(cacheFile, readers - 1);
+      }
+    }
+  }
+
+  /**
+   * Should be called while the base is still being read, so that it is kept
+   * even if the eviction running now has listed the snapshots before the delta was published
+   */
+  void deltaPublished(@NotNull final File baseFile) {
+    myPublishedBases.add(baseFile);
+  }
+
+  /**
+   * Removes the snapshots from the cache directory until their total size fits the limit.
+   * The evictions started by the cleanup and by the maintenance executor run one at a time: the published bases
+   * are cleared at the start of an eviction, which is safe only while no other eviction uses its earlier listing.
+   * @param pinned snapshots which must be kept
+   * @return removed snapshots
+   */
+  @NotNull
+  List<File> evict(@NotNull final File baseDir, @NotNull final Set<File> pinned) {
+    synchronized (myEvictionLock) {
+      return doEvict(baseDir, pinned);
+    }
+  }
+
+  @NotNull
+  private List<File> doEvict(@NotNull final File baseDir, @NotNull final Set<File> pinned) {
+    // the deltas published before the snapshots are listed are seen as the dependents of their bases
+    myPublishedBases.clear();
+    final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+    final Map<File, File> parents = new HashMap<File, File>();
+    final Map<File, Integer> dependentCounts = new HashMap<File, Integer>();
+    long totalSize = 0;
+    final File[] rootDirs = baseDir.listFiles();
+    if (rootDirs == null) return Collections.emptyList();
+    for (File rootDir : rootDirs) {
+      final File[] pathDirs = rootDir.listFiles();
+      if (pathDirs == null) continue;
+      for (File pathDir : pathDirs) {
+        final File[] cacheFiles = pathDir.listFiles();
+        if (cacheFiles == null) continue;
+        for (File cacheFile : cacheFiles) {
+          totalSize += cacheFile.length();
+          if (!isSnapshotName(cacheFile.getName())) continue;
+          snapshots.add(new Snapshot(cacheFile, myAccessStats.get(cacheFile)));
+          final File parent = getParent(cacheFile);
+          if (parent != null) {
+            parents.put(cacheFile, parent);
+            final Integer count = dependentCounts.get(parent);
+            dependentCounts.put(parent, count == null ? 1 : count + 1);
+          }
+        }
+      }
+    }
+    if (totalSize <= myMaxSize) return Collections.emptyList();
+
+    // the bases wait aside until their last dependent is removed and then compete with the other snapshots again
+    final PriorityQueue<Snapshot> candidates = new PriorityQueue<Snapshot>(snapshots);
+    final Map<File, Snapshot> waitingBases = new HashMap<File, Snapshot>();
+    final List<File> result = new ArrayList<File>();
+    while (totalSize > myMaxSize && !candidates.isEmpty()) {
+      final Snapshot snapshot = candidates.poll();
+      final File cacheFile = snapshot.myFile;
+      if (pinned.contains(cacheFile)) continue;
+      if (dependentCounts.containsKey(cacheFile)) {
+        waitingBases.put(cacheFile, snapshot);
+        continue;
+      }
+
+      final File rescanFile = new File(cacheFile.getPath() + ClearCaseStructureCache.RESCAN_SUFFIX);
+      synchronized (myDeletionLock) {
+        if (myReaders.containsKey(cacheFile) || myPublishedBases.contains(cacheFile)) continue;
+        totalSize -= cacheFile.length() + rescanFile.length();
+        FileUtil.delete(cacheFile);
+      }
+      FileUtil.delete(rescanFile);
+      DecodedSnapshotCache.invalidate(cacheFile);
+      myAccessStats.remove(cacheFile);
+      result.add(cacheFile);
+
+      final File parent = parents.get(cacheFile);
+      if (parent != null) {
+        final Integer count = dependentCounts.get(parent);
+        if (count != null && count > 1) {
+          dependentCounts.put(parent, count - 1);
+        }
+        else {
+          dependentCounts.remove(parent);
+          final Snapshot base = waitingBases.remove(parent);
+          if (base != null) {
+            candidates.add(base);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  void forget(@NotNull final File cacheFile) {
+    myAccessStats.remove(cacheFile);
+  }
+
+  static boolean isSnapshotName(@NotNull final String name) {
+    try {
+      Long.parseLong(name);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  @Nullable
+  private static File getParent(@NotNull final File cacheFile) {
+    try {
+      final String parentName = SnapshotDelta.readParentName(cacheFile);
+      return parentName == null ? null : new File(cacheFile.getParentFile(), parentName);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static class AccessStats {
+    private volatile long myLastAccess = System.currentTimeMillis();
+    @NotNull private final AtomicInteger myCount = new AtomicInteger();
+
+    private void accessed() {
+      myLastAccess = System.currentTimeMillis();
+      myCount.incrementAndGet();
+    }
+  }
+
+  private static class Snapshot implements Comparable<Snapshot> {
+    @NotNull private final File myFile;
+    private final long myLastAccess;
+    private final int myCount;
+
+    private Snapshot(@NotNull final File file, @Nullable final AccessStats stats) {
+      myFile = file;
+      // the snapshots not read since the server start are treated as used when they were written
+      myLastAccess = stats == null ? file.lastModified() : stats.myLastAccess;
+      myCount = stats == null ? 0 : stats.myCount.get();
+    }
+
+    public int compareTo(@NotNull final Snapshot that) {
+      if (USE_LFU && myCount != that.myCount) {
+        return myCount < that.myCount ? -1 : 1;
+      }
+      return myLastAccess < that.myLastAccess ? -1 : myLastAccess == that.myLastAccess ? 0 : 1;
+    }
+  }
+}
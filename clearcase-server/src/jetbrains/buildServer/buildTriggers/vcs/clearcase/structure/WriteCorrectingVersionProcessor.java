@@ -17,21 +17,27 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.*;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.vcs.VcsException;
 
 
 class WriteCorrectingVersionProcessor implements VersionProcessor {
   private final Map<String, ChangedElementInfo> myChangedElements = new HashMap<String, ChangedElementInfo>();
-  private final WriteVersionProcessor myWriteProcessor;
+  private final Set<String> myRescanSubtrees;
+  private final SnapshotWriter myWriteProcessor;
   private final Stack<String> myIgnoreStack;
 
   public WriteCorrectingVersionProcessor(final List<ChangedElementInfo> changedElements,
-                                         final WriteVersionProcessor writeProcessor) {
+                                         final Set<String> rescanSubtrees,
+                                         final SnapshotWriter writeProcessor) {
+    myRescanSubtrees = rescanSubtrees;
     for (ChangedElementInfo changedElement : changedElements) {
       ChangedElementInfo prev = myChangedElements.get(changedElement.myRelativePath);
       if (prev == null) {
@@ -96,6 +102,11 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
       myIgnoreStack.push(relPath);
       return;
     }
+    if (myRescanSubtrees.contains(relPath)) {
+      rescanDirectory(fileFullPath, relPath, pname, clearCaseConnection);
+      myIgnoreStack.push(relPath);
+      return;
+    }
     ChangedElementInfo changedElement = myChangedElements.get(relPath);
     if (changedElement == null) {
       myWriteProcessor.writeDirOpen(version, new File(relPath).getName());
@@ -109,17 +120,46 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
     }
   }
 
+  /**
+   * Writes the current content of the directory instead of the cached one, the directory is skipped if it is not visible anymore
+   */
+  private void rescanDirectory(final String fileFullPath,
+                               final String relPath,
+                               final String pname,
+                               final ClearCaseConnection clearCaseConnection) throws VcsException {
+    final Version lastVersion = clearCaseConnection.getLastVersion(pname, false);
+    if (lastVersion == null) return;
+
+    final String version = lastVersion.getWholeName();
+    myWriteProcessor.writeDirOpen(version, new File(relPath).getName());
+    try {
+      final String fullPathWithNewVersion = CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(fileFullPath, clearCaseConnection.getViewWholePath(), version);
+      clearCaseConnection.processAllVersions(fullPathWithNewVersion, relPath, myWriteProcessor);
+    }
+    finally {
+      myWriteProcessor.writeDirClose();
+    }
+  }
+
   private void processAddedElements(final ChangedElementInfo changedElement,
-                                    final WriteVersionProcessor writeProcessor,
+                                    final SnapshotWriter writeProcessor,
                                     final ClearCaseConnection clearCaseConnection, final String parentDirFullPath)
     throws VcsException {
     final String parentPathWithNewVersion = getParentWithNewVersion(parentDirFullPath, changedElement, clearCaseConnection);
 
+    final List<String> addedFilePaths = new ArrayList<String>();
+    for (ChangedElementInfo addedElem : changedElement.getAddedElements()) {
+      if (addedElem.myChangeType == ChangedElementInfo.ChangeType.ADDED_FILE) {
+        addedFilePaths.add(getAddedFilePath(parentPathWithNewVersion, addedElem));
+      }
+    }
+    final Map<String, ClearCaseFileAttr> addedFileAttrs = clearCaseConnection.loadFileAttrs(addedFilePaths);
+
     for (ChangedElementInfo addedElem : changedElement.getAddedElements()) {
 
       if (addedElem.myChangeType == ChangedElementInfo.ChangeType.ADDED_FILE) {
         final String fileName = new File(addedElem.myRelativePath).getName();
-        final ClearCaseFileAttr attr = clearCaseConnection.loadFileAttr(parentPathWithNewVersion + File.separator + fileName + CCParseUtil.CC_VERSION_SEPARATOR);
+        final ClearCaseFileAttr attr = addedFileAttrs.get(getAddedFilePath(parentPathWithNewVersion, addedElem));
         writeProcessor.writeFile(addedElem.myVersion, fileName, attr.isIsText(), attr.isIsExecutable());
       }
       else if (addedElem.myChangeType == ChangedElementInfo.ChangeType.ADDED_DIR) {
@@ -137,6 +177,10 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
     }
   }
 
+  private static String getAddedFilePath(final String parentPathWithNewVersion, final ChangedElementInfo addedElem) {
+    return parentPathWithNewVersion + File.separator + new File(addedElem.myRelativePath).getName() + CCParseUtil.CC_VERSION_SEPARATOR;
+  }
+
   private String getParentWithNewVersion(final String parentDirFullPath,
                                          final ChangedElementInfo changedElement,
                                          final ClearCaseConnection clearCaseConnection) {
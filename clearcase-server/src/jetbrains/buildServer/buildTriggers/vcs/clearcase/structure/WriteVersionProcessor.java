@@ -16,20 +16,37 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
-import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
-import jetbrains.buildServer.util.TCStreamUtil;
 import jetbrains.buildServer.vcs.VcsException;
 
-
-class WriteVersionProcessor implements VersionProcessor {
+/**
+ * Writes a structure snapshot in the current cache format:
+ * <pre>
+ *   header:  int FORMAT_MAGIC, byte FORMAT_VERSION
+ *   records: byte FILE_TYPE, byte flags, name, version
+ *            byte DIR_OPEN_TYPE, name, version
+ *            byte DIR_CLOSE_TYPE
+ *   trailer: byte END_TYPE, long CRC32 of all preceding bytes
+ * </pre>
+ * A name is stored as the length of the prefix it shares with the previously written name followed by the rest of it.
+ * A version is split into its branch (e.g. <code>/main/release_12/</code>) and number. Each branch is written once
+ * and then referenced by its index in the order of appearance. Integers are written as unsigned variable-length values.
+ */
+class WriteVersionProcessor implements SnapshotWriter {
+  private final CRC32 myChecksum = new CRC32();
   private final DataOutputStream myOutputStream;
+  private final Map<String, Integer> myBranches = new HashMap<String, Integer>();
+  private String myPreviousName = "";
 
-  public WriteVersionProcessor(final DataOutputStream outputStream) {
-    myOutputStream = outputStream;
+  public WriteVersionProcessor(final OutputStream outputStream) throws IOException {
+    myOutputStream = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(outputStream), myChecksum));
+    myOutputStream.writeInt(CacheElement.FORMAT_MAGIC);
+    myOutputStream.writeByte(CacheElement.FORMAT_VERSION);
   }
 
   public void processFile(final String fileFullPath,
@@ -41,29 +58,16 @@ class WriteVersionProcessor implements VersionProcessor {
   }
 
   public void writeFile(final String version, final String fileName, final boolean text, final boolean executable) throws VcsException {
-    String versionWithMode = createVersionWithMode(version, text, executable);
     try {
-      myOutputStream.writeByte(CacheElement.FILE_TYPE);      
-      TCStreamUtil.writeString(myOutputStream, fileName);
-      TCStreamUtil.writeString(myOutputStream, versionWithMode);
+      myOutputStream.writeByte(CacheElement.FILE_TYPE);
+      myOutputStream.writeByte((text ? CacheElement.TEXT_FLAG : 0) | (executable ? CacheElement.EXECUTABLE_FLAG : 0));
+      writeName(fileName);
+      writeVersion(version);
     } catch (IOException e) {
       throw new VcsException(e);
     }
   }
 
-  private String createVersionWithMode(final String version, final boolean text, final boolean executable) {
-    if (!text && !executable) {
-      return version;
-    }
-    if (text && executable) {
-      return version + "|" + "tx";
-    }
-    else if (text) {
-      return version + "|" + "t";
-    }
-    return version + "|" + "x";
-  }
-
   public void processDirectory(final String fileFullPath,
                                final String relPath,
                                final String pname,
@@ -75,9 +79,8 @@ class WriteVersionProcessor implements VersionProcessor {
   public void writeDirOpen(final String version, final String name) throws VcsException {
     try {
       myOutputStream.writeByte(CacheElement.DIR_OPEN_TYPE);
-      
-      TCStreamUtil.writeString(myOutputStream, name);
-      TCStreamUtil.writeString(myOutputStream, version);
+      writeName(name);
+      writeVersion(version);
     } catch (IOException e) {
       throw new VcsException(e);
     }
@@ -94,4 +97,58 @@ class WriteVersionProcessor implements VersionProcessor {
       throw new VcsException(e);
     }
   }
+
+  /**
+   * Writes the trailer, should be called only after the whole structure was written successfully,
+   * a snapshot without the trailer is rejected by the reader
+   */
+  public void finish() throws IOException {
+    myOutputStream.writeByte(CacheElement.END_TYPE);
+    myOutputStream.writeLong(myChecksum.getValue());
+    myOutputStream.flush();
+  }
+
+  public void close() throws IOException {
+    myOutputStream.close();
+  }
+
+  private void writeName(final String name) throws IOException {
+    final int maxPrefix = Math.min(name.length(), myPreviousName.length());
+    int prefix = 0;
+    while (prefix < maxPrefix && name.charAt(prefix) == myPreviousName.charAt(prefix)) {
+      prefix++;
+    }
+    CompactInt.write(myOutputStream, prefix);
+    myOutputStream.writeUTF(name.substring(prefix));
+    myPreviousName = name;
+  }
+
+  private void writeVersion(final String version) throws IOException {
+    final int separator = Math.max(version.lastIndexOf('/'), version.lastIndexOf('\\'));
+    final int number = parseVersionNumber(version, separator + 1);
+    final String branch = number < 0 ? version : version.substring(0, separator + 1);
+
+    final Integer index = myBranches.get(branch);
+    if (index == null) {
+      CompactInt.write(myOutputStream, myBranches.size());
+      myOutputStream.writeUTF(branch);
+      myBranches.put(branch, myBranches.size());
+    }
+    else {
+      CompactInt.write(myOutputStream, index);
+    }
+    CompactInt.write(myOutputStream, number + 1);
+  }
+
+  private static int parseVersionNumber(final String version, final int start) {
+    final int length = version.length();
+    if (start == 0 || start == length || length - start > 9 || (version.charAt(start) == '0' && length - start > 1)) return -1;
+    int result = 0;
+    for (int i = start; i < length; i++) {
+      final char c = version.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
 }
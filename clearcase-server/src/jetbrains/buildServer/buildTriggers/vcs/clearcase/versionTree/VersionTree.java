@@ -18,6 +18,9 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree;
 
 import com.intellij.openapi.util.Pair;
 import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
 import jetbrains.buildServer.util.StringUtil;
@@ -27,14 +30,60 @@ import org.jetbrains.annotations.Nullable;
 public class VersionTree {
   private final List<Branch> myTopBranches = new ArrayList<Branch>();
   //private final List<Version> myLeaves = new ArrayList<Version>();
+  private final MessageDigest myFingerprintDigest = createDigest();
+  @Nullable private String myFingerprint;
+
+  /**
+   * @return MD5 of all the modifications made to the tree, equal trees of the same element have equal fingerprints
+   */
+  public String getFingerprint() {
+    if (myFingerprint == null) {
+      try {
+        myFingerprint = toHex(((MessageDigest)myFingerprintDigest.clone()).digest());
+      }
+      catch (CloneNotSupportedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return myFingerprint;
+  }
+
+  private void updateFingerprint(final char operation, final String version) {
+    try {
+      myFingerprintDigest.update((byte)operation);
+      myFingerprintDigest.update(version.getBytes("UTF-8"));
+      myFingerprintDigest.update((byte)0);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    myFingerprint = null;
+  }
 
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(final byte[] bytes) {
+    final StringBuilder result = new StringBuilder(bytes.length * 2);
+    for (final byte b : bytes) {
+      result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return result.toString();
+  }
 
   public List<Branch> getTopBranches() {
     return myTopBranches;
   }
 
   public void addVersion(String version) throws VcsException {
-    
+    updateFingerprint('a', version);
+
     if (version.contains("CHECKEDOUT view ")) return;
     
     List<String> branches = new ArrayList<String>();
@@ -128,6 +177,7 @@ public class VersionTree {
   public void pruneBranch(final String objectVersion) {
     Version versionToPruneFrom = findVersionByPath(objectVersion);
     if (versionToPruneFrom != null) {
+      updateFingerprint('p', objectVersion);
       if (versionToPruneFrom.getVersion() == 0) {
         final Branch parentBranch = versionToPruneFrom.getParentBranch();
         parentBranch.getParentVersion().pruneInheritedBranch(parentBranch);
@@ -146,6 +196,7 @@ public class VersionTree {
   }
 
   public void pruneBranchAfter(final Version version, boolean includeSubBranches) {
+    updateFingerprint(includeSubBranches ? 'S' : 's', version.getWholeName());
     version.setNextVersion(null);
     if (includeSubBranches) {
       version.removeAllInheritedBranches();
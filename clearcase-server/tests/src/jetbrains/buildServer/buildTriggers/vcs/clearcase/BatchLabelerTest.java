@@ -0,0 +1,159 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class BatchLabelerTest {
+  private final List<String> myCommands = new ArrayList<String>();
+  private final Set<String> myBatchFailures = new HashSet<String>();
+  private final Set<String> myFailures = new HashSet<String>();
+  private final AtomicInteger myProgress = new AtomicInteger();
+
+  public void labelsElementsOfSameVersionAtOnce() throws Exception {
+    final BatchLabeler labeler = createLabeler(10);
+    labeler.processFile("/v/a.txt", "a.txt", "/v/a.txt", "/main/1", null, true, false);
+    labeler.processFile("/v/b.txt", "b.txt", "/v/b.txt", "/main/2", null, true, false);
+    labeler.processDirectory("/v/d", "d", "/v/d", "/main/1", null);
+    labeler.processFile("/v/d/c.txt", "d/c.txt", "/v/d/c.txt", "/main/1", null, true, false);
+    assertEquals(myCommands, Collections.<String>emptyList());
+
+    labeler.finish();
+
+    assertEquals(new HashSet<String>(myCommands), new HashSet<String>(Arrays.asList(
+      batch("/main/1", file("/v/a.txt"), dir("/v/d"), file("/v/d/c.txt")), single("/main/2", "/v/b.txt", false))));
+    assertEquals(myProgress.get(), 4);
+  }
+
+  public void labelsFullBatchRightAway() throws Exception {
+    final BatchLabeler labeler = createLabeler(2);
+    labeler.processFile("/v/a.txt", "a.txt", "/v/a.txt", "/main/1", null, true, false);
+    labeler.processFile("/v/b.txt", "b.txt", "/v/b.txt", "/main/1", null, true, false);
+    assertEquals(myCommands, Collections.singletonList(batch("/main/1", file("/v/a.txt"), file("/v/b.txt"))));
+    assertEquals(myProgress.get(), 2);
+
+    labeler.processFile("/v/c.txt", "c.txt", "/v/c.txt", "/main/1", null, true, false);
+    labeler.finish();
+
+    assertEquals(myCommands, Arrays.asList(batch("/main/1", file("/v/a.txt"), file("/v/b.txt")), single("/main/1", "/v/c.txt", false)));
+    assertEquals(myProgress.get(), 3);
+  }
+
+  public void labelsElementsSeparatelyAfterFailedBatch() throws Exception {
+    myBatchFailures.add(file("/v/b.txt"));
+    final BatchLabeler labeler = createLabeler(3);
+    labeler.processFile("/v/b.txt", "b.txt", "/v/b.txt", "/main/2", null, true, false);
+    labeler.processDirectory("/v/e", "e", "/v/e", "/main/2", null);
+    labeler.processFile("/v/e/c.txt", "e/c.txt", "/v/e/c.txt", "/main/2", null, true, false);
+    labeler.finish();
+
+    assertEquals(myCommands, Arrays.asList(batch("/main/2", file("/v/b.txt"), dir("/v/e"), file("/v/e/c.txt")) + " failed",
+                                           single("/main/2", "/v/b.txt", false),
+                                           single("/main/2", "/v/e", true),
+                                           single("/main/2", "/v/e/c.txt", false)));
+    assertEquals(myProgress.get(), 3);
+  }
+
+  public void failsWhenElementCannotBeLabeled() throws Exception {
+    myBatchFailures.add(file("/v/b.txt"));
+    myFailures.add("/v/b.txt");
+    final BatchLabeler labeler = createLabeler(10);
+    labeler.processFile("/v/a.txt", "a.txt", "/v/a.txt", "/main/2", null, true, false);
+    labeler.processFile("/v/b.txt", "b.txt", "/v/b.txt", "/main/2", null, true, false);
+    try {
+      labeler.finish();
+      fail("VcsException expected");
+    }
+    catch (final VcsException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertEquals(myProgress.get(), 1);
+  }
+
+  /**
+   * @return labeler which runs the commands right away in the calling thread
+   */
+  @NotNull
+  private BatchLabeler createLabeler(final int batchSize) {
+    final BatchLabeler.Commands commands = new BatchLabeler.Commands() {
+      public void mklabel(@NotNull final String version, @NotNull final List<String> pnames, @NotNull final String label) throws IOException {
+        assertEquals(label, "REL_1");
+        final String command = batch(version, pnames.toArray(new String[pnames.size()]));
+        if (!Collections.disjoint(pnames, myBatchFailures)) {
+          myCommands.add(command + " failed");
+          throw new IOException("cleartool: Error: Unable to access element");
+        }
+        myCommands.add(command);
+      }
+
+      public void mklabel(@NotNull final String version, @NotNull final String pname, @NotNull final String label, final boolean isDirPath)
+        throws IOException {
+        assertEquals(label, "REL_1");
+        if (myFailures.contains(pname)) {
+          throw new IOException("cleartool: Error: Unable to access \"" + pname + "\"");
+        }
+        myCommands.add(single(version, pname, isDirPath));
+      }
+    };
+    //noinspection ConstantConditions
+    final WorkerSessions workers = new WorkerSessions(null, 1, "test") {
+      @NotNull
+      @Override
+      <T> Future<T> submit(@NotNull final Callable<T> task) {
+        final FutureTask<T> result = new FutureTask<T>(task);
+        result.run();
+        return result;
+      }
+
+      @Override
+      void shutdown() {
+      }
+    };
+    return new BatchLabeler(commands, "REL_1", myProgress, workers, batchSize);
+  }
+
+  @NotNull
+  private static String batch(@NotNull final String version, @NotNull final String... pnames) {
+    return version + " " + Arrays.asList(pnames);
+  }
+
+  @NotNull
+  private static String single(@NotNull final String version, @NotNull final String path, final boolean isDirPath) {
+    return version + " " + path + (isDirPath ? " dir" : " file");
+  }
+
+  @NotNull
+  private static String file(@NotNull final String path) throws VcsException {
+    return ClearCaseConnection.insertDots(path, false);
+  }
+
+  @NotNull
+  private static String dir(@NotNull final String path) throws VcsException {
+    return ClearCaseConnection.insertDots(path, true);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class CCParseUtilTest {
+  public void readsSelectedVersions() {
+    final Map<String, String> versions = readSelectedVersions(
+      "version                ./build.xml@@/main/12                    Rule: /main/LATEST",
+      "directory version      ./src@@/main/release_1/3                 Rule: element * /main/release_1/LATEST",
+      "version                /vobs/proj/lib.jar@@/main/2              Rule: element /vobs/proj/... /main/2",
+      "version                \"./name with spaces.txt@@/main/5\"        Rule: /main/LATEST");
+
+    final Map<String, String> expected = new HashMap<String, String>();
+    expected.put("build.xml", "/main/12");
+    expected.put("src", "/main/release_1/3");
+    expected.put("lib.jar", "/main/2");
+    expected.put("name with spaces.txt", "/main/5");
+    assertEquals(versions, expected);
+  }
+
+  public void skipsObjectsWhichAreNotSelectedVersions() {
+    final Map<String, String> versions = readSelectedVersions(
+      "version                ./a.txt@@/main/CHECKEDOUT from /main/4   Rule: CHECKEDOUT",
+      "version                ./b.txt@@/main/CHECKEDOUT                Rule: CHECKEDOUT",
+      "hijacked version       ./c.txt@@/main/2 [hijacked]              Rule: /main/LATEST",
+      "version                ./d.txt@@/main/3 [not loaded]            Rule: /main/LATEST",
+      "view private object    ./e.txt",
+      "derived object         ./f.o@@--10-19T17:41.1234",
+      "version                ./g.txt@@/main/1",
+      "version                ./h.txt                                  Rule: /main/LATEST",
+      "");
+
+    assertEquals(versions, new HashMap<String, String>());
+  }
+
+  @NotNull
+  private static Map<String, String> readSelectedVersions(@NotNull final String... lines) {
+    final Map<String, String> versions = new HashMap<String, String>();
+    for (final String line : lines) {
+      CCParseUtil.readSelectedVersionFromLSFormat(line, versions);
+    }
+    return versions;
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ClearCaseConnectionTest {
+  public void acceptsElementsAlreadyLabeled() {
+    assertTrue(ClearCaseConnection.isAlreadyLabeledError("cleartool: Error: Label \"REL_1\" already on element \"a.txt\"."));
+    assertTrue(ClearCaseConnection.isAlreadyLabeledError(
+      "Created label \"REL_1\" on \"a.txt\" version \"/main/3\".\n" +
+      "cleartool: Error: Label \"REL_1\" already on element \"b.txt\".\r\n" +
+      "cleartool: Error: Label \"REL_1\" already on element \"c.txt\".\n"));
+  }
+
+  public void failsOnOtherErrors() {
+    assertFalse(ClearCaseConnection.isAlreadyLabeledError(null));
+    assertFalse(ClearCaseConnection.isAlreadyLabeledError(""));
+    assertFalse(ClearCaseConnection.isAlreadyLabeledError("cleartool: Error: Label type \"REL_1\" not found in VOB \"\\proj\"."));
+    assertFalse(ClearCaseConnection.isAlreadyLabeledError(
+      "cleartool: Error: Label \"REL_1\" already on element \"a.txt\".\n" +
+      "cleartool: Error: Unable to access \"b.txt\": No such file or directory."));
+    assertFalse(ClearCaseConnection.isAlreadyLabeledError(
+      "cleartool: Error: No permission to perform operation \"mklabel\".\n" +
+      "cleartool: Error: Label \"REL_1\" already on element \"a.txt\"."));
+  }
+}
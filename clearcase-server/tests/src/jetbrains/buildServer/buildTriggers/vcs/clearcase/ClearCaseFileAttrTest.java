@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeSet;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ClearCaseFileAttrTest {
+  public void readsAttributesOfSeveralElements() throws IOException {
+    final Map<String, ClearCaseFileAttr> attrs = readAll(
+      "file element \"./build.xml@@\"",
+      "  created 19-Oct-26.17:41:09 by agent.users@host",
+      "  element type: text_file",
+      "  Element Protection:",
+      "    User : agent    : r--",
+      "    Group : users   : r--",
+      "    Other :         : r--",
+      "file element \"/vobs/proj/bin/run.sh@@\"",
+      "  created 19-Oct-26.17:41:09 by agent.users@host",
+      "  element type: text_file",
+      "  Element Protection:",
+      "    User : agent    : r-x",
+      "    Group : users   : r--",
+      "    Other :         : r--",
+      "file element \"./lib/tools.jar@@\"",
+      "  element type: binary_delta_file",
+      "  Element Protection:",
+      "    User : agent    : r--",
+      "    Group : users   : r--",
+      "    Other :         : r-x");
+
+    assertEquals(new TreeSet<String>(attrs.keySet()).toString(), "[build.xml, run.sh, tools.jar]");
+    assertTrue(attrs.get("build.xml").isIsText());
+    assertFalse(attrs.get("build.xml").isIsExecutable());
+    assertTrue(attrs.get("run.sh").isIsText());
+    assertTrue(attrs.get("run.sh").isIsExecutable());
+    assertFalse(attrs.get("tools.jar").isIsText());
+    assertTrue(attrs.get("tools.jar").isIsExecutable());
+  }
+
+  public void ignoresLinesBeforeFirstElement() throws IOException {
+    final Map<String, ClearCaseFileAttr> attrs = readAll(
+      "  element type: text_file",
+      "    User : agent    : rwx",
+      "file element \"a.txt@@\"",
+      "    User : agent    : r--");
+
+    assertEquals(attrs.keySet().toString(), "[a.txt]");
+    assertFalse(attrs.get("a.txt").isIsText());
+    assertFalse(attrs.get("a.txt").isIsExecutable());
+  }
+
+  public void readsNothingFromEmptyOutput() throws IOException {
+    assertTrue(readAll().isEmpty());
+  }
+
+  @NotNull
+  private static Map<String, ClearCaseFileAttr> readAll(@NotNull final String... lines) throws IOException {
+    final StringBuilder output = new StringBuilder();
+    for (final String line : lines) {
+      output.append(line).append('\n');
+    }
+    return ClearCaseFileAttr.readAllFrom(new ByteArrayInputStream(output.toString().getBytes("UTF-8")));
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class ClearCaseSupportTest {
+  public void getsSameVobNameOnAllPlatforms() {
+    assertEquals(ClearCaseSupport.getVobName("proj"), "proj");
+    assertEquals(ClearCaseSupport.getVobName("proj/src/main"), "proj");
+    assertEquals(ClearCaseSupport.getVobName("\\proj\\src"), "proj");
+    assertEquals(ClearCaseSupport.getVobName("vobs/proj/src"), "proj");
+    assertEquals(ClearCaseSupport.getVobName("/vobs//proj"), "proj");
+  }
+
+  public void keepsVobNamedVobs() {
+    assertEquals(ClearCaseSupport.getVobName("vobs"), "vobs");
+    assertEquals(ClearCaseSupport.getVobName("vobs/"), "vobs");
+  }
+
+  public void getsEmptyVobNameForViewRoot() {
+    assertEquals(ClearCaseSupport.getVobName(""), "");
+    assertEquals(ClearCaseSupport.getVobName("/"), "");
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * The version-extended paths of a dynamic view are emulated by a directory tree: {@code element@@/branch/version}
+ */
+@Test
+public class DynamicViewReaderTest {
+  private File myViewDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myViewDir = FileUtil.createTempDirectory("clearcase", "");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    System.clearProperty(DynamicViewReader.DISABLE_PROPERTY);
+    FileUtil.delete(myViewDir);
+  }
+
+  public void readsVersionFiles() throws Exception {
+    createFile("vob/dir@@/main/3/a.txt/main/7", "a");
+
+    final File file = DynamicViewReader.getVersionFile(myViewDir.getPath() + "/vob/dir@@/main/3/a.txt/main/7");
+    assertNotNull(file);
+    assertEquals(new String(FileUtil.loadFileText(file)), "a");
+    assertEquals(DynamicViewReader.getVersionFile(myViewDir.getPath() + "\\vob\\dir@@\\main\\3\\a.txt\\main\\7"), file);
+  }
+
+  public void doesNotReadMissingOrDirectoryVersions() throws Exception {
+    createFile("vob/dir@@/main/3/a.txt/main/7", "a");
+
+    assertNull(DynamicViewReader.getVersionFile(myViewDir.getPath() + "/vob/dir@@/main/3/a.txt/main/8"));
+    assertNull(DynamicViewReader.getVersionFile(myViewDir.getPath() + "/vob/dir@@/main/3"));
+  }
+
+  public void listsElementsByTypeOfInitialVersion() throws Exception {
+    createFile("vob/dir@@/main/3/a.txt/main/0", "");
+    createFile("vob/dir@@/main/3/a.txt/main/1", "a");
+    assertTrue(new File(myViewDir, "vob/dir@@/main/3/sub/main/0").mkdirs());
+    assertTrue(new File(myViewDir, "vob/dir@@/main/3/sub/main/dev/0").mkdirs());
+    createFile("vob/dir@@/main/3/b.txt/dev/0", "");
+
+    final List<SimpleDirectoryChildElement> children = DynamicViewReader.listChildren(myViewDir.getPath() + "/vob/dir@@/main/3");
+    assertNotNull(children);
+
+    final Map<String, SimpleDirectoryChildElement.Type> types = new HashMap<String, SimpleDirectoryChildElement.Type>();
+    for (final SimpleDirectoryChildElement child : children) {
+      assertEquals(new File(child.getPathWithoutVersion()).getParentFile(), new File(myViewDir, "vob/dir@@/main/3"));
+      types.put(child.getName(), child.getType());
+    }
+    final Map<String, SimpleDirectoryChildElement.Type> expected = new HashMap<String, SimpleDirectoryChildElement.Type>();
+    expected.put("a.txt", SimpleDirectoryChildElement.Type.FILE);
+    expected.put("b.txt", SimpleDirectoryChildElement.Type.FILE);
+    expected.put("sub", SimpleDirectoryChildElement.Type.DIRECTORY);
+    assertEquals(types, expected);
+  }
+
+  public void fallsBackWhenElementTypeIsUnknown() throws Exception {
+    createFile("vob/dir@@/main/3/a.txt/main/0", "");
+    assertTrue(new File(myViewDir, "vob/dir@@/main/3/b.txt/main").mkdirs());
+
+    assertNull(DynamicViewReader.listChildren(myViewDir.getPath() + "/vob/dir@@/main/3"));
+    assertNull(DynamicViewReader.listChildren(myViewDir.getPath() + "/vob/dir@@/main/4"));
+  }
+
+  public void fallsBackWhenDirectReadsAreDisabled() {
+    assertTrue(DynamicViewReader.isEnabled(true));
+    assertFalse(DynamicViewReader.isEnabled(false));
+
+    System.setProperty(DynamicViewReader.DISABLE_PROPERTY, "true");
+    assertFalse(DynamicViewReader.isEnabled(true));
+    assertFalse(DynamicViewReader.isEnabled(false));
+  }
+
+  private void createFile(@NotNull final String relativePath, @NotNull final String content) throws Exception {
+    FileUtil.writeFile(new File(myViewDir, relativePath), content);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class FileContentCacheTest {
+  private static final String A_3 = "/view/vob/dir/a.txt@@/main/3";
+  private static final String A_4 = "/view/vob/dir/a.txt@@/main/dev/4";
+  private static final String B_1 = "/view/vob/dir/b.txt@@/main/1";
+
+  private File myTempDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempDir = FileUtil.createTempDirectory("clearcase", "");
+    FileContentCache.init(new File(myTempDir, "cache"));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void derivesKeysOfVersions() {
+    assertEquals(FileContentCache.getKey(A_3), normalize(A_3));
+    assertEquals(FileContentCache.getKey("\\view\\vob\\.\\dir\\a.txt@@\\main\\3"), normalize(A_3));
+    assertEquals(FileContentCache.getKey("/view/vob/./dir/./a.txt@@/main/dev/4"), normalize(A_4));
+  }
+
+  public void doesNotDeriveKeysOfNonVersions() {
+    assertNull(FileContentCache.getKey("/view/vob/dir/a.txt"));
+    assertNull(FileContentCache.getKey("/view/vob/dir/a.txt@@/main/LATEST"));
+    assertNull(FileContentCache.getKey("/view/vob/dir@@/main/2/a.txt"));
+  }
+
+  public void invalidatesVersionsOfElementByHistoryName() throws Exception {
+    put(A_3);
+    put(A_4);
+    put(B_1);
+
+    FileContentCache.invalidateElement("/view/vob/dir/a.txt@@");
+
+    assertNotCached(A_3);
+    assertNotCached(A_4);
+    assertCached(B_1);
+  }
+
+  public void invalidatesElementWithOtherSeparatorsAndDots() throws Exception {
+    put(A_3);
+    put(B_1);
+
+    FileContentCache.invalidateElement("\\view\\vob\\.\\dir\\b.txt");
+
+    assertCached(A_3);
+    assertNotCached(B_1);
+  }
+
+  public void keepsInvalidatedContentUntilReleased() throws Exception {
+    put(A_3);
+    final String key = FileContentCache.getKey(A_3);
+    assertNotNull(key);
+    final File file = FileContentCache.acquire(key);
+    assertNotNull(file);
+
+    FileContentCache.invalidateElement("/view/vob/dir/a.txt");
+
+    assertNull(FileContentCache.acquire(key));
+    assertTrue(file.isFile());
+    FileContentCache.release(key, file);
+    assertFalse(file.exists());
+  }
+
+  private void put(@NotNull final String versionPath) throws IOException {
+    final String key = FileContentCache.getKey(versionPath);
+    assertNotNull(key);
+    final File content = new File(myTempDir, "fetched");
+    FileUtil.writeFile(content, versionPath);
+    final File cached = FileContentCache.putAndAcquire(key, content);
+    assertNotNull(cached);
+    FileContentCache.release(key, cached);
+  }
+
+  private static void assertCached(@NotNull final String versionPath) throws IOException {
+    final String key = FileContentCache.getKey(versionPath);
+    assertNotNull(key);
+    final File file = FileContentCache.acquire(key);
+    assertNotNull(file, versionPath);
+    try {
+      assertEquals(new String(FileUtil.loadFileText(file)), versionPath);
+    }
+    finally {
+      FileContentCache.release(key, file);
+    }
+  }
+
+  private static void assertNotCached(@NotNull final String versionPath) {
+    final String key = FileContentCache.getKey(versionPath);
+    assertNotNull(key);
+    assertNull(FileContentCache.acquire(key), versionPath);
+  }
+
+  @NotNull
+  private static String normalize(@NotNull final String path) {
+    return CCPathElement.normalizeSeparators(path);
+  }
+}
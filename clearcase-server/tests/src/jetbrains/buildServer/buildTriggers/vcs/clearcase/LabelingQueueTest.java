@@ -0,0 +1,283 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import jetbrains.buildServer.vcs.impl.VcsRootImpl;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class LabelingQueueTest {
+  private static final long TIMEOUT = 10;
+
+  private File myTempDir;
+  private VcsRootImpl myRoot;
+  private List<String> myLabeled;
+  private CountDownLatch myRelease;
+  private List<LabelingQueue> myQueues;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = File.createTempFile("labeling", "");
+    assertTrue(myTempDir.delete() && myTempDir.mkdir());
+    myRoot = new VcsRootImpl(1, "clearcase");
+    myLabeled = Collections.synchronizedList(new ArrayList<String>());
+    myRelease = new CountDownLatch(0);
+    myQueues = new ArrayList<LabelingQueue>();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    for (final LabelingQueue queue : myQueues) {
+      queue.shutdown();
+    }
+    FileUtil.delete(myTempDir);
+  }
+
+  public void runsSubmittedJob() throws VcsException {
+    final LabelingQueue queue = createQueue(myTempDir);
+
+    final LabelingQueue.Job job = queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules(""), "proj");
+    queue.await(job);
+
+    assertEquals(myLabeled, Collections.singletonList("LABEL_1"));
+    assertEquals(job.getLabeledCounter().get(), 1);
+    assertEquals(listJobFiles(), Collections.<File>emptyList());
+  }
+
+  public void joinsQueuedJobOfSameLabelAndRevision() throws VcsException {
+    myRelease = new CountDownLatch(1);
+    final LabelingQueue queue = createQueue(myTempDir);
+
+    final LabelingQueue.Job job = queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules(""), "proj");
+    assertSame(queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules(""), "proj"), job);
+    final LabelingQueue.Job otherJob = queue.submit(myRoot, "LABEL_1", "other rev", new CheckoutRules(""), "proj");
+    assertNotSame(otherJob, job);
+    myRelease.countDown();
+    queue.await(job);
+    queue.await(otherJob);
+
+    assertEquals(myLabeled, Arrays.asList("LABEL_1", "LABEL_1"));
+  }
+
+  public void runsOneJobOfVobAtOnce() throws VcsException {
+    myRelease = new CountDownLatch(1);
+    final LabelingQueue queue = createQueue(myTempDir);
+
+    final LabelingQueue.Job first = queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules(""), "proj");
+    final LabelingQueue.Job second = queue.submit(myRoot, "LABEL_2", "rev", new CheckoutRules(""), "proj");
+    assertTrue(queue.getStatistics().startsWith("queued: 1, running: 1"), queue.getStatistics());
+    myRelease.countDown();
+    queue.await(first);
+    queue.await(second);
+
+    assertEquals(myLabeled, Arrays.asList("LABEL_1", "LABEL_2"));
+  }
+
+  @Test(expectedExceptions = VcsException.class)
+  public void reportsFailureOfJob() throws VcsException {
+    final LabelingQueue queue = createQueue(myTempDir);
+
+    queue.await(queue.submit(myRoot, "FAIL", "rev", new CheckoutRules(""), "proj"));
+  }
+
+  @Test(expectedExceptions = VcsException.class)
+  public void rejectsJobsAfterShutdown() throws VcsException {
+    final LabelingQueue queue = createQueue(myTempDir);
+    queue.shutdown();
+
+    queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules(""), "proj");
+  }
+
+  public void resumesJobsInterruptedByShutdown() throws Exception {
+    myRelease = new CountDownLatch(1);
+    final LabelingQueue queue = createQueue(myTempDir);
+    queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules("+:src"), "proj");
+    queue.shutdown();
+    assertEquals(listJobFiles().size(), 1);
+
+    final LabelingQueue.Job job = resume(myRoot, false);
+
+    assertSame(job.getRoot(), myRoot);
+    assertEquals(job.getLabel() + " " + job.getRevision() + " " + job.getCheckoutRules().getAsString().trim(), "LABEL_1 rev +:src");
+    assertEquals(job.getLabeledRules(), 0);
+  }
+
+  public void resumesJobsOfRootInstances() throws Exception {
+    final VcsRootInstance instance = createRootInstance(12, 1);
+    myRelease = new CountDownLatch(1);
+    final LabelingQueue queue = createQueue(myTempDir);
+    queue.submit(instance, "LABEL_1", "rev", new CheckoutRules(""), "proj");
+    queue.shutdown();
+
+    assertSame(resume(instance, true).getRoot(), instance);
+  }
+
+  public void resumesJobsAfterLabeledIncludeRules() throws Exception {
+    myRelease = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicReference<LabelingQueue> queue = new AtomicReference<LabelingQueue>();
+    queue.set(new LabelingQueue(myTempDir, new LabelingQueue.JobRunner() {
+      public void run(@NotNull final LabelingQueue.Job job) throws VcsException {
+        queue.get().setLabeledRules(job, 1);
+        started.countDown();
+        try {
+          myRelease.await(TIMEOUT, TimeUnit.SECONDS);
+        }
+        catch (final InterruptedException e) {
+          throw new VcsException("Interrupted", e);
+        }
+      }
+    }));
+    myQueues.add(queue.get());
+    queue.get().submit(myRoot, "LABEL_1", "rev", new CheckoutRules("+:src\n+:lib"), "proj");
+    assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+    queue.get().shutdown();
+
+    assertEquals(resume(myRoot, false).getLabeledRules(), 1);
+  }
+
+  public void finishesQueuedJobsOnShutdown() throws Exception {
+    myRelease = new CountDownLatch(1);
+    final LabelingQueue queue = createQueue(myTempDir);
+    queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules(""), "proj");
+    final LabelingQueue.Job queued = queue.submit(myRoot, "LABEL_2", "rev", new CheckoutRules(""), "proj");
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Thread waiting = new Thread() {
+      @Override
+      public void run() {
+        try {
+          queue.await(queued);
+        }
+        catch (final Throwable e) {
+          error.set(e);
+        }
+      }
+    };
+    waiting.start();
+
+    queue.shutdown();
+
+    waiting.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+    assertFalse(waiting.isAlive());
+    assertTrue(error.get() instanceof VcsException, String.valueOf(error.get()));
+    assertEquals(listJobFiles().size(), 2);
+  }
+
+  public void doesNotKeepJobsWithoutDirectory() throws VcsException {
+    final LabelingQueue queue = createQueue(null);
+
+    queue.await(queue.submit(myRoot, "LABEL_1", "rev", new CheckoutRules(""), "proj"));
+
+    assertEquals(myLabeled, Collections.singletonList("LABEL_1"));
+  }
+
+  /**
+   * @return the job resumed from the files by a new queue
+   */
+  @NotNull
+  private LabelingQueue.Job resume(@NotNull final VcsRoot root, final boolean instance) throws InterruptedException {
+    final AtomicReference<LabelingQueue.Job> resumed = new AtomicReference<LabelingQueue.Job>();
+    final CountDownLatch done = new CountDownLatch(1);
+    final LabelingQueue queue = new LabelingQueue(myTempDir, new LabelingQueue.JobRunner() {
+      public void run(@NotNull final LabelingQueue.Job job) {
+        resumed.set(job);
+        done.countDown();
+      }
+    });
+    myQueues.add(queue);
+    queue.resume(new LabelingQueue.RootResolver() {
+      @Nullable
+      public VcsRoot findRoot(final long id, final boolean isInstance) {
+        return id == root.getId() && isInstance == instance ? root : null;
+      }
+    });
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    return resumed.get();
+  }
+
+  @NotNull
+  private static VcsRootInstance createRootInstance(final long id, final long parentId) {
+    return (VcsRootInstance)Proxy.newProxyInstance(LabelingQueueTest.class.getClassLoader(), new Class[]{VcsRootInstance.class}, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        final String name = method.getName();
+        if (name.equals("getId")) return id;
+        if (name.equals("getParentId")) return parentId;
+        if (name.equals("getName")) return "clearcase instance";
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("equals")) return proxy == args[0];
+        if (name.equals("toString")) return "clearcase instance";
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+
+  @NotNull
+  private LabelingQueue createQueue(@Nullable final File dir) {
+    final LabelingQueue queue = new LabelingQueue(dir, new LabelingQueue.JobRunner() {
+      public void run(@NotNull final LabelingQueue.Job job) throws VcsException {
+        try {
+          if (!myRelease.await(TIMEOUT, TimeUnit.SECONDS)) throw new VcsException("Timed out");
+        }
+        catch (final InterruptedException e) {
+          throw new VcsException("Interrupted", e);
+        }
+        if ("FAIL".equals(job.getLabel())) throw new VcsException("Cannot put label " + job.getLabel());
+        myLabeled.add(job.getLabel());
+        job.getLabeledCounter().incrementAndGet();
+      }
+    });
+    myQueues.add(queue);
+    return queue;
+  }
+
+  @NotNull
+  private List<File> listJobFiles() {
+    final List<File> result = new ArrayList<File>();
+    final File[] files = myTempDir.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        if (file.getName().endsWith(".job")) {
+          result.add(file);
+        }
+      }
+    }
+    return result;
+  }
+}
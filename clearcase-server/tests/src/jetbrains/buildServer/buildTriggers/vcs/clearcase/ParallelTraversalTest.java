@@ -0,0 +1,221 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ParallelTraversalTest {
+  private final ParallelTraversal.EventBudget myBudget = new ParallelTraversal.EventBudget(1000);
+
+  public void emitsEventsInSerialOrder() throws Exception {
+    final RecordingProcessor serial = new RecordingProcessor(null);
+    serial.processFile("/v/a", "a", "/v/a", "/main/1", null, true, false);
+    serial.processDirectory("/v/b", "b", "/v/b", "/main/2", null);
+    serial.processFile("/v/b/c", "b/c", "/v/b/c", "/main/3", null, false, true);
+    serial.processDirectory("/v/b/d", "b/d", "/v/b/d", "/main/4", null);
+    serial.processDirectory("/v/b/d/e", "b/d/e", "/v/b/d/e", "/main/5", null);
+    serial.processFile("/v/b/d/e/f", "b/d/e/f", "/v/b/d/e/f", "/main/6", null, true, true);
+    serial.finishProcessingDirectory();
+    serial.processFile("/v/b/d/g", "b/d/g", "/v/b/d/g", "/main/7", null, false, false);
+    serial.finishProcessingDirectory();
+    serial.finishProcessingDirectory();
+    serial.processDirectory("/v/h", "h", "/v/h", "/main/8", null);
+    serial.finishProcessingDirectory();
+    serial.processFile("/v/i", "i", "/v/i", "/main/9", null, false, false);
+
+    final RecordingProcessor processor = new RecordingProcessor(null);
+    ParallelTraversal.emit(createTree(), processor, null);
+
+    assertEquals(processor.myLog, serial.myLog);
+    assertEquals(myBudget.getEvents(), 0);
+  }
+
+  public void closesDirectoriesWhenProcessorFails() throws Exception {
+    final RecordingProcessor processor = new RecordingProcessor("b/d/e/f");
+    try {
+      ParallelTraversal.emit(createTree(), processor, null);
+      fail("VcsException expected");
+    }
+    catch (final VcsException e) {
+      assertEquals(e.getMessage(), "Failed b/d/e/f");
+    }
+
+    assertEquals(processor.myLog, Arrays.asList("file a true false", "dir b", "file b/c false true", "dir b/d", "dir b/d/e",
+                                                "finish", "finish", "finish"));
+    assertEquals(myBudget.getEvents(), 0);
+  }
+
+  public void passesSubtreeFailure() throws Exception {
+    final ParallelTraversal.Node dir = directory("d");
+    final FutureTask<ParallelTraversal.BufferingVersionProcessor> subtree = new FutureTask<ParallelTraversal.BufferingVersionProcessor>(
+      new Callable<ParallelTraversal.BufferingVersionProcessor>() {
+        public ParallelTraversal.BufferingVersionProcessor call() throws Exception {
+          throw new VcsException("Cannot read d");
+        }
+      });
+    subtree.run();
+    dir.mySubtree = subtree;
+
+    final RecordingProcessor processor = new RecordingProcessor(null);
+    try {
+      ParallelTraversal.emit(Collections.singletonList(dir), processor, null);
+      fail("VcsException expected");
+    }
+    catch (final VcsException e) {
+      assertEquals(e.getMessage(), "Cannot read d");
+    }
+    assertEquals(processor.myLog, Arrays.asList("dir d", "finish"));
+  }
+
+  public void limitsBufferedEvents() throws Exception {
+    final ParallelTraversal.EventBudget budget = new ParallelTraversal.EventBudget(3);
+    final ParallelTraversal.BufferingVersionProcessor first = new ParallelTraversal.BufferingVersionProcessor(budget);
+    first.processDirectory("/v/a", "a", "/v/a", "/main/1", null);
+    first.finishProcessingDirectory();
+    assertEquals(budget.getEvents(), 2);
+
+    final ParallelTraversal.BufferingVersionProcessor second = new ParallelTraversal.BufferingVersionProcessor(budget);
+    second.processFile("/v/b", "b", "/v/b", "/main/1", null, false, false);
+    try {
+      second.processFile("/v/c", "c", "/v/c", "/main/1", null, false, false);
+      fail("BufferOverflowException expected");
+    }
+    catch (final ParallelTraversal.BufferOverflowException e) {
+      second.release();
+    }
+    assertEquals(budget.getEvents(), 2);
+
+    final RecordingProcessor processor = new RecordingProcessor(null);
+    first.replay(processor, null);
+    first.release();
+    assertEquals(processor.myLog, Arrays.asList("dir a", "finish"));
+    assertEquals(budget.getEvents(), 0);
+  }
+
+  /**
+   * @return a, b/[c, d/[e/[f], g]], h/[], i, where the subtrees of d and h are buffered
+   */
+  @NotNull
+  private List<ParallelTraversal.Node> createTree() throws Exception {
+    final ParallelTraversal.Node d = directory("b/d");
+    d.mySubtree = buffer(new BufferFiller() {
+      public void fill(@NotNull final VersionProcessor buffer) throws VcsException {
+        buffer.processDirectory("/v/b/d/e", "b/d/e", "/v/b/d/e", "/main/5", null);
+        buffer.processFile("/v/b/d/e/f", "b/d/e/f", "/v/b/d/e/f", "/main/6", null, true, true);
+        buffer.finishProcessingDirectory();
+        buffer.processFile("/v/b/d/g", "b/d/g", "/v/b/d/g", "/main/7", null, false, false);
+      }
+    });
+    final ParallelTraversal.Node b = directory("b");
+    b.myChildren = Arrays.asList(file("b/c", false, true), d);
+    final ParallelTraversal.Node h = directory("h");
+    h.mySubtree = buffer(new BufferFiller() {
+      public void fill(@NotNull final VersionProcessor buffer) {
+      }
+    });
+    return Arrays.asList(file("a", true, false), b, h, file("i", false, false));
+  }
+
+  @NotNull
+  private static ParallelTraversal.Node file(@NotNull final String relPath, final boolean text, final boolean executable) {
+    final ParallelTraversal.Node node = directory(relPath);
+    node.myFile = true;
+    node.myText = text;
+    node.myExecutable = executable;
+    return node;
+  }
+
+  @NotNull
+  private static ParallelTraversal.Node directory(@NotNull final String relPath) {
+    return new ParallelTraversal.Node("/v/" + relPath, relPath, "/v/" + relPath, getVersion(relPath));
+  }
+
+  @NotNull
+  private static String getVersion(@NotNull final String relPath) {
+    return "/main/" + ("abcdefghi".indexOf(relPath.charAt(relPath.length() - 1)) + 1);
+  }
+
+  @NotNull
+  private FutureTask<ParallelTraversal.BufferingVersionProcessor> buffer(@NotNull final BufferFiller filler) {
+    final FutureTask<ParallelTraversal.BufferingVersionProcessor> result = new FutureTask<ParallelTraversal.BufferingVersionProcessor>(
+      new Callable<ParallelTraversal.BufferingVersionProcessor>() {
+        public ParallelTraversal.BufferingVersionProcessor call() throws Exception {
+          final ParallelTraversal.BufferingVersionProcessor buffer = new ParallelTraversal.BufferingVersionProcessor(myBudget);
+          filler.fill(buffer);
+          return buffer;
+        }
+      });
+    result.run();
+    return result;
+  }
+
+  private interface BufferFiller {
+    void fill(@NotNull VersionProcessor buffer) throws VcsException;
+  }
+
+  private static class RecordingProcessor implements VersionProcessor {
+    private final List<String> myLog = new ArrayList<String>();
+    @Nullable private final String myFailingPath;
+
+    private RecordingProcessor(@Nullable final String failingPath) {
+      myFailingPath = failingPath;
+    }
+
+    public void processFile(final String fileFullPath,
+                            final String relPath,
+                            final String pname,
+                            final String version,
+                            final ClearCaseConnection clearCaseConnection,
+                            final boolean text,
+                            final boolean executable) throws VcsException {
+      if (relPath.equals(myFailingPath)) {
+        throw new VcsException("Failed " + relPath);
+      }
+      assertEquals(fileFullPath, "/v/" + relPath);
+      assertEquals(pname, "/v/" + relPath);
+      assertEquals(version, getVersion(relPath));
+      myLog.add("file " + relPath + " " + text + " " + executable);
+    }
+
+    public void processDirectory(final String fileFullPath,
+                                 final String relPath,
+                                 final String pname,
+                                 final String version,
+                                 final ClearCaseConnection clearCaseConnection) {
+      assertEquals(fileFullPath, "/v/" + relPath);
+      assertEquals(pname, "/v/" + relPath);
+      assertEquals(version, getVersion(relPath));
+      myLog.add("dir " + relPath);
+    }
+
+    public void finishProcessingDirectory() {
+      myLog.add("finish");
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class PatchChangeReducerTest {
+  private List<String> myLog;
+  private PatchChangeReducer myReducer;
+
+  @BeforeMethod
+  public void setUp() {
+    myLog = new ArrayList<String>();
+    myReducer = new PatchChangeReducer();
+  }
+
+  public void keepsLastOperationOfFile() throws Exception {
+    myReducer.writeFile("src/a.txt", false, log("write a 1"));
+    myReducer.writeFile("src/b.txt", false, log("write b"));
+    myReducer.writeFile("src/a.txt", false, log("write a 2"));
+    myReducer.deleteFile("src/c.txt", log("delete c"));
+    myReducer.writeFile("src/c.txt", true, log("write c"));
+    myReducer.replay();
+
+    assertEquals(myLog, Arrays.asList("write b", "write a 2", "write c"));
+  }
+
+  public void keepsDeletionOfExistingFile() throws Exception {
+    myReducer.writeFile("src/a.txt", false, log("write a"));
+    myReducer.deleteFile("src/a.txt", log("delete a"));
+    myReducer.replay();
+
+    assertEquals(myLog, Arrays.asList("delete a"));
+  }
+
+  public void dropsFileAddedAndDeleted() throws Exception {
+    myReducer.add(log("create dir"));
+    myReducer.writeFile("dir/a.txt", true, log("write a 1"));
+    myReducer.writeFile("dir/a.txt", false, log("write a 2"));
+    myReducer.deleteFile("dir/a.txt", log("delete a"));
+    myReducer.add(log("delete dir"));
+    myReducer.replay();
+
+    assertEquals(myLog, Arrays.asList("create dir", "delete dir"));
+  }
+
+  public void writesFileAddedDeletedAndAddedAgain() throws Exception {
+    myReducer.writeFile("a.txt", true, log("write a 1"));
+    myReducer.deleteFile("a.txt", log("delete a"));
+    myReducer.writeFile("a.txt", true, log("write a 2"));
+    myReducer.replay();
+
+    assertEquals(myLog, Arrays.asList("write a 2"));
+  }
+
+  public void keepsFileOperationsBetweenDirectoryOperations() throws Exception {
+    myReducer.writeFile("old/a.txt", false, log("write old a"));
+    myReducer.add(log("delete old"));
+    myReducer.add(log("create new"));
+    myReducer.writeFile("new/a.txt", true, log("write new a 1"));
+    myReducer.writeFile("new/a.txt", false, log("write new a 2"));
+    myReducer.replay();
+
+    assertEquals(myLog, Arrays.asList("write old a", "delete old", "create new", "write new a 2"));
+  }
+
+  public void treatsEqualPathsAsOneFile() throws Exception {
+    myReducer.writeFile("dir//a.txt", false, log("write a 1"));
+    myReducer.writeFile("dir/a.txt", false, log("write a 2"));
+    myReducer.replay();
+
+    assertEquals(myLog, Arrays.asList("write a 2"));
+  }
+
+  @NotNull
+  private PatchChangeReducer.Action log(@NotNull final String operation) {
+    return new PatchChangeReducer.Action() {
+      public void run() {
+        myLog.add(operation);
+      }
+    };
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PatchFetchPipelineTest {
+  private List<String> myLog;
+  private List<String> myFetches;
+  private CountDownLatch myLatch;
+  private ExecutorService myExecutor;
+
+  @BeforeMethod
+  public void setUp() {
+    myLog = Collections.synchronizedList(new ArrayList<String>());
+    myFetches = Collections.synchronizedList(new ArrayList<String>());
+    myLatch = new CountDownLatch(1);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myLatch.countDown();
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+    }
+  }
+
+  public void appliesOperationsInOrder() throws Exception {
+    final PatchFetchPipeline pipeline = createPipeline(4, 100, 1000);
+    try {
+      pipeline.submit(fetch("1", 0, myLatch));
+      pipeline.add(new RecordingOperation("2", 0));
+      pipeline.submit(fetch("3", 0, null));
+      pipeline.submit(fetch("4", 0, null));
+      assertEquals(myLog, Collections.<String>emptyList());
+
+      myLatch.countDown();
+      pipeline.flush();
+      assertEquals(myLog, Arrays.asList("apply 1", "dispose 1", "apply 2", "dispose 2", "apply 3", "dispose 3", "apply 4", "dispose 4"));
+    }
+    finally {
+      pipeline.close();
+    }
+  }
+
+  public void appliesRightAwayWithoutWorkers() throws Exception {
+    final PatchFetchPipeline pipeline = new PatchFetchPipeline(null, 100, 1000);
+    try {
+      pipeline.submit(fetch("1", 0, null));
+      assertEquals(myLog, Arrays.asList("apply 1", "dispose 1"));
+      pipeline.add(new RecordingOperation("2", 0));
+      assertEquals(myLog, Arrays.asList("apply 1", "dispose 1", "apply 2", "dispose 2"));
+    }
+    finally {
+      pipeline.close();
+    }
+  }
+
+  public void waitsForFirstOperationBeyondLookahead() throws Exception {
+    final PatchFetchPipeline pipeline = createPipeline(4, 2, 1000);
+    try {
+      pipeline.submit(fetch("1", 0, myLatch));
+      pipeline.submit(fetch("2", 0, new CountDownLatch(1)));
+      assertEquals(myLog, Collections.<String>emptyList());
+
+      releaseLater(myLatch);
+      pipeline.submit(fetch("3", 0, new CountDownLatch(1)));
+      assertEquals(myLog, Arrays.asList("apply 1", "dispose 1"));
+    }
+    finally {
+      pipeline.close();
+    }
+  }
+
+  public void waitsForFirstOperationBeyondPendingSize() throws Exception {
+    final PatchFetchPipeline pipeline = createPipeline(4, 100, 10);
+    try {
+      final CountDownLatch secondLatch = new CountDownLatch(1);
+      pipeline.submit(fetch("1", 0, myLatch));
+      pipeline.submit(fetch("2", 12, secondLatch));
+      secondLatch.countDown();
+      waitForPendingSize(pipeline, 12);
+      assertEquals(myLog, Collections.<String>emptyList());
+
+      releaseLater(myLatch);
+      pipeline.submit(fetch("3", 0, new CountDownLatch(1)));
+      assertEquals(myLog, Arrays.asList("apply 1", "dispose 1", "apply 2", "dispose 2"));
+      assertTrue(pipeline.getPendingSize() <= 10);
+    }
+    finally {
+      pipeline.close();
+    }
+  }
+
+  public void disposesOperationsNotAppliedOnClose() throws Exception {
+    final PatchFetchPipeline pipeline = createPipeline(2, 100, 1000);
+    pipeline.submit(fetch("1", 0, myLatch));
+    pipeline.submit(fetch("2", 5, null));
+    waitForPendingSize(pipeline, 5);
+    pipeline.submit(fetch("3", 0, myLatch));
+    pipeline.submit(fetch("4", 0, null));
+    pipeline.add(new RecordingOperation("5", 0));
+    waitForFetches(3);
+
+    pipeline.close();
+
+    assertEquals(new TreeSet<String>(myLog), new TreeSet<String>(Arrays.asList("dispose 1", "dispose 2", "dispose 3", "dispose 5")));
+    assertEquals(myLog.size(), 4);
+    assertEquals(new TreeSet<String>(myFetches), new TreeSet<String>(Arrays.asList("1", "2", "3")));
+    assertEquals(pipeline.getPendingSize(), 0);
+  }
+
+  @NotNull
+  private PatchFetchPipeline createPipeline(final int threads, final int lookahead, final long maxPendingSize) {
+    myExecutor = Executors.newFixedThreadPool(threads);
+    final ExecutorService executor = myExecutor;
+    //noinspection ConstantConditions
+    final WorkerSessions workers = new WorkerSessions(null, threads, "test") {
+      @NotNull
+      @Override
+      <T> Future<T> submit(@NotNull final Callable<T> task) {
+        return executor.submit(task);
+      }
+
+      @Override
+      void shutdown() {
+        executor.shutdownNow();
+        try {
+          executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    return new PatchFetchPipeline(workers, lookahead, maxPendingSize);
+  }
+
+  /**
+   * @param latch the fetch waits for, the operation is returned even if the wait is interrupted
+   */
+  @NotNull
+  private Callable<PatchFetchPipeline.Operation> fetch(@NotNull final String name, final long size, @Nullable final CountDownLatch latch) {
+    return new Callable<PatchFetchPipeline.Operation>() {
+      public PatchFetchPipeline.Operation call() {
+        myFetches.add(name);
+        if (latch != null) {
+          try {
+            latch.await();
+          }
+          catch (final InterruptedException ignore) {
+          }
+        }
+        return new RecordingOperation(name, size);
+      }
+    };
+  }
+
+  private static void releaseLater(@NotNull final CountDownLatch latch) {
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        }
+        catch (final InterruptedException ignore) {
+        }
+        latch.countDown();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void waitForPendingSize(@NotNull final PatchFetchPipeline pipeline, final long size) throws InterruptedException {
+    for (int i = 0; i < 500 && pipeline.getPendingSize() != size; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(pipeline.getPendingSize(), size);
+  }
+
+  private void waitForFetches(final int count) throws InterruptedException {
+    for (int i = 0; i < 500 && myFetches.size() < count; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(myFetches.size(), count);
+  }
+
+  private class RecordingOperation extends PatchFetchPipeline.Operation {
+    @NotNull private final String myName;
+    private final long mySize;
+
+    private RecordingOperation(@NotNull final String name, final long size) {
+      myName = name;
+      mySize = size;
+    }
+
+    @Override
+    void apply() {
+      myLog.add("apply " + myName);
+    }
+
+    @Override
+    long getSize() {
+      return mySize;
+    }
+
+    @Override
+    void dispose() {
+      myLog.add("dispose " + myName);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ViewFileStateTest {
+  private File myTempDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempDir = FileUtil.createTempDirectory("clearcase", "");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void exportsVersionsSelectedByView() {
+    final Map<String, String> versions = readSelectedVersions(
+      "version                ./a.txt@@/main/3                         Rule: /main/LATEST",
+      "version                ./b.txt@@/main/dev/2                     Rule: element * /main/dev/LATEST");
+
+    assertTrue(ViewFileState.isSelected(versions, "a.txt", "/main/3"));
+    assertTrue(ViewFileState.isSelected(versions, "b.txt", "\\main\\dev\\2"));
+  }
+
+  public void fetchesVersionsNotSelectedByView() {
+    final Map<String, String> versions = readSelectedVersions(
+      "version                ./a.txt@@/main/4                         Rule: /main/LATEST",
+      "version                ./b.txt@@/main/CHECKEDOUT from /main/2   Rule: CHECKEDOUT",
+      "hijacked version       ./c.txt@@/main/1 [hijacked]              Rule: /main/LATEST",
+      "version                ./d.txt@@/main/1 [not loaded]            Rule: /main/LATEST");
+
+    assertFalse(ViewFileState.isSelected(versions, "a.txt", "/main/3"));
+    assertFalse(ViewFileState.isSelected(versions, "b.txt", "/main/2"));
+    assertFalse(ViewFileState.isSelected(versions, "c.txt", "/main/1"));
+    assertFalse(ViewFileState.isSelected(versions, "d.txt", "/main/1"));
+    assertFalse(ViewFileState.isSelected(versions, "e.txt", "/main/1"));
+    assertFalse(ViewFileState.isSelected(null, "a.txt", "/main/4"));
+  }
+
+  public void detectsFileChangedAfterListing() throws Exception {
+    final File file = new File(myTempDir, "a.txt");
+    FileUtil.writeFile(file, "version 3");
+    assertTrue(file.setLastModified(1000000000000L));
+    final ViewFileState state = new ViewFileState(file);
+    assertTrue(state.isUnchanged(file));
+
+    FileUtil.writeFile(file, "version 10");
+    assertTrue(file.setLastModified(1000000000000L));
+    assertFalse(state.isUnchanged(file));
+
+    FileUtil.writeFile(file, "version 3");
+    assertTrue(file.setLastModified(1000000002000L));
+    assertFalse(state.isUnchanged(file));
+  }
+
+  public void treatsMissingFileAsChanged() throws Exception {
+    final File file = new File(myTempDir, "a.txt");
+    final ViewFileState missing = new ViewFileState(file);
+    assertFalse(missing.isUnchanged(file));
+
+    FileUtil.writeFile(file, "version 3");
+    final ViewFileState state = new ViewFileState(file);
+    FileUtil.delete(file);
+    assertFalse(state.isUnchanged(file));
+  }
+
+  @NotNull
+  private static Map<String, String> readSelectedVersions(@NotNull final String... lines) {
+    final Map<String, String> versions = new HashMap<String, String>();
+    for (final String line : lines) {
+      CCParseUtil.readSelectedVersionFromLSFormat(line, versions);
+    }
+    return versions;
+  }
+}
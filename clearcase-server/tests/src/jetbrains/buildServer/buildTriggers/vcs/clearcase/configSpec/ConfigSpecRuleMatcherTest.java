@@ -0,0 +1,101 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class ConfigSpecRuleMatcherTest {
+  private final ConfigSpecStandardRule myCheckedOut = new ConfigSpecStandardRule("element:", "*", "CHECKEDOUT");
+  private final ConfigSpecStandardRule myLib = new ConfigSpecStandardRule("element:", "/vobs/proj/lib/...", "/main/dev/LATEST");
+  private final ConfigSpecStandardRule myJava = new ConfigSpecStandardRule("element:", "*.java", "/main/LABEL_1");
+  private final ConfigSpecStandardRule myBuildXml = new ConfigSpecStandardRule("-file:", "build.xml", "/main/3");
+  private final ConfigSpecStandardRule myDocs = new ConfigSpecStandardRule("-directory:", ".../docs", "/main/2");
+  private final ConfigSpecStandardRule myMain = new ConfigSpecStandardRule("element:", "*", "/main/LATEST");
+  private final List<ConfigSpecStandardRule> myRules = Arrays.asList(myCheckedOut, myLib, myJava, myBuildXml, myDocs, myMain);
+
+  public void returnsRulesInConfigSpecOrder() {
+    final ConfigSpecRuleMatcher matcher = new ConfigSpecRuleMatcher(myRules);
+
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "lib", "A.java"), true), Arrays.asList(myCheckedOut, myLib, myJava, myMain));
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "src", "A.java"), true), Arrays.asList(myCheckedOut, myJava, myMain));
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "build.xml"), true), Arrays.asList(myCheckedOut, myBuildXml, myMain));
+  }
+
+  public void checksScopeType() {
+    final ConfigSpecRuleMatcher matcher = new ConfigSpecRuleMatcher(myRules);
+
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "build.xml"), false), Arrays.asList(myCheckedOut, myMain));
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "docs"), false), Arrays.asList(myCheckedOut, myDocs, myMain));
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "docs"), true), Arrays.asList(myCheckedOut, myMain));
+  }
+
+  public void doesNotMatchLiteralPartsOnly() {
+    final ConfigSpecRuleMatcher matcher = new ConfigSpecRuleMatcher(myRules);
+
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "lib2", "A.javac"), true), Arrays.asList(myCheckedOut, myMain));
+    assertEquals(matcher.getMatchingRules(path("vobs", "proj", "my-build.xml"), true), Arrays.asList(myCheckedOut, myMain));
+  }
+
+  public void matchesLikeRulesThemselves() {
+    final List<ConfigSpecStandardRule> rules = new ArrayList<ConfigSpecStandardRule>(myRules);
+    rules.add(new ConfigSpecStandardRule("element:", "/vobs/proj/*/A.java", "/main/1"));
+    rules.add(new ConfigSpecStandardRule("element:", "/vobs/.../src/...", "/main/1"));
+    rules.add(new ConfigSpecStandardRule("element:", "lib/?.java", "/main/1"));
+    rules.add(new ConfigSpecStandardRule("element:", "/vobs/proj", "/main/1"));
+    final ConfigSpecRuleMatcher matcher = new ConfigSpecRuleMatcher(rules);
+
+    final String[] paths = {
+      path("vobs"),
+      path("vobs", "proj"),
+      path("vobs", "proj", "lib"),
+      path("vobs", "proj", "lib", "A.java"),
+      path("vobs", "proj", "lib", "AB.java"),
+      path("vobs", "proj", "src", "A.java"),
+      path("vobs", "proj", "src", "docs"),
+      path("vobs", "other", "src", "main", "B.java"),
+      path("vobs", "proj", "build.xml")
+    };
+    for (final String path : paths) {
+      for (final boolean isFile : new boolean[]{true, false}) {
+        final List<ConfigSpecStandardRule> expected = new ArrayList<ConfigSpecStandardRule>();
+        for (final ConfigSpecStandardRule rule : rules) {
+          if (rule.matchesPath(path, isFile)) {
+            expected.add(rule);
+          }
+        }
+        assertEquals(matcher.getMatchingRules(path, isFile), expected, path);
+      }
+    }
+  }
+
+  @NotNull
+  private static String path(@NotNull final String... names) {
+    final StringBuilder result = new StringBuilder();
+    for (final String name : names) {
+      result.append(File.separatorChar).append(name);
+    }
+    return result.toString();
+  }
+}
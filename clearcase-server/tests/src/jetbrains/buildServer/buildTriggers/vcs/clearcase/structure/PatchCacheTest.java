@@ -0,0 +1,206 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.Revision;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.impl.VcsRootImpl;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PatchCacheTest {
+  private static final Revision REVISION = Revision.fromDate(new Date(1000000000000L));
+
+  private File myTempDir;
+  private File myCacheDir;
+  private VcsRootImpl myRoot;
+  private PatchCache myCache;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = SnapshotFormatTest.createTempDir();
+    myCacheDir = new File(myTempDir, "patches");
+    myRoot = new VcsRootImpl(1, "clearcase");
+    myRoot.addProperty("view-path", "/views/proj");
+    myCache = new PatchCache(myCacheDir);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void replaysRecordedPatch() throws IOException {
+    recordPatch(REVISION);
+
+    final List<String> operations = new ArrayList<String>();
+    assertTrue(myCache.replay(myRoot, "", REVISION, createBuilder(operations)));
+    assertEquals(operations, Arrays.asList(
+      "createDirectory src",
+      "changeOrCreateTextFile src/a.txt +x text content",
+      "changeOrCreateBinaryFile src/b.bin null \u0000\u0001\u0002",
+      "changeOrCreateTextFile src/empty.txt null ",
+      "deleteFile src/old.txt",
+      "deleteDirectory old"));
+  }
+
+  public void replaysPatchOnlyForSameRootIncludeRuleAndRevision() throws IOException {
+    recordPatch(REVISION);
+
+    final List<String> operations = new ArrayList<String>();
+    assertFalse(myCache.replay(myRoot, "src", REVISION, createBuilder(operations)));
+    assertFalse(myCache.replay(myRoot, "", Revision.fromDate(new Date(1000000060000L)), createBuilder(operations)));
+    myRoot.addProperty("view-path", "/views/other");
+    assertFalse(myCache.replay(myRoot, "", REVISION, createBuilder(operations)));
+    assertEquals(operations, new ArrayList<String>());
+  }
+
+  public void doesNotKeepAbortedPatch() throws IOException {
+    final PatchCache.Recorder recorder = myCache.startRecording(myRoot, "", REVISION);
+    recorder.createDirectory("src");
+    recorder.abort();
+
+    assertFalse(myCache.replay(myRoot, "", REVISION, createBuilder(new ArrayList<String>())));
+    assertEquals(listFiles(), new ArrayList<File>());
+  }
+
+  public void removesPatchWithChecksumMismatch() throws IOException {
+    recordPatch(REVISION);
+    final File patchFile = getPatchFile();
+    final byte[] content = FileUtil.loadFileBytes(patchFile);
+    content[content.length / 2] ^= 0x20;
+    writeFile(patchFile, content);
+
+    final List<String> operations = new ArrayList<String>();
+    assertFalse(myCache.replay(myRoot, "", REVISION, createBuilder(operations)));
+    assertEquals(operations, new ArrayList<String>());
+    assertFalse(patchFile.exists());
+  }
+
+  public void removesTruncatedPatch() throws IOException {
+    recordPatch(REVISION);
+    final File patchFile = getPatchFile();
+    final byte[] content = FileUtil.loadFileBytes(patchFile);
+    writeFile(patchFile, Arrays.copyOf(content, content.length - 9));
+
+    assertFalse(myCache.replay(myRoot, "", REVISION, createBuilder(new ArrayList<String>())));
+    assertFalse(patchFile.exists());
+  }
+
+  public void removesPatchesOfRoot() throws IOException {
+    recordPatch(REVISION);
+
+    myCache.clear(myRoot);
+
+    assertFalse(myCache.replay(myRoot, "", REVISION, createBuilder(new ArrayList<String>())));
+  }
+
+  public void removesPatchesNotUsedSinceLastCleanup() throws IOException {
+    recordPatch(REVISION);
+    final File usedPatch = getPatchFile();
+    recordPatch(Revision.fromDate(new Date(1000000060000L)));
+    final List<File> patches = listFiles();
+    patches.remove(usedPatch);
+    final File unusedPatch = patches.get(0);
+    final long past = System.currentTimeMillis() - 60 * 60 * 1000L;
+    assertTrue(usedPatch.setLastModified(past));
+    assertTrue(unusedPatch.setLastModified(past));
+
+    assertTrue(myCache.replay(myRoot, "", REVISION, createBuilder(new ArrayList<String>())));
+    myCache.cleanup();
+
+    assertTrue(usedPatch.isFile());
+    assertFalse(unusedPatch.exists());
+  }
+
+  private void recordPatch(@NotNull final Revision revision) throws IOException {
+    final PatchCache.Recorder recorder = myCache.startRecording(myRoot, "", revision);
+    recorder.createDirectory("src");
+    recorder.writeFile("src/a.txt", "+x", true, createFile("a.txt", new byte[]{'t', 'e', 'x', 't', ' ', 'c', 'o', 'n', 't', 'e', 'n', 't'}));
+    recorder.writeFile("src/b.bin", null, false, createFile("b.bin", new byte[]{0, 1, 2}));
+    recorder.writeFile("src/empty.txt", null, true, createFile("empty.txt", new byte[0]));
+    recorder.deleteFile("src/old.txt");
+    recorder.deleteDirectory("old");
+    recorder.commit();
+  }
+
+  @NotNull
+  private File createFile(@NotNull final String name, @NotNull final byte[] content) throws IOException {
+    final File file = new File(myTempDir, name);
+    writeFile(file, content);
+    return file;
+  }
+
+  @NotNull
+  private File getPatchFile() {
+    final List<File> files = listFiles();
+    assertEquals(files.size(), 1);
+    return files.get(0);
+  }
+
+  @NotNull
+  private List<File> listFiles() {
+    final File[] files = new File(myCacheDir, String.valueOf(myRoot.getId())).listFiles();
+    return files == null ? new ArrayList<File>() : new ArrayList<File>(Arrays.asList(files));
+  }
+
+  private static void writeFile(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+    final OutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content);
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  /**
+   * @return builder adding the names and arguments of the called methods to the list
+   */
+  @NotNull
+  private static PatchBuilder createBuilder(@NotNull final List<String> operations) {
+    return (PatchBuilder)Proxy.newProxyInstance(PatchCacheTest.class.getClassLoader(), new Class[]{PatchBuilder.class}, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) throws IOException {
+        final StringBuilder operation = new StringBuilder(method.getName());
+        operation.append(' ').append(((File)args[0]).getPath().replace('\\', '/'));
+        if (method.getName().startsWith("changeOrCreate")) {
+          operation.append(' ').append(args[1]).append(' ');
+          final InputStream content = (InputStream)args[2];
+          int b;
+          while ((b = content.read()) >= 0) {
+            operation.append((char)b);
+          }
+        }
+        operations.add(operation.toString());
+        return null;
+      }
+    });
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class SnapshotDeltaTest {
+  private File myTempDir;
+  private File myBaseFile;
+  private File myDeltaFile;
+  private File mySecondDeltaFile;
+  private DecodedSnapshot myDeltaSnapshot;
+  private DecodedSnapshot mySecondDeltaSnapshot;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempDir = SnapshotFormatTest.createTempDir();
+
+    myBaseFile = new File(myTempDir, "1000");
+    createSnapshot(null, null).writeTo(myBaseFile);
+
+    myDeltaFile = new File(myTempDir, "2000");
+    myDeltaSnapshot = createSnapshot("dir2/file3", null);
+    writeDelta(myBaseFile, myDeltaSnapshot, myDeltaFile, 1);
+
+    mySecondDeltaFile = new File(myTempDir, "3000");
+    mySecondDeltaSnapshot = createSnapshot("dir2/file3", "added");
+    writeDelta(myDeltaFile, mySecondDeltaSnapshot, mySecondDeltaFile, 2);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void restoresSnapshotsOfChain() throws Exception {
+    assertFalse(SnapshotDelta.isDelta(myBaseFile));
+    assertTrue(SnapshotDelta.isDelta(myDeltaFile));
+    assertTrue(SnapshotDelta.isDelta(mySecondDeltaFile));
+
+    assertEquals(SnapshotFormatTest.readRecords(myDeltaFile), SnapshotFormatTest.getRecords(myDeltaSnapshot));
+    assertEquals(SnapshotFormatTest.readRecords(mySecondDeltaFile), SnapshotFormatTest.getRecords(mySecondDeltaSnapshot));
+  }
+
+  public void readsBaseFileNames() throws Exception {
+    assertNull(SnapshotDelta.readParentName(myBaseFile));
+    assertEquals(SnapshotDelta.readParentName(myDeltaFile), "1000");
+    assertEquals(SnapshotDelta.readParentName(mySecondDeltaFile), "2000");
+
+    assertEquals(SnapshotDelta.getBaseFileNames(myBaseFile), Collections.<String>emptySet());
+    assertEquals(SnapshotDelta.getBaseFileNames(mySecondDeltaFile), new HashSet<String>(Arrays.asList("1000", "2000")));
+  }
+
+  public void compactsDeltaIntoCompleteSnapshot() throws Exception {
+    SnapshotDelta.compact(myDeltaFile);
+
+    assertFalse(SnapshotDelta.isDelta(myDeltaFile));
+    assertEquals(SnapshotFormatTest.readRecords(myDeltaFile), SnapshotFormatTest.getRecords(myDeltaSnapshot));
+    assertEquals(SnapshotFormatTest.readRecords(mySecondDeltaFile), SnapshotFormatTest.getRecords(mySecondDeltaSnapshot));
+  }
+
+  public void storesSnapshotCompletelyWhenMuchChanged() throws Exception {
+    final DecodedSnapshot.Builder builder = new DecodedSnapshot.Builder();
+    builder.processDirectory("", "/main/1");
+    for (int i = 0; i < 10; i++) {
+      builder.processFile("file" + i, "/main/1", true, false);
+    }
+    builder.finishProcessingDirectory();
+
+    assertNull(SnapshotDelta.compute(myBaseFile, CacheProcessor.getDecodedSnapshot(myBaseFile), builder.build()));
+  }
+
+  public void basesDeltasOnlyOnShortChains() throws Exception {
+    assertTrue(SnapshotDelta.canBeBasedOn(myBaseFile));
+    assertTrue(SnapshotDelta.canBeBasedOn(mySecondDeltaFile));
+
+    File parentFile = mySecondDeltaFile;
+    for (int chainLength = 3; chainLength <= SnapshotDelta.MAX_CHAIN_LENGTH; chainLength++) {
+      final File deltaFile = new File(myTempDir, String.valueOf(10000 + chainLength));
+      writeDelta(parentFile, chainLength % 2 == 0 ? mySecondDeltaSnapshot : myDeltaSnapshot, deltaFile, chainLength);
+      parentFile = deltaFile;
+    }
+    assertFalse(SnapshotDelta.canBeBasedOn(parentFile));
+  }
+
+  public void basesDeltasOnlyOnSmallSnapshots() throws Exception {
+    final RandomAccessFile file = new RandomAccessFile(myBaseFile, "rw");
+    try {
+      file.setLength(SnapshotDelta.MAX_BASE_SIZE + 1);
+    }
+    finally {
+      file.close();
+    }
+
+    assertFalse(SnapshotDelta.canBeBasedOn(myBaseFile));
+    assertFalse(SnapshotDelta.canBeBasedOn(mySecondDeltaFile));
+  }
+
+  public void doesNotBaseDeltasOnBrokenChain() throws Exception {
+    FileUtil.delete(myBaseFile);
+
+    assertFalse(SnapshotDelta.canBeBasedOn(mySecondDeltaFile));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsChecksumMismatch() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(myDeltaFile);
+    content[content.length - 12] ^= 0x20;
+    writeFile(myDeltaFile, content);
+
+    SnapshotFormatTest.readRecords(myDeltaFile);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsUnsupportedVersion() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(myDeltaFile);
+    content[4] = CacheElement.FORMAT_VERSION + 1;
+    updateChecksum(content);
+    writeFile(myDeltaFile, content);
+
+    SnapshotFormatTest.readRecords(myDeltaFile);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsUnsupportedVersionInHeader() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(myDeltaFile);
+    content[4] = CacheElement.FORMAT_VERSION + 1;
+    writeFile(myDeltaFile, content);
+
+    SnapshotDelta.readParentName(myDeltaFile);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsChangedBase() throws Exception {
+    createSnapshot("dir4/file1", null).writeTo(myBaseFile);
+    DecodedSnapshotCache.invalidate(myBaseFile);
+
+    SnapshotFormatTest.readRecords(myDeltaFile);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsMissingBase() throws Exception {
+    FileUtil.delete(myBaseFile);
+
+    SnapshotFormatTest.readRecords(myDeltaFile);
+  }
+
+  public void readsCompactIntegers() throws Exception {
+    final int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1};
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream output = new DataOutputStream(bytes);
+    for (int value : values) {
+      CompactInt.write(output, value);
+    }
+    output.close();
+
+    final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    for (int value : values) {
+      assertEquals(CompactInt.read(input), value);
+      assertEquals(CompactInt.read(buffer), value);
+    }
+    assertEquals(bytes.size(), 1 + 1 + 1 + 2 + 2 + 3 + 5 + 5);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsMalformedCompactInteger() throws Exception {
+    CompactInt.read(ByteBuffer.wrap(new byte[]{(byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0}));
+  }
+
+  /**
+   * @return root with 5 directories of 4 files, where the given file has another version and a directory with a file is added
+   */
+  @NotNull
+  private static DecodedSnapshot createSnapshot(final String changedFile, final String addedDir) {
+    final DecodedSnapshot.Builder builder = new DecodedSnapshot.Builder();
+    builder.processDirectory("", "/main/1");
+    for (int dir = 1; dir <= 5; dir++) {
+      builder.processDirectory("dir" + dir, "/main/" + dir);
+      for (int file = 1; file <= 4; file++) {
+        final String path = "dir" + dir + "/file" + file;
+        builder.processFile("file" + file, path.equals(changedFile) ? "/main/dev/2" : "/main/" + file, file % 2 == 0, file == 4);
+      }
+      builder.finishProcessingDirectory();
+    }
+    if (addedDir != null) {
+      builder.processDirectory(addedDir, "/main/dev/1");
+      builder.processFile("file1", "/main/dev/1", true, false);
+      builder.finishProcessingDirectory();
+    }
+    builder.finishProcessingDirectory();
+    return builder.build();
+  }
+
+  private static void writeDelta(@NotNull final File parentFile,
+                                 @NotNull final DecodedSnapshot snapshot,
+                                 @NotNull final File deltaFile,
+                                 final int expectedChainLength) throws IOException, VcsException {
+    final SnapshotDelta delta = SnapshotDelta.compute(parentFile, CacheProcessor.getDecodedSnapshot(parentFile), snapshot);
+    assertNotNull(delta);
+    assertEquals(delta.getChainLength(), expectedChainLength);
+    delta.write(deltaFile);
+  }
+
+  private static void updateChecksum(@NotNull final byte[] content) {
+    final CRC32 checksum = new CRC32();
+    checksum.update(content, 0, content.length - 8);
+    final ByteBuffer buffer = ByteBuffer.wrap(content);
+    buffer.putLong(content.length - 8, checksum.getValue());
+  }
+
+  private static void writeFile(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+    final OutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content);
+    }
+    finally {
+      output.close();
+    }
+  }
+}
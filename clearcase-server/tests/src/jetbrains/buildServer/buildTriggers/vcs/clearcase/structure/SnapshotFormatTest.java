@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class SnapshotFormatTest {
+  private File myTempDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = createTempDir();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void readsWrittenSnapshot() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    writeSnapshot(file);
+
+    assertEquals(readRecords(file), Arrays.asList(
+      "dir  /main/3",
+      "dir src /main/release_1/12",
+      "file src.txt /main/release_1/0 text",
+      "file src.sh /main/release_1/7 text executable",
+      "file srcs.bin \\main\\07",
+      "close",
+      "dir \u0444\u0430\u0439\u043b\u044b /main/LATEST",
+      "file \u65e5\u672c.txt /main/1234567890 text",
+      "close",
+      "file build.xml /main/release_1/12 text",
+      "close"));
+  }
+
+  public void passesPathsToVersionProcessor() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    writeSnapshot(file);
+    final List<String> paths = new ArrayList<String>();
+
+    new CacheProcessor(new VersionProcessor() {
+      public void processFile(final String fileFullPath, final String relPath, final String pname, final String version,
+                              final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) {
+        paths.add(relPath);
+      }
+
+      public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version,
+                                   final ClearCaseConnection clearCaseConnection) {
+        paths.add(relPath + File.separator);
+      }
+
+      public void finishProcessingDirectory() {
+      }
+    }, null, file).processAllRevisions(false);
+
+    assertEquals(paths, Arrays.asList(
+      "src" + File.separator,
+      "src" + File.separator + "src.txt",
+      "src" + File.separator + "src.sh",
+      "src" + File.separator + "srcs.bin",
+      "\u0444\u0430\u0439\u043b\u044b" + File.separator,
+      "\u0444\u0430\u0439\u043b\u044b" + File.separator + "\u65e5\u672c.txt",
+      "build.xml"));
+  }
+
+  public void writesDecodedSnapshotInTheSameFormat() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    writeSnapshot(file);
+    final File copy = new File(myTempDir, "2000");
+
+    CacheProcessor.getDecodedSnapshot(file).writeTo(copy);
+
+    assertEquals(FileUtil.loadFileBytes(copy), FileUtil.loadFileBytes(file));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsChecksumMismatch() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    writeSnapshot(file);
+    final RandomAccessFile content = new RandomAccessFile(file, "rw");
+    try {
+      content.seek(12);
+      final int b = content.read();
+      content.seek(12);
+      content.write(b ^ 0x20);
+    }
+    finally {
+      content.close();
+    }
+
+    readRecords(file);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsUnsupportedVersion() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    writeSnapshot(file);
+    final RandomAccessFile content = new RandomAccessFile(file, "rw");
+    try {
+      content.seek(4);
+      content.write(CacheElement.FORMAT_VERSION + 1);
+    }
+    finally {
+      content.close();
+    }
+
+    readRecords(file);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsTruncatedSnapshot() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    writeSnapshot(file);
+    final RandomAccessFile content = new RandomAccessFile(file, "rw");
+    try {
+      content.setLength(content.length() - 1);
+    }
+    finally {
+      content.close();
+    }
+
+    readRecords(file);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void rejectsSnapshotWithoutTrailer() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    final WriteVersionProcessor writer = new WriteVersionProcessor(new FileOutputStream(file));
+    try {
+      writer.writeDirOpen("/main/3", "");
+      writer.writeFile("/main/1", "a.txt", true, false);
+      writer.writeFile("/main/2", "b.txt", true, false);
+      writer.writeDirClose();
+    }
+    finally {
+      writer.close();
+    }
+
+    readRecords(file);
+  }
+
+  @NotNull
+  static File createTempDir() throws IOException {
+    final File dir = File.createTempFile("clearcase", "");
+    if (!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create directory " + dir);
+    return dir;
+  }
+
+  /**
+   * @return records of the snapshot file as strings, the file is read again even if it was decoded before
+   */
+  @NotNull
+  static List<String> readRecords(@NotNull final File file) throws IOException, VcsException {
+    DecodedSnapshotCache.invalidate(file);
+    return getRecords(CacheProcessor.getDecodedSnapshot(file));
+  }
+
+  @NotNull
+  static List<String> getRecords(@NotNull final DecodedSnapshot snapshot) throws IOException, VcsException {
+    final List<String> records = new ArrayList<String>();
+    snapshot.replay(new CacheProcessor.RecordHandler() {
+      public void processFile(@NotNull final CharSequence name, @NotNull final String version, final boolean text, final boolean executable) {
+        records.add("file " + name + " " + version + (text ? " text" : "") + (executable ? " executable" : ""));
+      }
+
+      public void processDirectory(@NotNull final CharSequence name, @NotNull final String version) {
+        records.add("dir " + name + " " + version);
+      }
+
+      public void finishProcessingDirectory() {
+        records.add("close");
+      }
+    });
+    return records;
+  }
+
+  private static void writeSnapshot(@NotNull final File file) throws IOException, VcsException {
+    final WriteVersionProcessor writer = new WriteVersionProcessor(new FileOutputStream(file));
+    try {
+      writer.writeDirOpen("/main/3", "");
+      writer.writeDirOpen("/main/release_1/12", "src");
+      writer.writeFile("/main/release_1/0", "src.txt", true, false);
+      writer.writeFile("/main/release_1/7", "src.sh", true, true);
+      writer.writeFile("\\main\\07", "srcs.bin", false, false);
+      writer.writeDirClose();
+      writer.writeDirOpen("/main/LATEST", "\u0444\u0430\u0439\u043b\u044b");
+      writer.writeFile("/main/1234567890", "\u65e5\u672c.txt", true, false);
+      writer.writeDirClose();
+      writer.writeFile("/main/release_1/12", "build.xml", true, false);
+      writer.writeDirClose();
+      writer.finish();
+    }
+    finally {
+      writer.close();
+    }
+  }
+}
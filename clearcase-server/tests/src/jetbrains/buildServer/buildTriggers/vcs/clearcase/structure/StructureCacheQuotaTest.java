@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class StructureCacheQuotaTest {
+  private static final int SIZE = 100;
+
+  private File myTempDir;
+  private File myPathDir;
+  private long myNow;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = SnapshotFormatTest.createTempDir();
+    myPathDir = new File(new File(myTempDir, "1"), "path");
+    assertTrue(myPathDir.mkdirs());
+    myNow = System.currentTimeMillis();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void keepsSnapshotsWithinLimit() throws IOException {
+    createSnapshot("1000", 3, null);
+    createSnapshot("2000", 2, null);
+
+    assertEquals(new StructureCacheQuota(2 * SIZE).evict(myTempDir, Collections.<File>emptySet()), Collections.<File>emptyList());
+  }
+
+  public void removesLeastRecentlyUsedSnapshots() throws IOException {
+    final File oldest = createSnapshot("1000", 3, null);
+    final File older = createSnapshot("2000", 2, null);
+    final File newest = createSnapshot("3000", 1, null);
+    final StructureCacheQuota quota = new StructureCacheQuota(2 * SIZE);
+
+    assertEquals(quota.evict(myTempDir, Collections.<File>emptySet()), Collections.singletonList(oldest));
+
+    assertEquals(new HashSet<File>(Arrays.asList(myPathDir.listFiles())), new HashSet<File>(Arrays.asList(older, newest)));
+    assertEquals(new StructureCacheQuota(SIZE).evict(myTempDir, Collections.<File>emptySet()), Collections.singletonList(older));
+  }
+
+  public void promotesAccessedSnapshots() throws IOException {
+    final File oldest = createSnapshot("1000", 3, null);
+    final File older = createSnapshot("2000", 2, null);
+    createSnapshot("3000", 1, null);
+    final StructureCacheQuota quota = new StructureCacheQuota(2 * SIZE);
+
+    quota.accessed(oldest);
+
+    assertEquals(quota.evict(myTempDir, Collections.<File>emptySet()), Collections.singletonList(older));
+  }
+
+  public void keepsPinnedSnapshotsAndSnapshotsBeingRead() throws IOException {
+    final File oldest = createSnapshot("1000", 3, null);
+    final File older = createSnapshot("2000", 2, null);
+    final File newest = createSnapshot("3000", 1, null);
+    final StructureCacheQuota quota = new StructureCacheQuota(SIZE);
+
+    quota.startReading(older);
+    assertEquals(quota.evict(myTempDir, Collections.singleton(oldest)), Collections.singletonList(newest));
+
+    quota.finishReading(older);
+    assertEquals(quota.evict(myTempDir, Collections.singleton(oldest)), Collections.singletonList(older));
+  }
+
+  public void removesBaseAfterItsDeltas() throws IOException {
+    final File base = createSnapshot("1000", 3, null);
+    final File delta = createSnapshot("2000", 2, "1000");
+    createSnapshot("3000", 1, null);
+
+    assertEquals(new StructureCacheQuota(SIZE).evict(myTempDir, Collections.<File>emptySet()), Arrays.asList(delta, base));
+  }
+
+  public void keepsBaseOfKeptDelta() throws IOException {
+    final File base = createSnapshot("1000", 3, null);
+    createSnapshot("2000", 2, null);
+    createSnapshot("3000", 1, "1000");
+
+    new StructureCacheQuota(2 * SIZE).evict(myTempDir, Collections.<File>emptySet());
+
+    assertTrue(base.isFile());
+  }
+
+  public void removesOnlySnapshotsAndTheirRescanMarks() throws IOException {
+    final File snapshot = createSnapshot("1000", 2, null);
+    final File rescan = new File(myPathDir, "1000" + ClearCaseStructureCache.RESCAN_SUFFIX);
+    FileUtil.writeFile(rescan, "subtree");
+    final File other = new File(myPathDir, "index");
+    FileUtil.writeFile(other, "1000");
+
+    assertEquals(new StructureCacheQuota(10).evict(myTempDir, Collections.<File>emptySet()), Collections.singletonList(snapshot));
+    assertTrue(!rescan.exists());
+    assertTrue(other.isFile());
+  }
+
+  /**
+   * @param age how many minutes ago the snapshot was written
+   * @param parentName name of the base snapshot if the snapshot is a delta
+   */
+  @NotNull
+  private File createSnapshot(@NotNull final String name, final int age, @Nullable final String parentName) throws IOException {
+    final File file = new File(myPathDir, name);
+    final DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+    try {
+      if (parentName != null) {
+        output.writeInt(CacheElement.DELTA_FORMAT_MAGIC);
+        output.writeByte(CacheElement.FORMAT_VERSION);
+        output.writeUTF(parentName);
+      }
+      else {
+        output.writeInt(CacheElement.FORMAT_MAGIC);
+        output.writeByte(CacheElement.FORMAT_VERSION);
+      }
+      while (output.size() < SIZE) {
+        output.writeByte(0);
+      }
+    }
+    finally {
+      output.close();
+    }
+    assertTrue(file.setLastModified(myNow - age * 60 * 1000L));
+    return file;
+  }
+}